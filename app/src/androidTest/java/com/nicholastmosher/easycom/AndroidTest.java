@@ -2,10 +2,12 @@ package com.nicholastmosher.easycom;
 
 import android.test.AndroidTestCase;
 
+import com.google.gson.Gson;
 import com.nicholastmosher.easycom.data.DataAdapter;
+import com.nicholastmosher.easycom.data.DataStore;
 
-import java.util.Observable;
-import java.util.Observer;
+import java.io.File;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Created by Nick Mosher on 1/5/16.
@@ -20,21 +22,19 @@ public class AndroidTest extends AndroidTestCase {
 
         DataAdapter<String> mStringAdapter = DataAdapter.getDataAdapter(getContext(), String.class);
         mStringAdapter.write(TEST_VALUE);
-
-        class TestBool {public boolean completed = false;}
-        final TestBool testBool = new TestBool();
-        DataAdapter<String> mStringReadAdapter = DataAdapter.getDataAdapter(getContext(), String.class);
-        mStringReadAdapter.read(new Observer() {
-            @Override
-            public void update(Observable observable, Object data) {
-                assertTrue(data instanceof String);
-                String stringData = (String) data;
-                assertEquals(stringData, TEST_VALUE);
-                testBool.completed = true;
-            }
-        });
-        //Wait for read callback.
-        while(!testBool.completed);
-        System.out.println("Finished test!");
+        //Wait for the write to reach storage.
+        mStringAdapter.flush();
+
+        //The registry would hand back the same adapter, which answers from memory;
+        //read the file through a DataStore of its own to see what reached storage.
+        DataStore<String> store = new DataStore<>(new File(getContext().getFilesDir(), String.class.toString()),
+                String.class, new Gson());
+        Object data = store.read();
+        assertTrue(data instanceof String);
+        String stringData = (String) data;
+        assertEquals(stringData, TEST_VALUE);
+
+        //Reads through the adapter are still answered, from its cache.
+        assertEquals(TEST_VALUE, mStringAdapter.read().get(10, TimeUnit.SECONDS));
     }
 }
@@ -0,0 +1,431 @@
+package com.nicholastmosher.easycom;
+
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+import com.nicholastmosher.easycom.connection.Backoff;
+import com.nicholastmosher.easycom.connection.LaneDemultiplexer;
+import com.nicholastmosher.easycom.connection.LaneScheduler;
+import com.nicholastmosher.easycom.connection.NioEngine;
+import com.nicholastmosher.easycom.connection.NioTcpIpConnection;
+import com.nicholastmosher.easycom.connection.ReconnectSupervisor;
+import com.nicholastmosher.easycom.connection.ResumableSession;
+import com.nicholastmosher.easycom.core.connection.Connection;
+import com.nicholastmosher.easycom.core.connection.TcpIpConnection;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Drives Connections against a LoopbackEchoServer and reports the
+ * round-trip latency and sustained throughput of the app's data path,
+ * Connection.send through OnDataReceivedListener, for a few message sizes
+ * and send rates, for both TcpIpConnection and NioTcpIpConnection.
+ * Results are logged under the tag "ConnectionLoad":
+ *
+ *     adb logcat -s ConnectionLoad
+ *
+ * Each message starts with its sequence number and the time it was due to
+ * be sent, so the echo carries its own timestamp back.  Latency is measured
+ * from when a message was due rather than when send() returned, so a stall
+ * in the sender counts against every message it delays.
+ */
+public class ConnectionLoadTest extends AndroidTestCase {
+
+    private static final String TAG = "ConnectionLoad";
+
+    /** Sequence number and due time. */
+    private static final int HEADER_SIZE = 4 + 8;
+    private static final long CONNECT_TIMEOUT_MILLIS = 5000;
+    private static final long RUN_TIMEOUT_SECONDS = 60;
+
+    /**
+     * Small control messages at a joystick's update rate.
+     */
+    public void testControlRate() throws Exception {
+        runLoad(false, 32, 100, 1000);
+    }
+
+    /**
+     * Small messages as fast as they can be sent.
+     */
+    public void testSmallMessagesUnthrottled() throws Exception {
+        runLoad(false, 32, 0, 10000);
+    }
+
+    /**
+     * Bulk transfer, as when pasting a large block into the terminal.
+     */
+    public void testBulkUnthrottled() throws Exception {
+        runLoad(false, 4096, 0, 2000);
+    }
+
+    public void testNioControlRate() throws Exception {
+        runLoad(true, 32, 100, 1000);
+    }
+
+    public void testNioSmallMessagesUnthrottled() throws Exception {
+        runLoad(true, 32, 0, 10000);
+    }
+
+    public void testNioBulkUnthrottled() throws Exception {
+        runLoad(true, 4096, 0, 2000);
+    }
+
+    /**
+     * A dozen devices streaming control messages at once, all served by
+     * one NioEngine thread.
+     */
+    public void testNioManyConnections() throws Exception {
+        final int connections = 12;
+        final int messageSize = 32;
+        final int rate = 100;
+        final int count = 500;
+
+        LoopbackEchoServer server = new LoopbackEchoServer();
+        NioEngine engine = new NioEngine("ConnectionLoadTest");
+        ExecutorService senders = Executors.newFixedThreadPool(connections);
+        try {
+            List<Future<Result>> futures = new ArrayList<>();
+            for(int i = 0; i < connections; i++) {
+                final Connection connection = new NioTcpIpConnection("Loopback " + i,
+                        server.getAddress(), server.getPort(), engine, NioTcpIpConnection.DEFAULT_HIGH_WATER);
+                futures.add(senders.submit(new Callable<Result>() {
+                    @Override
+                    public Result call() throws Exception {
+                        return drive(connection, messageSize, rate, count);
+                    }
+                }));
+            }
+
+            long[] latencies = new long[0];
+            long elapsedNanos = 0;
+            for(Future<Result> future : futures) {
+                Result result = future.get();
+                int length = latencies.length;
+                latencies = Arrays.copyOf(latencies, length + result.mLatencies.length);
+                System.arraycopy(result.mLatencies, 0, latencies, length, result.mLatencies.length);
+                elapsedNanos = Math.max(elapsedNanos, result.mElapsedNanos);
+            }
+            Arrays.sort(latencies);
+            report("nio x" + connections, messageSize, rate, new Result(latencies, elapsedNanos));
+        } finally {
+            senders.shutdownNow();
+            engine.close();
+            server.close();
+        }
+    }
+
+    /**
+     * Control messages sent every 10ms on the control lane while 2MB of
+     * bulk data is sent on the bulk lane of the same connection.  The
+     * control round trips should stay near those of an idle link.
+     */
+    public void testLanesControlDuringBulk() throws Exception {
+        final int controlCount = 200;
+        final int bulkCount = 32;
+        final int bulkSize = 64 * 1024;
+        final long[] latencies = new long[controlCount];
+        final CountDownLatch controlDone = new CountDownLatch(controlCount);
+        final CountDownLatch bulkDone = new CountDownLatch(bulkCount);
+        final long[] bulkEnd = new long[1];
+
+        LoopbackEchoServer server = new LoopbackEchoServer();
+        //Buffer only a few chunks below the scheduler, so control chunks can cut in.
+        NioTcpIpConnection connection = new NioTcpIpConnection("Loopback", server.getAddress(), server.getPort(),
+                NioEngine.getDefault(), 4 * LaneScheduler.DEFAULT_CHUNK_SIZE);
+        final LaneScheduler scheduler = new LaneScheduler(connection);
+        LaneDemultiplexer demultiplexer = new LaneDemultiplexer(new LaneDemultiplexer.OnMessageListener() {
+            @Override
+            public void onMessage(Connection connection, int lane, byte[] message) {
+                if(lane == LaneScheduler.LANE_CONTROL) {
+                    ByteBuffer header = ByteBuffer.wrap(message);
+                    latencies[header.getInt()] = System.nanoTime() - header.getLong();
+                    controlDone.countDown();
+                } else if(message.length == bulkSize) {
+                    bulkEnd[0] = System.nanoTime();
+                    bulkDone.countDown();
+                }
+            }
+        });
+        connection.addOnDataReceivedListener(demultiplexer);
+        connection.addOnLinkListener(demultiplexer);
+        connection.addOnLinkListener(scheduler);
+        try {
+            connection.connect();
+
+            Thread bulk = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for(int i = 0; i < bulkCount; i++) {
+                        scheduler.send(LaneScheduler.LANE_BULK, new byte[bulkSize]);
+                    }
+                }
+            });
+            long start = System.nanoTime();
+            bulk.start();
+            long intervalNanos = TimeUnit.MILLISECONDS.toNanos(10);
+            for(int i = 0; i < controlCount; i++) {
+                long due = start + i * intervalNanos;
+                long wait;
+                while((wait = due - System.nanoTime()) > 0) {
+                    LockSupport.parkNanos(wait);
+                }
+                byte[] message = new byte[HEADER_SIZE];
+                ByteBuffer.wrap(message).putInt(i).putLong(due);
+                scheduler.send(LaneScheduler.LANE_CONTROL, message);
+            }
+
+            assertTrue("Control messages timed out", controlDone.await(RUN_TIMEOUT_SECONDS, TimeUnit.SECONDS));
+            assertTrue("Bulk messages timed out", bulkDone.await(RUN_TIMEOUT_SECONDS, TimeUnit.SECONDS));
+            long elapsedNanos = System.nanoTime() - start;
+            Arrays.sort(latencies);
+            report("lanes, control", HEADER_SIZE, 100, new Result(latencies, elapsedNanos));
+            Log.i(TAG, String.format("lanes, bulk: %.1f KB/s alongside control",
+                    (double) bulkCount * bulkSize / 1024 / ((bulkEnd[0] - start) / 1e9)));
+        } finally {
+            scheduler.close();
+            connection.disconnect();
+            server.close();
+        }
+    }
+
+    /**
+     * Sends numbered messages through a ResumableSession while the echo
+     * server drops the link every thousand messages.  The echo makes the
+     * session its own peer, so every message should come back exactly once
+     * and in order, and the time taken includes each reconnect.
+     */
+    public void testResumableSessionAcrossDrops() throws Exception {
+        final int count = 3000;
+        final int dropEvery = 1000;
+        final List<Integer> received = new ArrayList<>();
+        final CountDownLatch done = new CountDownLatch(count);
+
+        final LoopbackEchoServer server = new LoopbackEchoServer();
+        NioTcpIpConnection connection = new NioTcpIpConnection("Loopback", server.getAddress(), server.getPort());
+        ReconnectSupervisor supervisor = new ReconnectSupervisor(connection, new Backoff(50, 1000));
+        ResumableSession session = new ResumableSession(supervisor, new ResumableSession.OnMessageListener() {
+            @Override
+            public void onMessage(ResumableSession session, byte[] message) {
+                synchronized(received) {
+                    received.add(ByteBuffer.wrap(message).getInt());
+                }
+                done.countDown();
+            }
+        });
+        try {
+            session.start();
+            long start = System.nanoTime();
+            for(int i = 0; i < count; i++) {
+                session.send(ByteBuffer.allocate(4).putInt(i).array());
+                if(i > 0 && i % dropEvery == 0) {
+                    server.dropClients();
+                }
+                Thread.sleep(1);
+            }
+
+            assertTrue("Messages timed out", done.await(RUN_TIMEOUT_SECONDS, TimeUnit.SECONDS));
+            long elapsedNanos = System.nanoTime() - start;
+            synchronized(received) {
+                for(int i = 0; i < count; i++) {
+                    assertEquals("Message out of order", i, (int) received.get(i));
+                }
+            }
+            assertEquals(0, session.getReplayLostCount());
+            assertTrue("Link was never dropped", supervisor.getReconnectCount() >= (count - 1) / dropEvery);
+            Log.i(TAG, String.format("resumable session: %d messages in %.0fms, %d reconnects, %d replayed",
+                    count, elapsedNanos / 1e6, supervisor.getReconnectCount(), session.getReplayedCount()));
+        } finally {
+            session.close();
+            server.close();
+        }
+    }
+
+    /**
+     * Runs one connection against its own echo server and logs the results.
+     * @param nio           Whether to use a NioTcpIpConnection rather
+     *                      than a TcpIpConnection.
+     * @param messageSize   The size of each message, at least HEADER_SIZE.
+     * @param ratePerSecond Messages to send per second, or 0 to send as
+     *                      fast as possible.
+     * @param count         The number of messages to send.
+     */
+    private void runLoad(boolean nio, int messageSize, int ratePerSecond, int count) throws Exception {
+        LoopbackEchoServer server = new LoopbackEchoServer();
+        Connection connection = nio
+                ? new NioTcpIpConnection("Loopback", server.getAddress(), server.getPort())
+                : new TcpIpConnection("Loopback", server.getAddress(), server.getPort());
+        try {
+            report(nio ? "nio" : "tcp", messageSize, ratePerSecond,
+                    drive(connection, messageSize, ratePerSecond, count));
+        } finally {
+            server.close();
+        }
+    }
+
+    /**
+     * Connects, sends messages at a fixed rate, waits for all of their
+     * echoes, and disconnects.
+     * @return The sorted round-trip times and the time the run took.
+     */
+    private static Result drive(Connection connection, int messageSize, int ratePerSecond, int count) throws Exception {
+        EchoListener listener = new EchoListener(messageSize, count);
+        try {
+            connection.addOnDataReceivedListener(listener);
+            connection.connect();
+            awaitConnected(connection, listener, messageSize);
+
+            byte[] message = new byte[messageSize];
+            ByteBuffer header = ByteBuffer.wrap(message);
+            long intervalNanos = ratePerSecond > 0 ? TimeUnit.SECONDS.toNanos(1) / ratePerSecond : 0;
+            long start = System.nanoTime();
+            for(int i = 0; i < count; i++) {
+                long due = start + i * intervalNanos;
+                long wait;
+                while((wait = due - System.nanoTime()) > 0) {
+                    LockSupport.parkNanos(wait);
+                }
+                header.clear();
+                header.putInt(i).putLong(intervalNanos > 0 ? due : System.nanoTime());
+                connection.send(message.clone());
+            }
+
+            assertTrue("Timed out with " + listener.getReceived() + " of " + count + " echoes",
+                    listener.await(RUN_TIMEOUT_SECONDS, TimeUnit.SECONDS));
+            long[] latencies = listener.getLatencies();
+            Arrays.sort(latencies);
+            return new Result(latencies, listener.getLastArrival() - start);
+        } finally {
+            connection.disconnect();
+        }
+    }
+
+    private static void report(String label, int messageSize, int ratePerSecond, Result result) {
+        long[] latencies = result.mLatencies;
+        double seconds = result.mElapsedNanos / 1e9;
+        Log.i(TAG, String.format("%s, %d B x %d at %s: p50 %.3f ms, p99 %.3f ms, max %.3f ms, "
+                        + "%.0f msg/s, %.1f KB/s",
+                label, messageSize, latencies.length,
+                ratePerSecond > 0 ? ratePerSecond + "/s" : "max rate",
+                percentile(latencies, 0.50) / 1e6,
+                percentile(latencies, 0.99) / 1e6,
+                latencies[latencies.length - 1] / 1e6,
+                latencies.length / seconds,
+                (double) latencies.length * messageSize / 1024 / seconds));
+    }
+
+    /**
+     * Sends probe messages until one is echoed, since connect() may return
+     * before the socket is open.  Probes carry a negative sequence number,
+     * so their echoes are ignored by the listener.
+     */
+    private static void awaitConnected(Connection connection, EchoListener listener, int messageSize) throws InterruptedException {
+        byte[] probe = new byte[messageSize];
+        ByteBuffer.wrap(probe).putInt(-1);
+        long deadline = System.currentTimeMillis() + CONNECT_TIMEOUT_MILLIS;
+        while(!listener.isConnected()) {
+            if(System.currentTimeMillis() > deadline) {
+                fail("No echo from the loopback server after " + CONNECT_TIMEOUT_MILLIS + " ms");
+            }
+            connection.send(probe.clone());
+            Thread.sleep(50);
+        }
+    }
+
+    private static class Result {
+        final long[] mLatencies;
+        final long mElapsedNanos;
+
+        Result(long[] latencies, long elapsedNanos) {
+            mLatencies = latencies;
+            mElapsedNanos = elapsedNanos;
+        }
+    }
+
+    private static long percentile(long[] sorted, double fraction) {
+        int index = (int) Math.ceil(fraction * sorted.length) - 1;
+        return sorted[Math.max(0, Math.min(index, sorted.length - 1))];
+    }
+
+    /**
+     * Reassembles echoed messages, which may arrive split or merged, and
+     * records the round-trip time of each.
+     */
+    private static class EchoListener implements Connection.OnDataReceivedListener {
+
+        private final byte[] mMessage;
+        private final ByteBuffer mHeader;
+        private final long[] mLatencies;
+        private final CountDownLatch mDone = new CountDownLatch(1);
+        private int mFilled;
+        private volatile int mReceived;
+        private volatile boolean mConnected;
+        private volatile long mLastArrival;
+
+        EchoListener(int messageSize, int count) {
+            mMessage = new byte[Math.max(messageSize, HEADER_SIZE)];
+            mHeader = ByteBuffer.wrap(mMessage);
+            mLatencies = new long[count];
+        }
+
+        @Override
+        public void onDataReceived(Connection connection, byte[] data) {
+            long now = System.nanoTime();
+            mConnected = true;
+            int offset = 0;
+            while(offset < data.length) {
+                int count = Math.min(data.length - offset, mMessage.length - mFilled);
+                System.arraycopy(data, offset, mMessage, mFilled, count);
+                mFilled += count;
+                offset += count;
+                if(mFilled == mMessage.length) {
+                    mFilled = 0;
+                    complete(now);
+                }
+            }
+        }
+
+        private void complete(long now) {
+            int sequence = mHeader.getInt(0);
+            if(sequence < 0 || mReceived >= mLatencies.length) {
+                return;
+            }
+            mLatencies[mReceived] = now - mHeader.getLong(4);
+            mLastArrival = now;
+            mReceived++;
+            if(mReceived == mLatencies.length) {
+                mDone.countDown();
+            }
+        }
+
+        boolean isConnected() {
+            return mConnected;
+        }
+
+        int getReceived() {
+            return mReceived;
+        }
+
+        long getLastArrival() {
+            return mLastArrival;
+        }
+
+        boolean await(long timeout, TimeUnit unit) throws InterruptedException {
+            return mDone.await(timeout, unit);
+        }
+
+        long[] getLatencies() {
+            return Arrays.copyOf(mLatencies, mReceived);
+        }
+    }
+}
@@ -0,0 +1,117 @@
+package com.nicholastmosher.easycom;
+
+import android.test.AndroidTestCase;
+
+import com.nicholastmosher.easycom.connection.ConnectionPool;
+import com.nicholastmosher.easycom.connection.NioTcpIpConnection;
+import com.nicholastmosher.easycom.core.connection.Connection;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Checks that a ConnectionPool connects to each device once however many
+ * leases are taken on it, keeps it through a release and reacquire as a
+ * rotation does, and disconnects it once the last lease has lingered.
+ */
+public class ConnectionPoolTest extends AndroidTestCase {
+
+    private static final String KEY = "Loopback";
+    private static final long LINGER_MILLIS = 300;
+    private static final long TIMEOUT_MILLIS = 5000;
+
+    private LoopbackEchoServer mServer;
+    private ConnectionPool mPool;
+    private ConnectionPool.Factory mFactory;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mServer = new LoopbackEchoServer();
+        mPool = new ConnectionPool(LINGER_MILLIS);
+        mFactory = new ConnectionPool.Factory() {
+            @Override
+            public Connection create() {
+                return new NioTcpIpConnection(KEY, mServer.getAddress(), mServer.getPort());
+            }
+        };
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mServer.close();
+        super.tearDown();
+    }
+
+    public void testLeasesShareOneConnection() throws Exception {
+        ConnectionPool.Lease first = mPool.acquire(KEY, mFactory);
+        ConnectionPool.Lease second = mPool.acquire(KEY, mFactory);
+        assertSame(first.getConnection(), second.getConnection());
+        assertEquals(2, mPool.getLeaseCount(KEY));
+
+        //Both leases hear the echo of a single send.
+        final CountDownLatch received = new CountDownLatch(2);
+        Connection.OnDataReceivedListener listener = new Connection.OnDataReceivedListener() {
+            @Override
+            public void onDataReceived(Connection connection, byte[] data) {
+                received.countDown();
+            }
+        };
+        first.addOnDataReceivedListener(listener);
+        second.addOnDataReceivedListener(listener);
+        awaitLinkUp(first);
+        first.getConnection().send(new byte[] {1});
+        assertTrue("Echo timed out", received.await(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS));
+        assertEquals(1, mServer.getAcceptedCount());
+
+        first.release();
+        second.release();
+    }
+
+    public void testReacquireWithinLingerKeepsConnection() throws Exception {
+        ConnectionPool.Lease lease = mPool.acquire(KEY, mFactory);
+        awaitLinkUp(lease);
+        Connection connection = lease.getConnection();
+
+        //As an activity being rotated: release, then acquire again right away.
+        lease.release();
+        lease.release();
+        assertEquals(0, mPool.getLeaseCount(KEY));
+        lease = mPool.acquire(KEY, mFactory);
+        assertSame(connection, lease.getConnection());
+
+        Thread.sleep(LINGER_MILLIS * 2);
+        assertTrue(mPool.contains(KEY));
+        assertTrue(((NioTcpIpConnection) connection).isLinkUp());
+        assertEquals(1, mServer.getAcceptedCount());
+        lease.release();
+    }
+
+    public void testLastReleaseDisconnectsAfterLinger() throws Exception {
+        ConnectionPool.Lease lease = mPool.acquire(KEY, mFactory);
+        awaitLinkUp(lease);
+        NioTcpIpConnection connection = (NioTcpIpConnection) lease.getConnection();
+        lease.release();
+
+        long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+        while(connection.isLinkUp() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertFalse("Connection outlived its linger", connection.isLinkUp());
+        assertFalse(mPool.contains(KEY));
+
+        //The next lease starts a new connection.
+        lease = mPool.acquire(KEY, mFactory);
+        assertNotSame(connection, lease.getConnection());
+        lease.release();
+    }
+
+    private static void awaitLinkUp(ConnectionPool.Lease lease) throws InterruptedException {
+        NioTcpIpConnection connection = (NioTcpIpConnection) lease.getConnection();
+        long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+        while(!connection.isLinkUp()) {
+            assertTrue("Connect timed out", System.currentTimeMillis() < deadline);
+            Thread.sleep(10);
+        }
+    }
+}
@@ -0,0 +1,150 @@
+package com.nicholastmosher.easycom;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A TCP server on the loopback interface that stands in for a device: it
+ * writes every byte it receives straight back to the sender.  A response
+ * delay can be set to imitate a device that takes time to answer.
+ * Each client is served by its own thread.
+ */
+public class LoopbackEchoServer {
+
+    private static final int BUFFER_SIZE = 16 * 1024;
+
+    private final ServerSocket mServerSocket;
+    private final long mResponseDelayMillis;
+    private final CopyOnWriteArrayList<Socket> mClients = new CopyOnWriteArrayList<>();
+    private final AtomicInteger mAccepted = new AtomicInteger();
+
+    /**
+     * Starts an echo server that answers immediately.
+     * @throws IOException If no loopback port could be bound.
+     */
+    public LoopbackEchoServer() throws IOException {
+        this(0);
+    }
+
+    /**
+     * Starts an echo server.
+     * @param responseDelayMillis How long to wait before echoing each
+     *                            chunk of bytes received.
+     * @throws IOException If no loopback port could be bound.
+     */
+    public LoopbackEchoServer(long responseDelayMillis) throws IOException {
+        mResponseDelayMillis = responseDelayMillis;
+        mServerSocket = new ServerSocket(0, 8, InetAddress.getByName("127.0.0.1"));
+        Thread acceptThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                accept();
+            }
+        }, "LoopbackEchoServer");
+        acceptThread.setDaemon(true);
+        acceptThread.start();
+    }
+
+    /**
+     * Returns the address to connect to.
+     * @return The loopback address.
+     */
+    public String getAddress() {
+        return mServerSocket.getInetAddress().getHostAddress();
+    }
+
+    /**
+     * Returns the port to connect to.
+     * @return The port the server was bound to.
+     */
+    public int getPort() {
+        return mServerSocket.getLocalPort();
+    }
+
+    /**
+     * Returns the number of clients accepted since the server started.
+     * @return The number of connections made to the server.
+     */
+    public int getAcceptedCount() {
+        return mAccepted.get();
+    }
+
+    /**
+     * Stops accepting clients and disconnects every connected client.
+     */
+    public void close() {
+        try {
+            mServerSocket.close();
+        } catch(IOException e) {
+            e.printStackTrace();
+        }
+        dropClients();
+    }
+
+    /**
+     * Disconnects every connected client, as a dropped link would, but
+     * keeps accepting new ones.
+     */
+    public void dropClients() {
+        for(Socket client : mClients) {
+            try {
+                client.close();
+            } catch(IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    private void accept() {
+        while(!mServerSocket.isClosed()) {
+            final Socket client;
+            try {
+                client = mServerSocket.accept();
+                client.setTcpNoDelay(true);
+            } catch(IOException e) {
+                //Closed.
+                return;
+            }
+            mClients.add(client);
+            mAccepted.incrementAndGet();
+            Thread echoThread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    echo(client);
+                }
+            }, "LoopbackEchoServer-" + client.getPort());
+            echoThread.setDaemon(true);
+            echoThread.start();
+        }
+    }
+
+    private void echo(Socket client) {
+        byte[] buffer = new byte[BUFFER_SIZE];
+        try {
+            InputStream in = client.getInputStream();
+            OutputStream out = client.getOutputStream();
+            int count;
+            while((count = in.read(buffer)) >= 0) {
+                if(mResponseDelayMillis > 0) {
+                    Thread.sleep(mResponseDelayMillis);
+                }
+                out.write(buffer, 0, count);
+            }
+        } catch(IOException | InterruptedException e) {
+            //The client disconnected or the server was closed.
+        } finally {
+            mClients.remove(client);
+            try {
+                client.close();
+            } catch(IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+}
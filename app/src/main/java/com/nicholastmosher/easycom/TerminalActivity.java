@@ -1,17 +1,42 @@
 package com.nicholastmosher.easycom;
 
+import android.content.Context;
+import android.content.Intent;
 import android.os.Bundle;
 import android.support.v4.content.ContextCompat;
 import android.support.v7.app.AppCompatActivity;
+import android.support.v7.widget.LinearLayoutManager;
+import android.support.v7.widget.RecyclerView;
 import android.support.v7.widget.Toolbar;
+import android.view.LayoutInflater;
+import android.view.Menu;
+import android.view.MenuItem;
 import android.view.View;
+import android.view.ViewGroup;
 import android.widget.Button;
 import android.widget.EditText;
 import android.widget.TextView;
+import android.widget.Toast;
 
-import com.nicholastmosher.easycom.core.connection.BluetoothConnection;
+import java.io.File;
+import java.io.IOException;
+import java.util.UUID;
+import java.util.concurrent.Executor;
+
+import com.nicholastmosher.easycom.connection.ConnectionPool;
+import com.nicholastmosher.easycom.connection.NioEngine;
+import com.nicholastmosher.easycom.connection.NioTcpIpConnection;
+import com.nicholastmosher.easycom.connection.SendQueue;
 import com.nicholastmosher.easycom.core.connection.Connection;
-import com.nicholastmosher.easycom.core.connection.TcpIpConnection;
+import com.nicholastmosher.easycom.data.IoExecutor;
+import com.nicholastmosher.easycom.terminal.ByteLog;
+import com.nicholastmosher.easycom.terminal.ByteRowView;
+import com.nicholastmosher.easycom.terminal.FrameCoalescer;
+import com.nicholastmosher.easycom.terminal.LineSource;
+import com.nicholastmosher.easycom.terminal.ScrollbackBuffer;
+import com.nicholastmosher.easycom.terminal.SessionCapture;
+import com.nicholastmosher.easycom.terminal.SpscByteQueue;
+import com.nicholastmosher.easycom.terminal.StreamDecoder;
 
 /**
  * Created by Nick Mosher on 10/19/15.
@@ -19,7 +44,95 @@ import com.nicholastmosher.easycom.core.connection.TcpIpConnection;
  */
 public class TerminalActivity extends AppCompatActivity {
 
-    private String mDisplayText = "";
+    public static final String EXTRA_CONNECTION_ID = "com.nicholastmosher.easycom.CONNECTION_ID";
+    public static final String EXTRA_CONNECTION_NAME = "com.nicholastmosher.easycom.CONNECTION_NAME";
+    public static final String EXTRA_CONNECTION_HOST = "com.nicholastmosher.easycom.CONNECTION_HOST";
+    public static final String EXTRA_CONNECTION_PORT = "com.nicholastmosher.easycom.CONNECTION_PORT";
+
+    private static final int RECEIVE_QUEUE_BYTES = 1 << 16;
+
+    /**
+     * Keeps the connection's own buffer small, so that input waiting on a
+     * slow link backs up into mSendQueue, where its limits refuse it,
+     * instead of piling up unseen behind the socket.
+     */
+    private static final int LINK_HIGH_WATER = 4 * 1024;
+
+    /**
+     * Bytes received on the connection thread wait here until the next frame.
+     */
+    private final SpscByteQueue mReceiveQueue = new SpscByteQueue(RECEIVE_QUEUE_BYTES);
+    private final byte[] mReceiveScratch = new byte[RECEIVE_QUEUE_BYTES];
+    private final StreamDecoder mDecoder = new StreamDecoder();
+    private long mReportedDropped;
+    private FrameCoalescer mFrameCoalescer;
+
+    /**
+     * Set on the connection thread when the link comes back up, so that the
+     * UI thread resets the decoder before it decodes the new stream.
+     */
+    private volatile boolean mLinkRestarted;
+    private final NioTcpIpConnection.OnLinkListener mLinkListener = new NioTcpIpConnection.OnLinkListener() {
+        @Override
+        public void onLinkUp(NioTcpIpConnection connection) {
+            mLinkRestarted = true;
+            mFrameCoalescer.request();
+        }
+
+        @Override
+        public void onLinkDown(NioTcpIpConnection connection, IOException cause) {
+        }
+    };
+
+    /**
+     * The capture both directions are recorded to while recording is on.
+     * Set and cleared on the UI thread, read on the connection thread too.
+     */
+    private volatile SessionCapture mCapture;
+
+    /**
+     * Writes and closes the capture, in order, so that neither the UI
+     * thread nor the connection thread (which serves every connection)
+     * waits on storage.
+     */
+    private final Executor mCaptureExecutor = IoExecutor.newSerialExecutor();
+
+    /**
+     * Holds typed input while the link is slower than the user, up to its
+     * limits; past them, input is refused rather than blocking the UI thread.
+     */
+    private SendQueue mSendQueue;
+
+    /**
+     * This screen's hold on the shared connection, which outlives the
+     * activity across rotations and is reconnected whenever it drops.
+     */
+    private ConnectionPool.Lease mLease;
+
+    private ScrollbackBuffer mScrollback;
+    private ByteLog mByteLog;
+    private LineSource mLineSource;
+    private ScrollbackAdapter mScrollbackAdapter;
+    private RecyclerView mRecycler;
+    private LinearLayoutManager mLayoutManager;
+
+    /**
+     * Returns an Intent that opens a terminal on a TCP/IP device.
+     * @param context The context to open the terminal from.
+     * @param id      The device's UUID in the ConnectionModel, which keys its shared connection.
+     * @param name    The device's name.
+     * @param host    The host the device listens on.
+     * @param port    The port the device listens on.
+     * @return An Intent for {@link Context#startActivity(Intent)}.
+     */
+    public static Intent newIntent(Context context, UUID id, String name, String host, int port) {
+        Intent intent = new Intent(context, TerminalActivity.class);
+        intent.putExtra(EXTRA_CONNECTION_ID, id.toString());
+        intent.putExtra(EXTRA_CONNECTION_NAME, name);
+        intent.putExtra(EXTRA_CONNECTION_HOST, host);
+        intent.putExtra(EXTRA_CONNECTION_PORT, port);
+        return intent;
+    }
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
@@ -34,23 +147,59 @@ public class TerminalActivity extends AppCompatActivity {
 
         final EditText input = (EditText) findViewById(R.id.terminal_command);
         Button send = (Button) findViewById(R.id.terminal_send);
-        final TextView display = (TextView) findViewById(R.id.terminal_text);
 
         send.setText("Send");
-        display.setText(mDisplayText);
 
-//        final Connection connection = new BluetoothConnection("TECBot", "00:13:12:25:72:72");
-//        final Connection connection = new TcpIpConnection("Obsidyn", "obsidyn.student.rit.edu", 1111);
-        final Connection connection = new TcpIpConnection("Obsidyn", "129.21.105.144", 1111);
+        //Initialize the scrollback and raw byte log, and the recycler that displays them.
+        mScrollback = new ScrollbackBuffer(getResources().getInteger(R.integer.terminal_scrollback_lines));
+        mByteLog = new ByteLog(getResources().getInteger(R.integer.terminal_byte_log_bytes));
+        mLineSource = mScrollback;
+        mScrollbackAdapter = new ScrollbackAdapter();
+        mLayoutManager = new LinearLayoutManager(this);
+        mLayoutManager.setStackFromEnd(true);
+        mRecycler = (RecyclerView) findViewById(R.id.terminal_recycler);
+        mRecycler.setLayoutManager(mLayoutManager);
+        mRecycler.setAdapter(mScrollbackAdapter);
+        mRecycler.setItemAnimator(null);
+
+        //Drain received bytes into the scrollback at most once per frame.
+        mFrameCoalescer = new FrameCoalescer(new FrameCoalescer.OnFrameListener() {
+            @Override
+            public void onFrame() {
+                drainReceived();
+            }
+        });
+
+        //The device this terminal talks to comes from whoever opened it.
+        Intent intent = getIntent();
+        String id = intent.getStringExtra(EXTRA_CONNECTION_ID);
+        final String name = intent.getStringExtra(EXTRA_CONNECTION_NAME);
+        final String host = intent.getStringExtra(EXTRA_CONNECTION_HOST);
+        final int port = intent.getIntExtra(EXTRA_CONNECTION_PORT, -1);
+        if(id == null || host == null || port < 0) {
+            Toast.makeText(this, R.string.terminal_no_connection, Toast.LENGTH_SHORT).show();
+            finish();
+            return;
+        }
+
+        //Screens open on the same device share its connection, and no other.
+        mLease = ConnectionPool.getDefault().acquire(id, new ConnectionPool.Factory() {
+            @Override
+            public Connection create() {
+                return new NioTcpIpConnection(name, host, port, NioEngine.getDefault(), LINK_HIGH_WATER);
+            }
+        });
 
-        connection.connect();
-        connection.addOnDataReceivedListener(new Connection.OnDataReceivedListener() {
+        if(mLease.getConnection() instanceof NioTcpIpConnection) {
+            ((NioTcpIpConnection) mLease.getConnection()).addOnLinkListener(mLinkListener);
+        }
+        mSendQueue = new SendQueue(mLease.getConnection(), SendQueue.Policy.BLOCK);
+        mLease.addOnDataReceivedListener(new Connection.OnDataReceivedListener() {
             @Override
             public void onDataReceived(Connection connection, byte[] data) {
-                String in = new String(data);
-                System.out.println("Received " + in);
-                mDisplayText += in;
-                display.setText(mDisplayText);
+                record(SessionCapture.Direction.RECEIVED, data);
+                mReceiveQueue.offer(data, 0, data.length);
+                mFrameCoalescer.request();
             }
         });
 
@@ -58,9 +207,247 @@ public class TerminalActivity extends AppCompatActivity {
             @Override
             public void onClick(View v) {
                 String toSend = input.getText().toString();
-                mDisplayText += ("\nAndroid> " + toSend + "\n");
-                if(toSend != null && !toSend.equals("")) connection.send(toSend.getBytes());
+                appendText("\nAndroid> " + toSend + "\n");
+                if(toSend != null && !toSend.equals("")) {
+                    byte[] bytes = toSend.getBytes();
+                    if(mSendQueue.offer(bytes)) {
+                        record(SessionCapture.Direction.SENT, bytes);
+                    } else {
+                        appendText("[" + getString(R.string.terminal_send_queue_full) + "]\n");
+                    }
+                }
             }
         });
     }
+
+    @Override
+    public boolean onCreateOptionsMenu(Menu menu) {
+        getMenuInflater().inflate(R.menu.terminal, menu);
+        return true;
+    }
+
+    /**
+     * Switches between the text view of the scrollback and the
+     * ascii, hex, and binary views of the raw byte log, and turns
+     * session recording on and off.
+     */
+    @Override
+    public boolean onOptionsItemSelected(MenuItem item) {
+        if(item.getItemId() == R.id.terminal_record) {
+            item.setChecked(setRecording(!item.isChecked()));
+            return true;
+        }
+
+        LineSource source;
+        switch(item.getItemId()) {
+            case R.id.terminal_view_text:
+                source = mScrollback;
+                break;
+            case R.id.terminal_view_ascii:
+                source = new ByteRowView(mByteLog, ByteRowView.Format.ASCII);
+                break;
+            case R.id.terminal_view_hex:
+                source = new ByteRowView(mByteLog, ByteRowView.Format.HEX);
+                break;
+            case R.id.terminal_view_binary:
+                source = new ByteRowView(mByteLog, ByteRowView.Format.BINARY);
+                break;
+            default:
+                return super.onOptionsItemSelected(item);
+        }
+        item.setChecked(true);
+        mLineSource = source;
+        mScrollbackAdapter.reset();
+        mRecycler.scrollToPosition(Math.max(0, mScrollbackAdapter.getItemCount() - 1));
+        return true;
+    }
+
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+        if(mLease == null) {
+            //Closed before a connection was opened.
+            return;
+        }
+        if(mLease.getConnection() instanceof NioTcpIpConnection) {
+            ((NioTcpIpConnection) mLease.getConnection()).removeOnLinkListener(mLinkListener);
+        }
+        mFrameCoalescer.cancel();
+        mSendQueue.close();
+        mLease.release();
+        setRecording(false);
+    }
+
+    /**
+     * Starts recording to a new capture in the files directory, or stops
+     * the current recording.
+     * @param recording Whether the session should be recorded.
+     * @return Whether the session is now being recorded.
+     */
+    private boolean setRecording(boolean recording) {
+        if(recording && mCapture == null) {
+            try {
+                mCapture = SessionCapture.create(new File(getFilesDir(), "captures"));
+            } catch(IOException e) {
+                e.printStackTrace();
+                appendText("\n[" + getString(R.string.terminal_record_failed) + "]\n");
+            }
+        } else if(!recording && mCapture != null) {
+            final SessionCapture capture = mCapture;
+            mCapture = null;
+            //Closed after the records already handed to the executor are written.
+            mCaptureExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    capture.close();
+                }
+            });
+        }
+        return mCapture != null;
+    }
+
+    /**
+     * Records data to the session capture, if recording is on.  The data
+     * is stamped with the current time and written on the capture executor.
+     * May be called from any thread; the array must not be changed afterwards.
+     */
+    private void record(final SessionCapture.Direction direction, final byte[] data) {
+        final SessionCapture capture = mCapture;
+        if(capture == null) return;
+        final long timestamp = System.currentTimeMillis();
+        mCaptureExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    capture.record(direction, timestamp, data, 0, data.length);
+                } catch(IOException e) {
+                    //A new segment couldn't be created.
+                    e.printStackTrace();
+                }
+            }
+        });
+    }
+
+    /**
+     * Moves everything received since the last frame into the byte log and
+     * the scrollback as a single display update.  Bytes are decoded directly
+     * into the scrollback without building intermediate Strings.  Runs on
+     * the UI thread.
+     */
+    private void drainReceived() {
+        boolean atBottom = isAtBottom();
+        int count;
+        if(mLinkRestarted) {
+            //A character cut off by the old link would garble the new one.
+            mLinkRestarted = false;
+            mDecoder.reset();
+        }
+        while((count = mReceiveQueue.poll(mReceiveScratch, 0, mReceiveScratch.length)) > 0) {
+            mByteLog.append(mReceiveScratch, 0, count);
+            mDecoder.decode(mReceiveScratch, 0, count, mScrollback);
+        }
+
+        long dropped = mReceiveQueue.getDropped();
+        if(dropped != mReportedDropped) {
+            long lost = dropped - mReportedDropped;
+            String notice = getResources().getQuantityString(R.plurals.terminal_bytes_dropped,
+                    (int) Math.min(lost, Integer.MAX_VALUE), lost);
+            mScrollback.append("\n[" + notice + "]\n");
+            mReportedDropped = dropped;
+        }
+        showNewLines(atBottom);
+    }
+
+    /**
+     * Appends text to the scrollback and updates the display.
+     * Must be called on the UI thread.
+     * @param text The text to append.
+     */
+    private void appendText(CharSequence text) {
+        boolean atBottom = isAtBottom();
+        mScrollback.append(text);
+        showNewLines(atBottom);
+    }
+
+    private boolean isAtBottom() {
+        return mLayoutManager.findLastVisibleItemPosition() >= mScrollbackAdapter.getItemCount() - 1;
+    }
+
+    /**
+     * Updates the display after the scrollback changed, following the
+     * newest output if the user was already scrolled to the bottom.
+     * @param atBottom Whether the user was at the bottom before the change.
+     */
+    private void showNewLines(boolean atBottom) {
+        mScrollbackAdapter.refresh();
+        if(atBottom) {
+            mRecycler.scrollToPosition(mScrollbackAdapter.getItemCount() - 1);
+        }
+    }
+
+    /**
+     * Binds lines of the current LineSource to views.  Only the lines that
+     * are on screen are ever bound, so the cost of an update doesn't depend
+     * on how much scrollback or raw data is held.
+     */
+    private class ScrollbackAdapter extends RecyclerView.Adapter<ScrollbackAdapter.ViewHolder> {
+
+        public class ViewHolder extends RecyclerView.ViewHolder {
+
+            public TextView mLine;
+
+            public ViewHolder(TextView line) {
+                super(line);
+                mLine = line;
+            }
+        }
+
+        /** The first line number and line count the recycler was last told about. */
+        private long mShownFirstLine = mLineSource.getFirstLineNumber();
+        private int mShownCount = mLineSource.getLineCount();
+
+        /**
+         * Rebinds everything, for when the LineSource has been replaced.
+         */
+        public void reset() {
+            mShownFirstLine = mLineSource.getFirstLineNumber();
+            mShownCount = mLineSource.getLineCount();
+            notifyDataSetChanged();
+        }
+
+        /**
+         * Tells the recycler which lines were evicted, changed, and added
+         * since the last refresh.  Only the last line shown previously can
+         * have changed, since every earlier line was already finished.
+         */
+        public void refresh() {
+            int evicted = (int) Math.min(mLineSource.getFirstLineNumber() - mShownFirstLine, mShownCount);
+            int kept = mShownCount - evicted;
+            int added = mLineSource.getLineCount() - kept;
+
+            mShownFirstLine = mLineSource.getFirstLineNumber();
+            mShownCount = mLineSource.getLineCount();
+
+            if(evicted > 0) notifyItemRangeRemoved(0, evicted);
+            if(kept > 0) notifyItemChanged(kept - 1);
+            if(added > 0) notifyItemRangeInserted(kept, added);
+        }
+
+        @Override
+        public int getItemCount() {
+            return mShownCount;
+        }
+
+        @Override
+        public ViewHolder onCreateViewHolder(ViewGroup parent, int viewType) {
+            TextView line = (TextView) LayoutInflater.from(parent.getContext())
+                    .inflate(R.layout.element_terminal_line, parent, false);
+            return new ViewHolder(line);
+        }
+
+        @Override
+        public void onBindViewHolder(ViewHolder holder, int position) {
+            holder.mLine.setText(mLineSource.getLine(position));
+        }
+    }
 }
@@ -0,0 +1,69 @@
+package com.nicholastmosher.easycom.connection;
+
+import java.util.Random;
+
+/**
+ * Spaces out retries with jittered exponential backoff: each delay is
+ * drawn at random from the upper half of a ceiling that doubles with
+ * every attempt, up to a maximum.  The jitter keeps a dozen robots that
+ * lost the same access point from all reconnecting at the same instant.
+ *
+ * A Backoff is thread safe.
+ */
+public class Backoff {
+
+    public static final long DEFAULT_BASE_MILLIS = 250;
+    public static final long DEFAULT_MAX_MILLIS = 30 * 1000;
+
+    private final long mBaseMillis;
+    private final long mMaxMillis;
+    private final Random mRandom = new Random();
+    private int mAttempts;
+
+    public Backoff() {
+        this(DEFAULT_BASE_MILLIS, DEFAULT_MAX_MILLIS);
+    }
+
+    /**
+     * Constructs a Backoff.
+     * @param baseMillis The ceiling of the first delay.
+     * @param maxMillis  The largest the ceiling grows.
+     */
+    public Backoff(long baseMillis, long maxMillis) {
+        if(baseMillis <= 0 || maxMillis < baseMillis) {
+            throw new IllegalArgumentException("Backoff needs 0 < base <= max");
+        }
+        mBaseMillis = baseMillis;
+        mMaxMillis = maxMillis;
+    }
+
+    /**
+     * Returns how long to wait before the next attempt, and counts the attempt.
+     * @return The delay in milliseconds.
+     */
+    public synchronized long nextDelayMillis() {
+        long ceiling = mMaxMillis;
+        //Past about 2^30 times the base, the ceiling is at its maximum anyway.
+        if(mAttempts < 30) {
+            ceiling = Math.min(mMaxMillis, mBaseMillis << mAttempts);
+        }
+        mAttempts++;
+        long half = ceiling / 2;
+        return half + (long) (mRandom.nextDouble() * (ceiling - half));
+    }
+
+    /**
+     * Starts over from the base delay, after an attempt succeeded.
+     */
+    public synchronized void reset() {
+        mAttempts = 0;
+    }
+
+    /**
+     * Returns the number of attempts since the last reset.
+     * @return The number of attempts.
+     */
+    public synchronized int getAttempts() {
+        return mAttempts;
+    }
+}
@@ -0,0 +1,242 @@
+package com.nicholastmosher.easycom.connection;
+
+import com.nicholastmosher.easycom.core.connection.Connection;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps one live Connection per device for the whole process, shared by
+ * every screen that talks to it, so that rotating or reopening a screen
+ * reuses the link instead of connecting from scratch and leaking the old
+ * socket.
+ *
+ * Screens {@link #acquire(String, Factory) acquire} a {@link Lease} on a
+ * key, usually the device's UUID in the ConnectionModel, and release it
+ * when they're destroyed.  The first lease on a key creates and connects
+ * the Connection; a NioTcpIpConnection is kept connected by a
+ * ReconnectSupervisor.  When the last lease is released the Connection
+ * lingers for a moment before it's disconnected, long enough for a rotated
+ * screen to take a new lease on it.
+ *
+ * Connections can't have listeners removed, so listeners are added through
+ * a Lease instead, and are dropped from the Connection when it's released.
+ *
+ * A ConnectionPool is thread safe.
+ */
+public class ConnectionPool {
+
+    public static final long DEFAULT_LINGER_MILLIS = 5000;
+
+    private static ConnectionPool sDefault;
+
+    /**
+     * Creates the Connection for a key the first time it's acquired.
+     */
+    public interface Factory {
+        Connection create();
+    }
+
+    private final long mLingerMillis;
+    private final Map<String, Entry> mEntries = new HashMap<>();
+
+    /**
+     * A shared Connection and everything the pool keeps with it.
+     */
+    private class Entry implements Connection.OnDataReceivedListener {
+        final String mKey;
+        final Connection mConnection;
+        final ReconnectSupervisor mSupervisor;
+        final CopyOnWriteArrayList<Lease> mLeases = new CopyOnWriteArrayList<>();
+        ScheduledFuture<?> mLinger;
+
+        Entry(String key, Connection connection) {
+            mKey = key;
+            mConnection = connection;
+            mSupervisor = connection instanceof NioTcpIpConnection
+                    ? new ReconnectSupervisor((NioTcpIpConnection) connection)
+                    : null;
+        }
+
+        void open() {
+            mConnection.addOnDataReceivedListener(this);
+            if(mSupervisor != null) {
+                mSupervisor.start();
+            } else {
+                mConnection.connect();
+            }
+        }
+
+        void close() {
+            if(mSupervisor != null) {
+                mSupervisor.close();
+            } else {
+                mConnection.disconnect();
+            }
+        }
+
+        @Override
+        public void onDataReceived(Connection connection, byte[] data) {
+            for(Lease lease : mLeases) {
+                for(Connection.OnDataReceivedListener listener : lease.mListeners) {
+                    listener.onDataReceived(connection, data);
+                }
+            }
+        }
+    }
+
+    /**
+     * One holder's claim on a shared Connection.  The Connection stays
+     * connected until every Lease on it has been released.
+     */
+    public class Lease {
+
+        private final Entry mEntry;
+        private final CopyOnWriteArrayList<Connection.OnDataReceivedListener> mListeners = new CopyOnWriteArrayList<>();
+        private boolean mReleased;
+
+        private Lease(Entry entry) {
+            mEntry = entry;
+        }
+
+        /**
+         * Returns the shared Connection.  Don't add listeners to it
+         * directly; use {@link #addOnDataReceivedListener} instead.
+         * @return The Connection this Lease is on.
+         */
+        public Connection getConnection() {
+            return mEntry.mConnection;
+        }
+
+        /**
+         * Returns the supervisor keeping the Connection connected.
+         * @return The ReconnectSupervisor, or null if the Connection
+         *         isn't a NioTcpIpConnection.
+         */
+        public ReconnectSupervisor getSupervisor() {
+            return mEntry.mSupervisor;
+        }
+
+        /**
+         * Adds a listener for data received on the Connection until this
+         * Lease is released.
+         * @param listener The listener to add.
+         */
+        public void addOnDataReceivedListener(Connection.OnDataReceivedListener listener) {
+            mListeners.add(listener);
+        }
+
+        /**
+         * Gives up this Lease and removes its listeners.  Releasing a
+         * Lease more than once does nothing.
+         */
+        public void release() {
+            ConnectionPool.this.release(this);
+        }
+    }
+
+    /**
+     * Constructs a ConnectionPool.
+     * @param lingerMillis How long a Connection with no leases stays
+     *                     connected before it's disconnected.
+     */
+    public ConnectionPool(long lingerMillis) {
+        mLingerMillis = lingerMillis;
+    }
+
+    /**
+     * Returns the pool shared by the whole process.
+     * @return The default ConnectionPool.
+     */
+    public static synchronized ConnectionPool getDefault() {
+        if(sDefault == null) {
+            sDefault = new ConnectionPool(DEFAULT_LINGER_MILLIS);
+        }
+        return sDefault;
+    }
+
+    /**
+     * Takes a lease on the Connection for a key, creating and connecting
+     * it if no one holds it and it isn't lingering.
+     * @param key     Identifies the device, such as its UUID in the ConnectionModel.
+     * @param factory Creates the Connection if the key has none.
+     * @return A Lease to release when the Connection is no longer needed.
+     */
+    public Lease acquire(String key, Factory factory) {
+        Entry entry;
+        Lease lease;
+        boolean created = false;
+        synchronized(this) {
+            entry = mEntries.get(key);
+            if(entry == null) {
+                entry = new Entry(key, factory.create());
+                mEntries.put(key, entry);
+                created = true;
+            }
+            if(entry.mLinger != null) {
+                entry.mLinger.cancel(false);
+                entry.mLinger = null;
+            }
+            lease = new Lease(entry);
+            entry.mLeases.add(lease);
+        }
+        if(created) {
+            entry.open();
+        }
+        return lease;
+    }
+
+    /**
+     * Returns the number of unreleased leases on a key.
+     * @param key The key to count.
+     * @return The number of leases held.
+     */
+    public synchronized int getLeaseCount(String key) {
+        Entry entry = mEntries.get(key);
+        return entry == null ? 0 : entry.mLeases.size();
+    }
+
+    /**
+     * Returns whether the pool holds a Connection for a key, leased or lingering.
+     * @param key The key to look up.
+     * @return True if the key has a Connection.
+     */
+    public synchronized boolean contains(String key) {
+        return mEntries.containsKey(key);
+    }
+
+    private synchronized void release(Lease lease) {
+        if(lease.mReleased) {
+            return;
+        }
+        lease.mReleased = true;
+        lease.mListeners.clear();
+        final Entry entry = lease.mEntry;
+        entry.mLeases.remove(lease);
+        if(!entry.mLeases.isEmpty()) {
+            return;
+        }
+        entry.mLinger = ReconnectSupervisor.getTimer().schedule(new Runnable() {
+            @Override
+            public void run() {
+                expire(entry);
+            }
+        }, mLingerMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Disconnects an entry whose linger ran out without a new lease.
+     */
+    private void expire(Entry entry) {
+        synchronized(this) {
+            if(!entry.mLeases.isEmpty() || mEntries.get(entry.mKey) != entry) {
+                return;
+            }
+            mEntries.remove(entry.mKey);
+        }
+        entry.close();
+    }
+}
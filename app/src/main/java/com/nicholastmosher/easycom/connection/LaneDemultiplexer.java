@@ -0,0 +1,226 @@
+package com.nicholastmosher.easycom.connection;
+
+import com.nicholastmosher.easycom.core.connection.Connection;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Reads the chunks written by a {@link LaneScheduler} back into whole
+ * messages, one lane at a time, as they arrive on a Connection.  Chunks
+ * may be split or merged by the link in any way.
+ *
+ * Chunks on lanes beyond the lane count, and messages that grow past the
+ * maximum message size, are skipped and counted rather than buffered, so
+ * a corrupt stream can't exhaust memory.
+ *
+ * A LaneDemultiplexer keeps the state of one stream, so it must be
+ * attached to a single Connection, whose listeners are called on one
+ * thread at a time.  A reconnect starts a new stream, so the partial
+ * messages of the old one must be dropped with {@link #reset()}.
+ *
+ * Attached to a NioTcpIpConnection as an OnLinkListener as well, it does
+ * this itself, and once the link has dropped it also distrusts every lane
+ * until the sender's SYNC chunk for it arrives; chunks of the old stream
+ * still queued ahead of the SYNC are skipped, so a message cut off by the
+ * drop is never delivered as if it were whole.  The sending LaneScheduler
+ * must then be attached to its NioTcpIpConnection as an OnLinkListener too,
+ * or nothing after the first drop will be delivered.
+ */
+public class LaneDemultiplexer implements Connection.OnDataReceivedListener,
+        NioTcpIpConnection.OnLinkListener {
+
+    public static final int DEFAULT_MAX_MESSAGE_SIZE = 16 * 1024 * 1024;
+
+    /**
+     * Receives each message once its last chunk has arrived.
+     */
+    public interface OnMessageListener {
+        void onMessage(Connection connection, int lane, byte[] message);
+    }
+
+    private final OnMessageListener mListener;
+    private final int mMaxMessageSize;
+    private final byte[][] mMessages;
+    private final int[] mLengths;
+    private final boolean[] mOverflowed;
+    /** Cleared for every lane when the link drops, until the lane's SYNC arrives. */
+    private final boolean[] mSynced;
+
+    private final byte[] mHeader = new byte[LaneScheduler.HEADER_LENGTH];
+    private int mHeaderFilled;
+    /** The chunk being read, once its header is complete. */
+    private int mLane = -1;
+    private boolean mLast;
+    /** Whether the chunk is a SYNC: empty, and not the last of a message. */
+    private boolean mSync;
+    private int mRemaining;
+
+    private long mMessagesReceived;
+    private long mDiscarded;
+
+    /**
+     * Constructs a LaneDemultiplexer for the default lanes of a LaneScheduler.
+     * @param listener Receives each message.
+     */
+    public LaneDemultiplexer(OnMessageListener listener) {
+        this(listener, LaneScheduler.LANE_BULK + 1, DEFAULT_MAX_MESSAGE_SIZE);
+    }
+
+    /**
+     * Constructs a LaneDemultiplexer.
+     * @param listener       Receives each message.
+     * @param laneCount      The number of lanes the sender uses.
+     * @param maxMessageSize The largest message that will be put back together.
+     */
+    public LaneDemultiplexer(OnMessageListener listener, int laneCount, int maxMessageSize) {
+        if(laneCount <= 0 || laneCount > LaneScheduler.MAX_LANES) {
+            throw new IllegalArgumentException("Lane count must be from 1 to " + LaneScheduler.MAX_LANES);
+        }
+        mListener = listener;
+        mMaxMessageSize = maxMessageSize;
+        mMessages = new byte[laneCount][];
+        mLengths = new int[laneCount];
+        mOverflowed = new boolean[laneCount];
+        mSynced = new boolean[laneCount];
+        Arrays.fill(mSynced, true);
+        for(int i = 0; i < laneCount; i++) {
+            mMessages[i] = new byte[LaneScheduler.DEFAULT_CHUNK_SIZE];
+        }
+    }
+
+    @Override
+    public void onDataReceived(Connection connection, byte[] data) {
+        int offset = 0;
+        while(offset < data.length) {
+            if(mLane < 0) {
+                //Still reading a chunk header.
+                mHeader[mHeaderFilled++] = data[offset++];
+                if(mHeaderFilled == mHeader.length) {
+                    mHeaderFilled = 0;
+                    mLane = mHeader[0] & ~LaneScheduler.LAST & 0xFF;
+                    mLast = (mHeader[0] & LaneScheduler.LAST) != 0;
+                    mRemaining = ((mHeader[1] & 0xFF) << 8) | (mHeader[2] & 0xFF);
+                    mSync = !mLast && mRemaining == 0;
+                    if(mRemaining == 0) {
+                        endChunk(connection);
+                    }
+                }
+                continue;
+            }
+
+            int count = Math.min(mRemaining, data.length - offset);
+            append(data, offset, count);
+            offset += count;
+            mRemaining -= count;
+            if(mRemaining == 0) {
+                endChunk(connection);
+            }
+        }
+    }
+
+    @Override
+    public void onLinkUp(NioTcpIpConnection connection) {
+        reset();
+    }
+
+    @Override
+    public void onLinkDown(NioTcpIpConnection connection, IOException cause) {
+        reset();
+        Arrays.fill(mSynced, false);
+    }
+
+    /**
+     * Drops the chunk being read and every partial message, for when the
+     * stream restarts.  Chunks already read into a partial message are
+     * counted as discarded.  Call it on the thread that receives data.
+     */
+    public void reset() {
+        mHeaderFilled = 0;
+        mLane = -1;
+        mRemaining = 0;
+        for(int i = 0; i < mMessages.length; i++) {
+            if(mLengths[i] > 0 || mOverflowed[i]) {
+                mDiscarded++;
+            }
+            mLengths[i] = 0;
+            mOverflowed[i] = false;
+        }
+    }
+
+    /**
+     * Returns the number of whole messages delivered.
+     * @return The number of messages received.
+     */
+    public long getMessagesReceived() {
+        return mMessagesReceived;
+    }
+
+    /**
+     * Returns the number of chunks skipped for being on an unknown
+     * lane or part of a message that was too large.
+     * @return The number of chunks discarded.
+     */
+    public long getDiscardedCount() {
+        return mDiscarded;
+    }
+
+    private void append(byte[] data, int offset, int count) {
+        if(mLane >= mMessages.length || mOverflowed[mLane] || !mSynced[mLane]) {
+            return;
+        }
+        int length = mLengths[mLane];
+        if(length + count > mMaxMessageSize) {
+            mOverflowed[mLane] = true;
+            return;
+        }
+        byte[] message = mMessages[mLane];
+        if(length + count > message.length) {
+            message = Arrays.copyOf(message, Math.min(Math.max(message.length * 2, length + count), mMaxMessageSize));
+            mMessages[mLane] = message;
+        }
+        System.arraycopy(data, offset, message, length, count);
+        mLengths[mLane] = length + count;
+    }
+
+    private void endChunk(Connection connection) {
+        int lane = mLane;
+        mLane = -1;
+        if(lane >= mMessages.length) {
+            mDiscarded++;
+            return;
+        }
+        if(mSync) {
+            //Whatever came before on this lane belonged to the old stream.
+            if(mLengths[lane] > 0 || mOverflowed[lane]) {
+                mDiscarded++;
+            }
+            mLengths[lane] = 0;
+            mOverflowed[lane] = false;
+            mSynced[lane] = true;
+            return;
+        }
+        if(!mSynced[lane]) {
+            mDiscarded++;
+            return;
+        }
+        if(mOverflowed[lane]) {
+            mDiscarded++;
+        }
+        if(!mLast) {
+            return;
+        }
+
+        byte[] message = mOverflowed[lane] ? null : Arrays.copyOf(mMessages[lane], mLengths[lane]);
+        mLengths[lane] = 0;
+        mOverflowed[lane] = false;
+        if(mMessages[lane].length > LaneScheduler.DEFAULT_CHUNK_SIZE * 64) {
+            //Don't hold on to the buffer of one unusually large message.
+            mMessages[lane] = new byte[LaneScheduler.DEFAULT_CHUNK_SIZE];
+        }
+        if(message != null) {
+            mMessagesReceived++;
+            mListener.onMessage(connection, lane, message);
+        }
+    }
+}
@@ -0,0 +1,321 @@
+package com.nicholastmosher.easycom.connection;
+
+import com.nicholastmosher.easycom.core.connection.Connection;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Carries several priority lanes of messages over one Connection, so that
+ * a stop command doesn't wait behind a bulk upload on the same link.
+ *
+ * Messages are cut into chunks of at most the chunk size, and chunks are
+ * sent one at a time, always from the highest priority lane that has
+ * anything waiting; a control message sent in the middle of a large
+ * transfer goes out after the chunk in flight.  Lower lanes only move when
+ * every lane above them is empty.  Each chunk is framed as:
+ * <pre>
+ *     [lane | LAST: 1 byte][length: 2 bytes][payload]
+ * </pre>
+ * where LAST (0x80) marks a message's final chunk, so a
+ * {@link LaneDemultiplexer} on the other end can put each lane's messages
+ * back together.
+ *
+ * Chunks are only interleaved at the scheduler, so preemption is only as
+ * good as the buffering below it.  Give a NioTcpIpConnection a high water
+ * mark of a few chunks, so it blocks the scheduler instead of queueing
+ * bulk data ahead of the next control message.
+ *
+ * A message cut off by a dropped link can't be finished on the next one.
+ * Attached to a NioTcpIpConnection as an OnLinkListener, the scheduler stops
+ * sending while the link is down, and when it comes back up restarts any
+ * partly sent message from its first chunk.  Before anything else on the
+ * new link it sends a SYNC chunk on every lane: an empty chunk without
+ * LAST, which a LaneDemultiplexer listening for the link takes as the
+ * point from which the lane can be trusted again, discarding whatever
+ * stale chunks of the old stream were still queued ahead of it.
+ *
+ * Waiting messages are bounded in total.  Senders on lower lanes block for
+ * room; the highest lane never does, since control messages are small and
+ * must never wait.  A LaneScheduler is thread safe.
+ */
+public class LaneScheduler implements NioTcpIpConnection.OnLinkListener {
+
+    public static final int LANE_CONTROL = 0;
+    public static final int LANE_NORMAL = 1;
+    public static final int LANE_BULK = 2;
+
+    /** Lane numbers must fit beside the LAST flag. */
+    public static final int MAX_LANES = 0x80;
+    public static final int MAX_CHUNK_SIZE = 0xFFFF;
+    public static final int DEFAULT_CHUNK_SIZE = 256;
+    public static final long DEFAULT_MAX_QUEUED_BYTES = 1024 * 1024;
+
+    static final int HEADER_LENGTH = 3;
+    static final int LAST = 0x80;
+
+    private static ExecutorService sDrainPool;
+
+    private final Connection mConnection;
+    private final int mChunkSize;
+    private final long mMaxQueuedBytes;
+    private final ArrayDeque<byte[]>[] mLanes;
+    /** Bytes of each lane's first message that have already been sent. */
+    private final int[] mOffsets;
+    private long mQueuedBytes;
+    private boolean mDraining;
+    private boolean mClosed;
+    /** Set while the link is down, so that nothing is sent into it. */
+    private boolean mPaused;
+    /** Set when SYNC chunks must go out before the next chunk. */
+    private boolean mSyncPending;
+    private long mChunksSent;
+    private long mRestarted;
+
+    private final Runnable mDrain = new Runnable() {
+        @Override
+        public void run() {
+            drain();
+        }
+    };
+
+    /**
+     * Constructs a LaneScheduler with control, normal, and bulk lanes
+     * and the default chunk size.
+     * @param connection The Connection to send through.
+     */
+    public LaneScheduler(Connection connection) {
+        this(connection, LANE_BULK + 1, DEFAULT_CHUNK_SIZE, DEFAULT_MAX_QUEUED_BYTES);
+    }
+
+    /**
+     * Constructs a LaneScheduler.
+     * @param connection     The Connection to send through.
+     * @param laneCount      The number of lanes.  Lane 0 has the highest priority.
+     * @param chunkSize      The most payload bytes in one chunk.  Smaller chunks
+     *                       preempt sooner and cost more framing.
+     * @param maxQueuedBytes The most message bytes that may wait at once.
+     */
+    @SuppressWarnings("unchecked")
+    public LaneScheduler(Connection connection, int laneCount, int chunkSize, long maxQueuedBytes) {
+        if(laneCount <= 0 || laneCount > MAX_LANES) {
+            throw new IllegalArgumentException("Lane count must be from 1 to " + MAX_LANES);
+        }
+        if(chunkSize <= 0 || chunkSize > MAX_CHUNK_SIZE) {
+            throw new IllegalArgumentException("Chunk size must be from 1 to " + MAX_CHUNK_SIZE);
+        }
+        mConnection = connection;
+        mChunkSize = chunkSize;
+        mMaxQueuedBytes = maxQueuedBytes;
+        mLanes = new ArrayDeque[laneCount];
+        for(int i = 0; i < laneCount; i++) {
+            mLanes[i] = new ArrayDeque<>();
+        }
+        mOffsets = new int[laneCount];
+    }
+
+    /**
+     * Queues a message on a lane.  On any lane but the first, waits while
+     * the scheduler is holding its limit of bytes.
+     * @param lane    The lane to send on; 0 has the highest priority.
+     * @param message The message.  It must not be modified afterwards.
+     * @return False if the scheduler was closed or the wait was interrupted.
+     */
+    public synchronized boolean send(int lane, byte[] message) {
+        if(lane < 0 || lane >= mLanes.length) {
+            throw new IllegalArgumentException("No lane " + lane);
+        }
+        if(lane > 0) {
+            try {
+                //An empty scheduler always takes a message, however large.
+                while(!mClosed && mQueuedBytes > 0 && mQueuedBytes + message.length > mMaxQueuedBytes) {
+                    wait();
+                }
+            } catch(InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+        }
+        if(mClosed) {
+            return false;
+        }
+
+        mLanes[lane].add(message);
+        mQueuedBytes += message.length;
+        startDraining();
+        return true;
+    }
+
+    /**
+     * Starts sending again, restarting partly sent messages.
+     */
+    @Override
+    public synchronized void onLinkUp(NioTcpIpConnection connection) {
+        if(!mPaused) {
+            //The first link; nothing was sent into a dead one.
+            return;
+        }
+        mPaused = false;
+        for(int i = 0; i < mLanes.length; i++) {
+            if(mOffsets[i] > 0) {
+                mQueuedBytes += mOffsets[i];
+                mOffsets[i] = 0;
+                mRestarted++;
+            }
+        }
+        mSyncPending = true;
+        startDraining();
+    }
+
+    /**
+     * Holds every message until the link is back up.
+     */
+    @Override
+    public synchronized void onLinkDown(NioTcpIpConnection connection, IOException cause) {
+        mPaused = true;
+    }
+
+    /**
+     * Stops sending.  Messages not yet fully sent are dropped, and
+     * senders waiting for room are released.
+     */
+    public synchronized void close() {
+        mClosed = true;
+        for(int i = 0; i < mLanes.length; i++) {
+            mLanes[i].clear();
+            mOffsets[i] = 0;
+        }
+        mQueuedBytes = 0;
+        notifyAll();
+    }
+
+    /**
+     * Returns the number of messages waiting on a lane, including
+     * one that's partly sent.
+     * @param lane The lane to count.
+     * @return The number of messages waiting on the lane.
+     */
+    public synchronized int getDepth(int lane) {
+        return mLanes[lane].size();
+    }
+
+    /**
+     * Returns the number of message bytes waiting on all lanes.
+     * @return The number of bytes queued.
+     */
+    public synchronized long getQueuedBytes() {
+        return mQueuedBytes;
+    }
+
+    /**
+     * Returns the number of chunks handed to the Connection.
+     * @return The number of chunks sent.
+     */
+    public synchronized long getChunksSent() {
+        return mChunksSent;
+    }
+
+    /**
+     * Returns the number of messages cut off by a dropped link
+     * and sent again from the start.
+     * @return The number of messages restarted.
+     */
+    public synchronized long getRestartedCount() {
+        return mRestarted;
+    }
+
+    private void startDraining() {
+        if(!mDraining && !mPaused) {
+            mDraining = true;
+            getDrainPool().execute(mDrain);
+        }
+    }
+
+    /**
+     * Sends chunks, highest lane first, until every lane is empty.
+     */
+    private void drain() {
+        while(true) {
+            byte[] chunk;
+            synchronized(this) {
+                chunk = nextChunk();
+                if(chunk == null) {
+                    mDraining = false;
+                    return;
+                }
+                mChunksSent++;
+            }
+            try {
+                mConnection.send(chunk);
+            } catch(RuntimeException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * Cuts the next chunk from the highest lane with a message waiting.
+     * The SYNC chunks for a new link go out first, from the drain, so that
+     * they follow any chunk the drain was still handing to the old link.
+     * @return The framed chunk, or null if every lane is empty or the
+     *         link is down.
+     */
+    private byte[] nextChunk() {
+        if(mPaused) {
+            return null;
+        }
+        if(mSyncPending) {
+            mSyncPending = false;
+            byte[] sync = new byte[HEADER_LENGTH * mLanes.length];
+            for(int lane = 0; lane < mLanes.length; lane++) {
+                sync[lane * HEADER_LENGTH] = (byte) lane;
+            }
+            return sync;
+        }
+        for(int lane = 0; lane < mLanes.length; lane++) {
+            byte[] message = mLanes[lane].peek();
+            if(message == null) {
+                continue;
+            }
+            int offset = mOffsets[lane];
+            int length = Math.min(message.length - offset, mChunkSize);
+            boolean last = offset + length == message.length;
+
+            byte[] chunk = new byte[HEADER_LENGTH + length];
+            chunk[0] = (byte) (last ? lane | LAST : lane);
+            chunk[1] = (byte) (length >>> 8);
+            chunk[2] = (byte) length;
+            System.arraycopy(message, offset, chunk, HEADER_LENGTH, length);
+
+            mQueuedBytes -= length;
+            if(last) {
+                mLanes[lane].poll();
+                mOffsets[lane] = 0;
+            } else {
+                mOffsets[lane] = offset + length;
+            }
+            notifyAll();
+            return chunk;
+        }
+        return null;
+    }
+
+    private static synchronized ExecutorService getDrainPool() {
+        if(sDrainPool == null) {
+            final AtomicInteger count = new AtomicInteger();
+            sDrainPool = Executors.newCachedThreadPool(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, "LaneScheduler-" + count.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        return sDrainPool;
+    }
+}
@@ -0,0 +1,181 @@
+package com.nicholastmosher.easycom.connection;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Runs any number of NioTcpIpConnections on a single thread, which waits
+ * on one Selector for whichever sockets are ready and does all of their
+ * reading and writing.  However many devices are connected, that's one
+ * thread instead of one or two per connection.
+ *
+ * Reads and writes go through a pair of direct buffers owned by the
+ * engine thread and shared by every connection, so a socket operation
+ * never needs a temporary native buffer.  Anything that must touch a
+ * channel from another thread is handed over with {@link #execute(Runnable)}.
+ *
+ * Host names are resolved on a separate thread, so a slow DNS lookup
+ * doesn't hold up the sockets that are already open.
+ */
+public final class NioEngine {
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private static NioEngine sDefault;
+
+    private final Selector mSelector;
+    private final Thread mThread;
+    private final ConcurrentLinkedQueue<Runnable> mTasks = new ConcurrentLinkedQueue<>();
+    private final ExecutorService mResolver;
+    private volatile boolean mClosed;
+
+    /** Read into by the engine thread; only valid within a single callback. */
+    final ByteBuffer mReadBuffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+    /** Written from by the engine thread; only valid within a single callback. */
+    final ByteBuffer mWriteBuffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+
+    /**
+     * Starts a new engine with its own thread.  Most callers should share
+     * {@link #getDefault()} instead.
+     * @param name The name of the engine's thread.
+     * @throws IOException If a Selector can't be opened.
+     */
+    public NioEngine(final String name) throws IOException {
+        mSelector = Selector.open();
+        mResolver = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, name + "-resolver");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        mThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                loop();
+            }
+        }, name);
+        mThread.setDaemon(true);
+        mThread.start();
+    }
+
+    /**
+     * Returns the engine shared by every connection that isn't given one.
+     * @return The shared engine.
+     */
+    public static synchronized NioEngine getDefault() {
+        if(sDefault == null) {
+            try {
+                sDefault = new NioEngine("NioEngine");
+            } catch(IOException e) {
+                throw new IllegalStateException("Could not open a Selector", e);
+            }
+        }
+        return sDefault;
+    }
+
+    /**
+     * Runs a task on the engine thread, after the current round of I/O.
+     * @param task The task to run.
+     */
+    public void execute(Runnable task) {
+        mTasks.offer(task);
+        mSelector.wakeup();
+    }
+
+    /**
+     * Tells whether the calling thread is this engine's thread.
+     * @return True if called from the engine thread.
+     */
+    public boolean inEngineThread() {
+        return Thread.currentThread() == mThread;
+    }
+
+    /**
+     * Stops the engine thread and closes every channel registered with it.
+     * The shared engine is never closed.
+     */
+    public void close() {
+        if(this == sDefault) {
+            throw new IllegalStateException("The default NioEngine can't be closed");
+        }
+        mClosed = true;
+        mResolver.shutdown();
+        mSelector.wakeup();
+    }
+
+    /**
+     * Returns the executor host names are resolved on.
+     */
+    Executor getResolver() {
+        return mResolver;
+    }
+
+    /**
+     * Registers a channel with the Selector.  Must be called on the engine thread.
+     */
+    SelectionKey register(SelectableChannel channel, int ops, NioTcpIpConnection connection)
+            throws ClosedChannelException {
+        return channel.register(mSelector, ops, connection);
+    }
+
+    private void loop() {
+        while(!mClosed) {
+            try {
+                mSelector.select();
+            } catch(IOException e) {
+                e.printStackTrace();
+                continue;
+            }
+
+            Runnable task;
+            while((task = mTasks.poll()) != null) {
+                run(task);
+            }
+
+            Iterator<SelectionKey> keys = mSelector.selectedKeys().iterator();
+            while(keys.hasNext()) {
+                SelectionKey key = keys.next();
+                keys.remove();
+                NioTcpIpConnection connection = (NioTcpIpConnection) key.attachment();
+                try {
+                    connection.onReady(key);
+                } catch(CancelledKeyException e) {
+                    //Closed by an earlier callback in this round.
+                }
+            }
+        }
+
+        for(SelectionKey key : mSelector.keys()) {
+            ((NioTcpIpConnection) key.attachment()).close(null);
+        }
+        try {
+            mSelector.close();
+        } catch(IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Runs a task, keeping the engine alive if it throws.
+     */
+    private static void run(Runnable task) {
+        try {
+            task.run();
+        } catch(RuntimeException e) {
+            e.printStackTrace();
+        }
+    }
+}
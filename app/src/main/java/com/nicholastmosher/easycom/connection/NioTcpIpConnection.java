@@ -0,0 +1,501 @@
+package com.nicholastmosher.easycom.connection;
+
+import com.nicholastmosher.easycom.core.connection.TcpIpConnection;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * A TcpIpConnection whose socket is non-blocking and served by a shared
+ * {@link NioEngine}, so that any number of connections cost one thread.
+ *
+ * Data passed to {@link #send(byte[])} is queued and written by the engine
+ * thread as soon as the socket can take it; data sent before the connection
+ * is open goes out once it opens.  The queue is bounded for backpressure:
+ * send() blocks while the data would take the queue past the high water
+ * mark, and wakes to try again whenever the socket drains some of it;
+ * {@link #offer(byte[])} refuses the data instead of waiting.  Neither ever blocks the engine thread
+ * itself, so listeners may send in reply to received data.
+ *
+ * Received data is delivered to OnDataReceivedListeners on the engine
+ * thread, which serves every other connection too, so listeners should hand
+ * data off rather than process it in place.
+ */
+public class NioTcpIpConnection extends TcpIpConnection {
+
+    /** The default number of queued bytes at which senders are held back. */
+    public static final int DEFAULT_HIGH_WATER = 256 * 1024;
+
+    /**
+     * Told when the socket opens and closes.  Called on the engine thread.
+     */
+    public interface OnLinkListener {
+        void onLinkUp(NioTcpIpConnection connection);
+
+        /**
+         * @param cause The error that closed the link, or null if it was
+         *              closed by {@link #disconnect()}.
+         */
+        void onLinkDown(NioTcpIpConnection connection, IOException cause);
+    }
+
+    private enum State {
+        DISCONNECTED,
+        CONNECTING,
+        CONNECTED
+    }
+
+    //ConnectionModel stores Connections with Gson, so none of this state is serialized.
+    private final transient NioEngine mEngine;
+    private final transient String mHost;
+    private final transient int mPort;
+    private final transient int mHighWater;
+    private final transient CopyOnWriteArrayList<OnDataReceivedListener> mDataListeners = new CopyOnWriteArrayList<>();
+    private final transient CopyOnWriteArrayList<OnLinkListener> mLinkListeners = new CopyOnWriteArrayList<>();
+
+    /** Guards the send queue and the state. */
+    private final transient Object mLock = new Object();
+    private final transient ArrayDeque<byte[]> mQueue = new ArrayDeque<>();
+    /** Bytes of the queue's first array that have already been written. */
+    private transient int mHeadOffset;
+    private transient long mQueuedBytes;
+    /** The number of senders waiting in send() for room in the queue. */
+    private transient int mWaitingSenders;
+    private transient State mState = State.DISCONNECTED;
+    /**
+     * Counts calls to connect(), so that a socket opened for a connect that
+     * has since been disconnected and superseded is recognized and closed.
+     */
+    private transient int mGeneration;
+
+    /** Only touched on the engine thread. */
+    private transient SocketChannel mChannel;
+    private transient SelectionKey mKey;
+    /** The generation mChannel was opened for. */
+    private transient int mChannelGeneration;
+
+    private final transient Runnable mFlush = new Runnable() {
+        @Override
+        public void run() {
+            if(mKey == null || !mKey.isValid() || !mChannel.isConnected()) {
+                return;
+            }
+            try {
+                write();
+            } catch(IOException e) {
+                close(e);
+            }
+        }
+    };
+
+    /**
+     * Constructs a NioTcpIpConnection served by the default engine.
+     * @param name The name of this Connection.
+     * @param host The host name or IP address to connect to.
+     * @param port The port to connect to.
+     */
+    public NioTcpIpConnection(String name, String host, int port) {
+        this(name, host, port, NioEngine.getDefault(), DEFAULT_HIGH_WATER);
+    }
+
+    /**
+     * Constructs a NioTcpIpConnection.
+     * @param name      The name of this Connection.
+     * @param host      The host name or IP address to connect to.
+     * @param port      The port to connect to.
+     * @param engine    The engine to run this Connection on.
+     * @param highWater The number of queued bytes at which senders are held back.
+     */
+    public NioTcpIpConnection(String name, String host, int port, NioEngine engine, int highWater) {
+        super(name, host, port);
+        if(highWater <= 0) {
+            throw new IllegalArgumentException("High water mark must be positive");
+        }
+        mEngine = engine;
+        mHost = host;
+        mPort = port;
+        mHighWater = highWater;
+    }
+
+    /**
+     * Opens the socket in the background.  Does nothing if it's
+     * already open or opening.
+     */
+    @Override
+    public void connect() {
+        final int generation;
+        synchronized(mLock) {
+            if(mState != State.DISCONNECTED) {
+                return;
+            }
+            mState = State.CONNECTING;
+            generation = ++mGeneration;
+        }
+        //Resolve off the engine thread, which would otherwise stall every connection on DNS.
+        mEngine.getResolver().execute(new Runnable() {
+            @Override
+            public void run() {
+                final InetSocketAddress address = new InetSocketAddress(mHost, mPort);
+                mEngine.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        open(address, generation);
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * Marks the connection disconnected right away, so that connect() may
+     * be called again at once, and closes the socket in the background.
+     * Data still queued is dropped.
+     */
+    @Override
+    public void disconnect() {
+        final State previous;
+        final int generation;
+        synchronized(mLock) {
+            previous = mState;
+            generation = mGeneration;
+            setDisconnected();
+        }
+        mEngine.execute(new Runnable() {
+            @Override
+            public void run() {
+                if(mChannelGeneration == generation) {
+                    closeChannel();
+                }
+                if(previous != State.DISCONNECTED) {
+                    notifyLinkDown(null);
+                }
+            }
+        });
+    }
+
+    /**
+     * Queues data to be written, blocking while it would take the queue
+     * past its high water mark, except on the engine thread.  If the queue is full while
+     * disconnected, the data is dropped.  The array is written as it is when
+     * it reaches the socket, so it must not be modified afterwards.
+     * @param data The bytes to send.
+     */
+    @Override
+    public void send(byte[] data) {
+        boolean interrupted = false;
+        synchronized(mLock) {
+            if(mEngine.inEngineThread()) {
+                enqueue(data);
+                return;
+            }
+            while(isFull(data.length) && mState != State.DISCONNECTED) {
+                mWaitingSenders++;
+                try {
+                    mLock.wait();
+                } catch(InterruptedException e) {
+                    interrupted = true;
+                } finally {
+                    mWaitingSenders--;
+                }
+            }
+            //Nothing drains the queue until connect(), so a full queue can't wait for it.
+            if(!isFull(data.length)) {
+                enqueue(data);
+            }
+        }
+        if(interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Queues data to be written unless the queue is above its high water mark.
+     * @param data The bytes to send.  They must not be modified afterwards.
+     * @return True if the data was queued, false if the queue is full.
+     */
+    public boolean offer(byte[] data) {
+        synchronized(mLock) {
+            if(isFull(data.length)) {
+                return false;
+            }
+            enqueue(data);
+            return true;
+        }
+    }
+
+    /**
+     * Returns the number of bytes waiting to be written.
+     * @return The number of bytes queued.
+     */
+    public long getQueuedBytes() {
+        synchronized(mLock) {
+            return mQueuedBytes;
+        }
+    }
+
+    /**
+     * Tells whether the socket is open.
+     * @return True if the socket has connected and not yet closed.
+     */
+    public boolean isLinkUp() {
+        synchronized(mLock) {
+            return mState == State.CONNECTED;
+        }
+    }
+
+    @Override
+    public void addOnDataReceivedListener(OnDataReceivedListener listener) {
+        mDataListeners.add(listener);
+    }
+
+    public void addOnLinkListener(OnLinkListener listener) {
+        mLinkListeners.add(listener);
+    }
+
+    public void removeOnLinkListener(OnLinkListener listener) {
+        mLinkListeners.remove(listener);
+    }
+
+    /**
+     * An empty queue always takes data, so that a single send larger
+     * than the high water mark can't block forever.
+     */
+    private boolean isFull(int length) {
+        return mQueuedBytes > 0 && mQueuedBytes + length > mHighWater;
+    }
+
+    private void enqueue(byte[] data) {
+        if(data.length == 0) {
+            return;
+        }
+        boolean wasEmpty = mQueue.isEmpty();
+        mQueue.add(data);
+        mQueuedBytes += data.length;
+        if(wasEmpty && mState == State.CONNECTED) {
+            mEngine.execute(mFlush);
+        }
+    }
+
+    /**
+     * Starts a non-blocking connect on the engine thread.
+     * @param generation The generation of the connect() that resolved the address.
+     */
+    private void open(InetSocketAddress address, int generation) {
+        synchronized(mLock) {
+            //Disconnected, and maybe connected again, while the address was being resolved.
+            if(mState != State.CONNECTING || mGeneration != generation) {
+                return;
+            }
+        }
+        //A socket left over from a superseded generation.
+        closeChannel();
+        mChannelGeneration = generation;
+        try {
+            if(address.isUnresolved()) {
+                throw new IOException("Could not resolve " + mHost);
+            }
+            mChannel = SocketChannel.open();
+            mChannel.configureBlocking(false);
+            mChannel.socket().setTcpNoDelay(true);
+            mKey = mEngine.register(mChannel, SelectionKey.OP_CONNECT, this);
+            if(mChannel.connect(address)) {
+                onConnected();
+            }
+        } catch(IOException e) {
+            close(e);
+        }
+    }
+
+    /**
+     * Called on the engine thread when this Connection's socket is ready.
+     */
+    void onReady(SelectionKey key) {
+        try {
+            if(key.isConnectable() && mChannel.finishConnect()) {
+                onConnected();
+            }
+            if(key.isValid() && key.isReadable()) {
+                read();
+            }
+            if(key.isValid() && key.isWritable()) {
+                write();
+            }
+        } catch(IOException e) {
+            close(e);
+        }
+    }
+
+    private void onConnected() throws IOException {
+        synchronized(mLock) {
+            if(mState != State.CONNECTING || mGeneration != mChannelGeneration) {
+                //Disconnected while connecting; disconnect() reports the link down.
+                closeChannel();
+                return;
+            }
+            mState = State.CONNECTED;
+        }
+        mKey.interestOps(SelectionKey.OP_READ);
+        for(OnLinkListener listener : mLinkListeners) {
+            try {
+                listener.onLinkUp(this);
+            } catch(RuntimeException e) {
+                e.printStackTrace();
+            }
+        }
+        //Send whatever was queued while connecting.
+        write();
+    }
+
+    private void read() throws IOException {
+        ByteBuffer buffer = mEngine.mReadBuffer;
+        buffer.clear();
+        int count = mChannel.read(buffer);
+        if(count < 0) {
+            throw new EOFException("Connection closed by " + mHost);
+        }
+        if(count == 0) {
+            return;
+        }
+        buffer.flip();
+        byte[] data = new byte[count];
+        buffer.get(data);
+        for(OnDataReceivedListener listener : mDataListeners) {
+            try {
+                listener.onDataReceived(this, data);
+            } catch(RuntimeException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * Writes queued data until the queue is empty or the socket is full,
+     * and watches for the socket to become writable again in the latter case.
+     */
+    private void write() throws IOException {
+        ByteBuffer buffer = mEngine.mWriteBuffer;
+        while(true) {
+            buffer.clear();
+            synchronized(mLock) {
+                fill(buffer);
+            }
+            if(buffer.position() == 0) {
+                mKey.interestOps(SelectionKey.OP_READ);
+                return;
+            }
+            buffer.flip();
+            int written = mChannel.write(buffer);
+            synchronized(mLock) {
+                consume(written);
+            }
+            if(buffer.hasRemaining()) {
+                mKey.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+                return;
+            }
+        }
+    }
+
+    /**
+     * Copies as much of the queue as fits into the buffer, without removing
+     * it, since the socket may not take all of it.
+     */
+    private void fill(ByteBuffer buffer) {
+        int offset = mHeadOffset;
+        Iterator<byte[]> queued = mQueue.iterator();
+        while(buffer.hasRemaining() && queued.hasNext()) {
+            byte[] data = queued.next();
+            int count = Math.min(data.length - offset, buffer.remaining());
+            buffer.put(data, offset, count);
+            offset = 0;
+        }
+    }
+
+    /**
+     * Removes the given number of written bytes from the front of the
+     * queue, and wakes any blocked senders, since each waits for a different
+     * amount of room.
+     */
+    private void consume(int written) {
+        mQueuedBytes -= written;
+        while(written > 0) {
+            byte[] head = mQueue.peek();
+            int count = Math.min(head.length - mHeadOffset, written);
+            mHeadOffset += count;
+            written -= count;
+            if(mHeadOffset == head.length) {
+                mQueue.poll();
+                mHeadOffset = 0;
+            }
+        }
+        if(mWaitingSenders > 0) {
+            mLock.notifyAll();
+        }
+    }
+
+    /**
+     * Closes the socket on the engine thread after an error, dropping
+     * queued data.  An error on a socket whose generation was already
+     * disconnected leaves the current generation alone.
+     * @param cause The error that closed the socket, or null if the
+     *              engine was closed.
+     */
+    void close(IOException cause) {
+        State previous = State.DISCONNECTED;
+        synchronized(mLock) {
+            if(mGeneration == mChannelGeneration) {
+                previous = mState;
+                setDisconnected();
+            }
+        }
+        closeChannel();
+        if(previous != State.DISCONNECTED) {
+            notifyLinkDown(cause);
+        }
+    }
+
+    /**
+     * Must be called holding mLock.
+     */
+    private void setDisconnected() {
+        mState = State.DISCONNECTED;
+        mQueue.clear();
+        mHeadOffset = 0;
+        mQueuedBytes = 0;
+        mLock.notifyAll();
+    }
+
+    /**
+     * Closes the socket, if there is one, on the engine thread.
+     */
+    private void closeChannel() {
+        if(mKey != null) {
+            mKey.cancel();
+            mKey = null;
+        }
+        if(mChannel != null) {
+            try {
+                mChannel.close();
+            } catch(IOException e) {
+                e.printStackTrace();
+            }
+            mChannel = null;
+        }
+    }
+
+    private void notifyLinkDown(IOException cause) {
+        for(OnLinkListener listener : mLinkListeners) {
+            try {
+                listener.onLinkDown(this, cause);
+            } catch(RuntimeException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+}
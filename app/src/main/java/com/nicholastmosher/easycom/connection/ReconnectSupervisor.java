@@ -0,0 +1,179 @@
+package com.nicholastmosher.easycom.connection;
+
+import java.io.IOException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps a NioTcpIpConnection connected: whenever its link drops or fails
+ * to open, the supervisor connects it again after a delay from a
+ * {@link Backoff}, until it's closed.  A link that's up resets the backoff.
+ *
+ * A link can also look healthy to the socket while the device behind it is
+ * gone, which only a liveness check notices; {@link #restart()} drops the
+ * link and reconnects it, and {@link ResumableSession} calls it when its
+ * heartbeats go unanswered.
+ *
+ * Data sent while the link is down is queued by the connection, up to its
+ * high water mark, and written once the link is back up.  Data that was
+ * queued or in flight when the link dropped may still never arrive, so a
+ * supervisor alone only restores the link.  Use a ResumableSession on top
+ * of it to replay what the other end didn't receive.
+ */
+public class ReconnectSupervisor implements NioTcpIpConnection.OnLinkListener {
+
+    public enum State {
+        CONNECTING,
+        UP,
+        WAITING,
+        CLOSED
+    }
+
+    private static ScheduledExecutorService sTimer;
+
+    private final NioTcpIpConnection mConnection;
+    private final Backoff mBackoff;
+
+    private State mState = State.CONNECTING;
+    private boolean mStarted;
+    /** Set while a link we dropped on purpose is on its way down. */
+    private boolean mRestarting;
+    private ScheduledFuture<?> mRetry;
+    private long mReconnects;
+
+    private final Runnable mConnect = new Runnable() {
+        @Override
+        public void run() {
+            synchronized(ReconnectSupervisor.this) {
+                if(mState == State.CLOSED) {
+                    return;
+                }
+                mRetry = null;
+                mState = State.CONNECTING;
+                mReconnects++;
+            }
+            mConnection.connect();
+        }
+    };
+
+    /**
+     * Constructs a ReconnectSupervisor with the default backoff.
+     * @param connection The connection to keep connected.
+     */
+    public ReconnectSupervisor(NioTcpIpConnection connection) {
+        this(connection, new Backoff());
+    }
+
+    /**
+     * Constructs a ReconnectSupervisor.
+     * @param connection The connection to keep connected.
+     * @param backoff    Spaces out reconnection attempts.
+     */
+    public ReconnectSupervisor(NioTcpIpConnection connection, Backoff backoff) {
+        mConnection = connection;
+        mBackoff = backoff;
+    }
+
+    /**
+     * Connects the connection and starts watching it.
+     */
+    public void start() {
+        synchronized(this) {
+            if(mStarted || mState == State.CLOSED) {
+                return;
+            }
+            mStarted = true;
+        }
+        mConnection.addOnLinkListener(this);
+        mConnection.connect();
+    }
+
+    /**
+     * Drops the link, if it's up, and connects again after a backoff delay.
+     */
+    public void restart() {
+        synchronized(this) {
+            if(mState != State.UP && mState != State.CONNECTING) {
+                return;
+            }
+            mRestarting = true;
+        }
+        mConnection.disconnect();
+    }
+
+    /**
+     * Stops reconnecting and disconnects the connection.
+     */
+    public void close() {
+        synchronized(this) {
+            mState = State.CLOSED;
+            if(mRetry != null) {
+                mRetry.cancel(false);
+                mRetry = null;
+            }
+        }
+        mConnection.removeOnLinkListener(this);
+        mConnection.disconnect();
+    }
+
+    public NioTcpIpConnection getConnection() {
+        return mConnection;
+    }
+
+    public synchronized State getState() {
+        return mState;
+    }
+
+    /**
+     * Returns the number of reconnection attempts made since the start.
+     * @return The number of reconnection attempts.
+     */
+    public synchronized long getReconnectCount() {
+        return mReconnects;
+    }
+
+    @Override
+    public void onLinkUp(NioTcpIpConnection connection) {
+        synchronized(this) {
+            if(mState == State.CLOSED) {
+                return;
+            }
+            mState = State.UP;
+        }
+        mBackoff.reset();
+    }
+
+    @Override
+    public synchronized void onLinkDown(NioTcpIpConnection connection, IOException cause) {
+        //A null cause is a disconnect() that wasn't ours; leave the link down.
+        if(mState == State.CLOSED || (cause == null && !mRestarting)) {
+            return;
+        }
+        mRestarting = false;
+        if(cause != null) {
+            cause.printStackTrace();
+        }
+        mState = State.WAITING;
+        mRetry = getTimer().schedule(mConnect, mBackoff.nextDelayMillis(), TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Returns the timer that backoff delays, heartbeats, and pool lingers are scheduled on.
+     */
+    static synchronized ScheduledExecutorService getTimer() {
+        if(sTimer == null) {
+            sTimer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, "ReconnectSupervisor");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        return sTimer;
+    }
+}
@@ -0,0 +1,453 @@
+package com.nicholastmosher.easycom.connection;
+
+import com.nicholastmosher.easycom.core.connection.Connection;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Carries messages over a supervised connection so that none are lost when
+ * the link drops: every message is numbered and kept until the other end
+ * acknowledges it, and whatever wasn't acknowledged is sent again once the
+ * link is back.  The other end must speak the same protocol, which is
+ * another ResumableSession or device firmware that implements it.
+ *
+ * Every frame is laid out as:
+ * <pre>
+ *     [type: 1 byte][sequence: 4 bytes][length: 4 bytes][payload]
+ * </pre>
+ * <ul>
+ *     <li>DATA carries a message and its sequence number.</li>
+ *     <li>ACK acknowledges every DATA up to its sequence number.</li>
+ *     <li>PING is a heartbeat; it's answered with an ACK.</li>
+ *     <li>HELLO opens each link.  Its payload is the sender's 8 byte session
+ *     id, and its sequence number is the last DATA the sender received, so
+ *     the other end knows where to resume.  A new session id means the other
+ *     end started over, and its numbering restarts.</li>
+ *     <li>RESUME comes before the replay.  Its sequence number is the last
+ *     message the sender can no longer replay, so the receiver skips past
+ *     messages that overflowed the replay buffer instead of waiting for them.</li>
+ * </ul>
+ * Only the next message in sequence is delivered; anything else is a
+ * duplicate, or a frame that was queued on a link that dropped, and will
+ * be replayed in its turn.
+ * Messages sent while the link is down, or before the HELLOs have been
+ * traded, wait in the replay buffer and go out in order once it's back up.
+ * The replay buffer is bounded; past its limit the oldest messages are
+ * dropped and counted.
+ *
+ * Each side sends a PING when it has sent nothing for a heartbeat
+ * interval.  When nothing at all has arrived for three intervals, the link
+ * is presumed dead, even if the socket hasn't noticed, and the supervisor
+ * restarts it.
+ */
+public class ResumableSession implements Connection.OnDataReceivedListener, NioTcpIpConnection.OnLinkListener {
+
+    public static final long DEFAULT_HEARTBEAT_MILLIS = 1000;
+    public static final long DEFAULT_MAX_UNACKED_BYTES = 1024 * 1024;
+    public static final int MAX_MESSAGE_SIZE = 16 * 1024 * 1024;
+
+    private static final int HEADER_LENGTH = 1 + 4 + 4;
+    private static final int MISSED_HEARTBEATS = 3;
+
+    private static final int DATA = 1;
+    private static final int ACK = 2;
+    private static final int PING = 3;
+    private static final int HELLO = 4;
+    private static final int RESUME = 5;
+
+    /**
+     * Receives each message once, in order, on the connection's engine thread.
+     */
+    public interface OnMessageListener {
+        void onMessage(ResumableSession session, byte[] message);
+    }
+
+    private static class Unacked {
+        final int mSequence;
+        final byte[] mMessage;
+
+        Unacked(int sequence, byte[] message) {
+            mSequence = sequence;
+            mMessage = message;
+        }
+    }
+
+    private final ReconnectSupervisor mSupervisor;
+    private final NioTcpIpConnection mConnection;
+    private final OnMessageListener mListener;
+    private final long mHeartbeatMillis;
+    private final long mMaxUnackedBytes;
+    private final long mSessionId = new Random().nextLong();
+
+    /**
+     * Held while sending frames that must stay in order; never taken on the
+     * engine thread, since a send may block until the engine drains it.
+     */
+    private final Object mSendLock = new Object();
+
+    /**
+     * Runs the replays, which may block on a slow link, so they never hold
+     * up the timer that every heartbeat and reconnect shares.
+     */
+    private final ExecutorService mReplayExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "ResumableSession-replay");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    //Guarded by this.
+    private final ArrayDeque<Unacked> mUnacked = new ArrayDeque<>();
+    private long mUnackedBytes;
+    private int mLastSent;
+    /** Whether the HELLOs have been traded and the replay sent on this link. */
+    private boolean mResumed;
+    private long mPeerSessionId;
+    private boolean mHasPeer;
+    private int mLastReceived;
+    private volatile long mLastReceivedAt;
+    private volatile long mLastSentAt;
+    private boolean mClosed;
+    private ScheduledFuture<?> mHeartbeat;
+    private long mReplayed;
+    private long mReplayLost;
+
+    //Frame parsing state, only touched on the engine thread.
+    private final byte[] mHeader = new byte[HEADER_LENGTH];
+    private int mHeaderFilled;
+    private byte[] mPayload;
+    private int mPayloadFilled;
+
+    private final Runnable mHeartbeatTask = new Runnable() {
+        @Override
+        public void run() {
+            heartbeat();
+        }
+    };
+
+    /**
+     * Constructs a ResumableSession with the default heartbeat interval and
+     * replay buffer size.
+     * @param supervisor Keeps the connection connected.  Not yet started.
+     * @param listener   Receives each message.
+     */
+    public ResumableSession(ReconnectSupervisor supervisor, OnMessageListener listener) {
+        this(supervisor, listener, DEFAULT_HEARTBEAT_MILLIS, DEFAULT_MAX_UNACKED_BYTES);
+    }
+
+    /**
+     * Constructs a ResumableSession.
+     * @param supervisor      Keeps the connection connected.  Not yet started.
+     * @param listener        Receives each message.
+     * @param heartbeatMillis How long to go without sending before sending a PING.
+     * @param maxUnackedBytes The most message bytes kept for replay.
+     */
+    public ResumableSession(ReconnectSupervisor supervisor, OnMessageListener listener,
+                            long heartbeatMillis, long maxUnackedBytes) {
+        mSupervisor = supervisor;
+        mConnection = supervisor.getConnection();
+        mListener = listener;
+        mHeartbeatMillis = heartbeatMillis;
+        mMaxUnackedBytes = maxUnackedBytes;
+    }
+
+    /**
+     * Starts the supervisor and the heartbeat.
+     */
+    public void start() {
+        mConnection.addOnDataReceivedListener(this);
+        mConnection.addOnLinkListener(this);
+        synchronized(this) {
+            mHeartbeat = ReconnectSupervisor.getTimer().scheduleWithFixedDelay(mHeartbeatTask,
+                    mHeartbeatMillis, mHeartbeatMillis, TimeUnit.MILLISECONDS);
+        }
+        mSupervisor.start();
+    }
+
+    /**
+     * Sends a message, or keeps it for when the link is back.  May block
+     * while the connection is above its high water mark.
+     * @param message The message.  It must not be modified afterwards.
+     */
+    public void send(byte[] message) {
+        if(message.length > MAX_MESSAGE_SIZE) {
+            throw new IllegalArgumentException("Message is larger than " + MAX_MESSAGE_SIZE + " bytes");
+        }
+        synchronized(mSendLock) {
+            int sequence;
+            synchronized(this) {
+                if(mClosed) {
+                    return;
+                }
+                sequence = ++mLastSent;
+                mUnacked.add(new Unacked(sequence, message));
+                mUnackedBytes += message.length;
+                while(mUnackedBytes > mMaxUnackedBytes && mUnacked.size() > 1) {
+                    mUnackedBytes -= mUnacked.poll().mMessage.length;
+                    mReplayLost++;
+                }
+                if(!mResumed) {
+                    return;
+                }
+            }
+            sendFrame(DATA, sequence, message);
+        }
+    }
+
+    /**
+     * Stops the heartbeat and the supervisor.  Unacknowledged messages are dropped.
+     */
+    public void close() {
+        synchronized(this) {
+            mClosed = true;
+            mResumed = false;
+            mUnacked.clear();
+            mUnackedBytes = 0;
+            if(mHeartbeat != null) {
+                mHeartbeat.cancel(false);
+            }
+        }
+        mReplayExecutor.shutdown();
+        mConnection.removeOnLinkListener(this);
+        mSupervisor.close();
+    }
+
+    /**
+     * Returns the number of messages sent but not yet acknowledged.
+     * @return The number of messages kept for replay.
+     */
+    public synchronized int getUnackedCount() {
+        return mUnacked.size();
+    }
+
+    /**
+     * Returns the number of messages sent again after a reconnect.
+     * @return The number of messages replayed.
+     */
+    public synchronized long getReplayedCount() {
+        return mReplayed;
+    }
+
+    /**
+     * Returns the number of messages dropped from a full replay buffer
+     * before they were acknowledged.  They may or may not have arrived.
+     * @return The number of messages that can no longer be replayed.
+     */
+    public synchronized long getReplayLostCount() {
+        return mReplayLost;
+    }
+
+    @Override
+    public void onLinkUp(NioTcpIpConnection connection) {
+        int lastReceived;
+        synchronized(this) {
+            mResumed = false;
+            lastReceived = mLastReceived;
+            mLastReceivedAt = System.nanoTime();
+        }
+        mHeaderFilled = 0;
+        mPayload = null;
+        byte[] sessionId = ByteBuffer.allocate(8).putLong(mSessionId).array();
+        //Called on the engine thread, where sends never block.
+        sendFrame(HELLO, lastReceived, sessionId);
+    }
+
+    @Override
+    public synchronized void onLinkDown(NioTcpIpConnection connection, IOException cause) {
+        mResumed = false;
+    }
+
+    @Override
+    public void onDataReceived(Connection connection, byte[] data) {
+        mLastReceivedAt = System.nanoTime();
+        boolean receivedData = false;
+        int offset = 0;
+        try {
+            while(offset < data.length) {
+                if(mPayload == null) {
+                    int count = Math.min(HEADER_LENGTH - mHeaderFilled, data.length - offset);
+                    System.arraycopy(data, offset, mHeader, mHeaderFilled, count);
+                    mHeaderFilled += count;
+                    offset += count;
+                    if(mHeaderFilled < HEADER_LENGTH) {
+                        continue;
+                    }
+                    int length = ByteBuffer.wrap(mHeader).getInt(5);
+                    if(length < 0 || length > MAX_MESSAGE_SIZE) {
+                        throw new IOException("Invalid frame length " + length);
+                    }
+                    mPayload = new byte[length];
+                    mPayloadFilled = 0;
+                }
+                int count = Math.min(mPayload.length - mPayloadFilled, data.length - offset);
+                System.arraycopy(data, offset, mPayload, mPayloadFilled, count);
+                mPayloadFilled += count;
+                offset += count;
+                if(mPayloadFilled == mPayload.length) {
+                    byte[] payload = mPayload;
+                    mPayload = null;
+                    mHeaderFilled = 0;
+                    ByteBuffer header = ByteBuffer.wrap(mHeader);
+                    receivedData |= onFrame(header.get(0), header.getInt(1), payload);
+                }
+            }
+        } catch(IOException e) {
+            e.printStackTrace();
+            mSupervisor.restart();
+            return;
+        }
+
+        if(receivedData) {
+            int lastReceived;
+            synchronized(this) {
+                lastReceived = mLastReceived;
+            }
+            sendFrame(ACK, lastReceived, new byte[0]);
+        }
+    }
+
+    /**
+     * Handles one frame on the engine thread.
+     * @return True if it was a DATA frame, which should be acknowledged.
+     */
+    private boolean onFrame(int type, int sequence, byte[] payload) throws IOException {
+        switch(type) {
+            case DATA:
+                boolean deliver;
+                synchronized(this) {
+                    deliver = sequence == mLastReceived + 1;
+                    if(deliver) {
+                        mLastReceived = sequence;
+                    }
+                }
+                if(deliver) {
+                    mListener.onMessage(this, payload);
+                }
+                return true;
+            case ACK:
+                acknowledge(sequence);
+                return false;
+            case PING:
+                int lastReceived;
+                synchronized(this) {
+                    lastReceived = mLastReceived;
+                }
+                sendFrame(ACK, lastReceived, new byte[0]);
+                return false;
+            case RESUME:
+                synchronized(this) {
+                    if(sequence - mLastReceived > 0) {
+                        mLastReceived = sequence;
+                    }
+                }
+                return false;
+            case HELLO:
+                if(payload.length != 8) {
+                    throw new IOException("Invalid HELLO");
+                }
+                onHello(ByteBuffer.wrap(payload).getLong(), sequence);
+                return false;
+            default:
+                throw new IOException("Unknown frame type " + type);
+        }
+    }
+
+    /**
+     * Drops acknowledged messages from the replay buffer.
+     */
+    private synchronized void acknowledge(int sequence) {
+        while(!mUnacked.isEmpty() && sequence - mUnacked.peek().mSequence >= 0) {
+            mUnackedBytes -= mUnacked.poll().mMessage.length;
+        }
+    }
+
+    /**
+     * Resumes from where the other end left off, then replays the rest on
+     * the replay thread, since replaying may block.
+     */
+    private void onHello(long peerSessionId, int peerLastReceived) {
+        synchronized(this) {
+            if(!mHasPeer || peerSessionId != mPeerSessionId) {
+                //A new session on the other end; its numbering starts over.
+                mHasPeer = true;
+                mPeerSessionId = peerSessionId;
+                mLastReceived = 0;
+            }
+        }
+        acknowledge(peerLastReceived);
+        try {
+            mReplayExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    replay();
+                }
+            });
+        } catch(RejectedExecutionException e) {
+            //Closed.
+        }
+    }
+
+    private void replay() {
+        synchronized(mSendLock) {
+            List<Unacked> replay;
+            int floor;
+            synchronized(this) {
+                if(mClosed || !mConnection.isLinkUp()) {
+                    return;
+                }
+                replay = new ArrayList<>(mUnacked);
+                floor = replay.isEmpty() ? mLastSent : replay.get(0).mSequence - 1;
+                mReplayed += replay.size();
+                //Sends made from here on go straight out, after the replay.
+                mResumed = true;
+            }
+            sendFrame(RESUME, floor, new byte[0]);
+            for(Unacked unacked : replay) {
+                sendFrame(DATA, unacked.mSequence, unacked.mMessage);
+            }
+        }
+    }
+
+    private void heartbeat() {
+        synchronized(this) {
+            if(mClosed || !mConnection.isLinkUp()) {
+                return;
+            }
+        }
+        long now = System.nanoTime();
+        if(now - mLastReceivedAt > TimeUnit.MILLISECONDS.toNanos(mHeartbeatMillis * MISSED_HEARTBEATS)) {
+            mSupervisor.restart();
+        } else if(now - mLastSentAt >= TimeUnit.MILLISECONDS.toNanos(mHeartbeatMillis)) {
+            //Don't wait behind a full queue; whatever's in it will show the link is alive.
+            mConnection.offer(frame(PING, 0, new byte[0]));
+            mLastSentAt = now;
+        }
+    }
+
+    private void sendFrame(int type, int sequence, byte[] payload) {
+        mConnection.send(frame(type, sequence, payload));
+        mLastSentAt = System.nanoTime();
+    }
+
+    private static byte[] frame(int type, int sequence, byte[] payload) {
+        return ByteBuffer.allocate(HEADER_LENGTH + payload.length)
+                .put((byte) type)
+                .putInt(sequence)
+                .putInt(payload.length)
+                .put(payload)
+                .array();
+    }
+}
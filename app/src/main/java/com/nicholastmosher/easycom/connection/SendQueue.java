@@ -0,0 +1,344 @@
+package com.nicholastmosher.easycom.connection;
+
+import com.nicholastmosher.easycom.core.connection.Connection;
+import com.nicholastmosher.easycom.data.Packet;
+import com.nicholastmosher.easycom.data.PacketCodec;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A bounded queue in front of a Connection, so that a producer faster than
+ * the link neither piles up bytes without limit nor stalls on every send.
+ * Data is handed to {@link Connection#send(byte[])} in order by a drain
+ * task on a shared pool of daemon threads; a Connection that blocks in
+ * send(), such as a NioTcpIpConnection above its high water mark, only
+ * holds up its own drain task.
+ *
+ * The queue holds at most a given number of messages and bytes.  What
+ * happens when it's full depends on its Policy:
+ * <ul>
+ *     <li>BLOCK: the sender waits for room, so nothing is ever lost.</li>
+ *     <li>DROP_OLDEST: the oldest queued message is dropped to make room,
+ *     so what's sent is always the most recent data.</li>
+ *     <li>COALESCE: a message sent under a key replaces any message with the
+ *     same key that's still waiting, in its place in the queue, whether or
+ *     not the queue is full; a joystick axis that changes faster than the
+ *     link can carry it sends only its latest value.  Messages that match
+ *     nothing make room by dropping the oldest, as with DROP_OLDEST, and
+ *     so does a replacement larger than the message it replaced.</li>
+ * </ul>
+ * The depth of the queue and the number of messages dropped and coalesced
+ * are counted, for display and for tuning the limits.
+ *
+ * The limits only bite once the Connection pushes back.  A
+ * NioTcpIpConnection buffers up to its high water mark before send()
+ * blocks, so give it a high water mark that's small next to this queue's
+ * byte limit, or the bytes that matter end up waiting in the Connection,
+ * out of reach of the Policy.
+ *
+ * A SendQueue is thread safe.
+ */
+public class SendQueue {
+
+    public static final int DEFAULT_MAX_MESSAGES = 256;
+    public static final int DEFAULT_MAX_BYTES = 256 * 1024;
+
+    public enum Policy {
+        BLOCK,
+        DROP_OLDEST,
+        COALESCE
+    }
+
+    private static ExecutorService sDrainPool;
+
+    private final Connection mConnection;
+    private final Policy mPolicy;
+    private final int mMaxMessages;
+    private final long mMaxBytes;
+    private final PacketCodec mCodec = new PacketCodec();
+
+    private final ArrayDeque<Message> mQueue = new ArrayDeque<>();
+    /** The queued message for each key, for COALESCE. */
+    private final Map<String, Message> mKeyed = new HashMap<>();
+    private long mQueuedBytes;
+    private boolean mDraining;
+    private boolean mClosed;
+
+    private long mSent;
+    private long mDropped;
+    private long mCoalesced;
+
+    private final Runnable mDrain = new Runnable() {
+        @Override
+        public void run() {
+            drain();
+        }
+    };
+
+    private static class Message {
+        final String mKey;
+        byte[] mData;
+
+        Message(String key, byte[] data) {
+            mKey = key;
+            mData = data;
+        }
+    }
+
+    /**
+     * Constructs a SendQueue with the default limits.
+     * @param connection The Connection to send through.
+     * @param policy     What to do when the queue is full.
+     */
+    public SendQueue(Connection connection, Policy policy) {
+        this(connection, policy, DEFAULT_MAX_MESSAGES, DEFAULT_MAX_BYTES);
+    }
+
+    /**
+     * Constructs a SendQueue.
+     * @param connection  The Connection to send through.
+     * @param policy      What to do when the queue is full.
+     * @param maxMessages The most messages that may wait at once.
+     * @param maxBytes    The most bytes that may wait at once.  A single
+     *                    message larger than this is still accepted into
+     *                    an empty queue.
+     */
+    public SendQueue(Connection connection, Policy policy, int maxMessages, long maxBytes) {
+        if(maxMessages <= 0 || maxBytes <= 0) {
+            throw new IllegalArgumentException("Queue limits must be positive");
+        }
+        mConnection = connection;
+        mPolicy = policy;
+        mMaxMessages = maxMessages;
+        mMaxBytes = maxBytes;
+    }
+
+    /**
+     * Queues data to be sent.  Under the BLOCK policy, waits for room.
+     * @param data The bytes to send.  They must not be modified afterwards.
+     * @return False if the data was not queued because the queue was closed,
+     *         or the wait for room was interrupted.
+     */
+    public boolean send(byte[] data) {
+        return send(null, data);
+    }
+
+    /**
+     * Queues data to be sent under a key.  Under the COALESCE policy, it
+     * replaces any message with the same key that hasn't been sent yet.
+     * Under the BLOCK policy, waits for room.
+     * @param key  The key to coalesce by, or null.
+     * @param data The bytes to send.  They must not be modified afterwards.
+     * @return False if the data was not queued because the queue was closed,
+     *         or the wait for room was interrupted.
+     */
+    public synchronized boolean send(String key, byte[] data) {
+        if(mPolicy == Policy.BLOCK) {
+            try {
+                while(!mClosed && isFull(data.length)) {
+                    wait();
+                }
+            } catch(InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+        }
+        return enqueue(key, data);
+    }
+
+    /**
+     * Encodes a Packet with a PacketCodec and queues it under its name, so
+     * that under the COALESCE policy only its latest value waits to be sent.
+     * @param packet The Packet to send.
+     * @return False if the Packet was not queued.
+     */
+    public boolean send(Packet packet) {
+        byte[] data;
+        synchronized(mCodec) {
+            data = mCodec.toBytes(packet);
+        }
+        return send(packet.getName(), data);
+    }
+
+    /**
+     * Queues data to be sent without ever waiting.  Under the BLOCK policy,
+     * the data is refused if the queue is full.
+     * @param data The bytes to send.  They must not be modified afterwards.
+     * @return False if the data was not queued.
+     */
+    public synchronized boolean offer(byte[] data) {
+        if(mPolicy == Policy.BLOCK && isFull(data.length)) {
+            mDropped++;
+            return false;
+        }
+        return enqueue(null, data);
+    }
+
+    /**
+     * Stops sending.  Messages still queued are dropped, and senders
+     * waiting for room are released.
+     */
+    public synchronized void close() {
+        mClosed = true;
+        mDropped += mQueue.size();
+        mQueue.clear();
+        mKeyed.clear();
+        mQueuedBytes = 0;
+        notifyAll();
+    }
+
+    /**
+     * Returns the number of messages waiting to be sent.
+     * @return The depth of the queue.
+     */
+    public synchronized int getDepth() {
+        return mQueue.size();
+    }
+
+    /**
+     * Returns the number of bytes waiting to be sent.
+     * @return The number of bytes queued.
+     */
+    public synchronized long getQueuedBytes() {
+        return mQueuedBytes;
+    }
+
+    /**
+     * Returns the number of messages handed to the Connection.
+     * @return The number of messages sent.
+     */
+    public synchronized long getSentCount() {
+        return mSent;
+    }
+
+    /**
+     * Returns the number of messages dropped to make room, refused by
+     * {@link #offer(byte[])}, or discarded by {@link #close()}.
+     * @return The number of messages dropped.
+     */
+    public synchronized long getDroppedCount() {
+        return mDropped;
+    }
+
+    /**
+     * Returns the number of messages replaced by a newer message with the same key.
+     * @return The number of messages coalesced.
+     */
+    public synchronized long getCoalescedCount() {
+        return mCoalesced;
+    }
+
+    /**
+     * An empty queue always takes a message, so that one
+     * message larger than the byte limit can't block forever.
+     */
+    private boolean isFull(int length) {
+        return !mQueue.isEmpty()
+                && (mQueue.size() >= mMaxMessages || mQueuedBytes + length > mMaxBytes);
+    }
+
+    private boolean enqueue(String key, byte[] data) {
+        if(mClosed) {
+            return false;
+        }
+
+        if(mPolicy == Policy.COALESCE && key != null) {
+            Message waiting = mKeyed.get(key);
+            if(waiting != null) {
+                mQueuedBytes += data.length - waiting.mData.length;
+                waiting.mData = data;
+                mCoalesced++;
+                //A larger replacement may push the queue over its byte limit.
+                while(mQueuedBytes > mMaxBytes && mQueue.size() > 1) {
+                    dropOldest(waiting);
+                }
+                return true;
+            }
+        }
+
+        while(isFull(data.length)) {
+            //Only reachable for DROP_OLDEST and COALESCE; BLOCK waited or refused.
+            dropOldest(null);
+        }
+
+        Message message = new Message(key, data);
+        mQueue.add(message);
+        mQueuedBytes += data.length;
+        if(mPolicy == Policy.COALESCE && key != null) {
+            mKeyed.put(key, message);
+        }
+        if(!mDraining) {
+            mDraining = true;
+            getDrainPool().execute(mDrain);
+        }
+        return true;
+    }
+
+    /**
+     * Drops the oldest queued message other than the one to keep.
+     */
+    private void dropOldest(Message keep) {
+        Iterator<Message> iterator = mQueue.iterator();
+        Message oldest = iterator.next();
+        if(oldest == keep) {
+            oldest = iterator.next();
+        }
+        iterator.remove();
+        mQueuedBytes -= oldest.mData.length;
+        if(oldest.mKey != null && mKeyed.get(oldest.mKey) == oldest) {
+            mKeyed.remove(oldest.mKey);
+        }
+        mDropped++;
+    }
+
+    /**
+     * Hands queued messages to the Connection until the queue is empty.
+     * Only one drain runs at a time for each SendQueue.
+     */
+    private void drain() {
+        while(true) {
+            byte[] data;
+            synchronized(this) {
+                Message message = mQueue.poll();
+                if(message == null) {
+                    mDraining = false;
+                    return;
+                }
+                if(message.mKey != null && mKeyed.get(message.mKey) == message) {
+                    mKeyed.remove(message.mKey);
+                }
+                data = message.mData;
+                mQueuedBytes -= data.length;
+                mSent++;
+                notifyAll();
+            }
+            try {
+                mConnection.send(data);
+            } catch(RuntimeException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    private static synchronized ExecutorService getDrainPool() {
+        if(sDrainPool == null) {
+            final AtomicInteger count = new AtomicInteger();
+            sDrainPool = Executors.newCachedThreadPool(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, "SendQueue-" + count.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        return sDrainPool;
+    }
+}
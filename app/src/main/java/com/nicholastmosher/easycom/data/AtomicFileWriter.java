@@ -0,0 +1,158 @@
+package com.nicholastmosher.easycom.data;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Replaces the contents of a file so that, whatever happens, the file holds
+ * either its old contents or its new contents in full, never a mix or
+ * nothing at all.
+ *
+ * New contents are written to a temporary file next to the target, forced
+ * to storage with {@link java.nio.channels.FileChannel#force(boolean)}, and
+ * then renamed over the target.  A rename within a directory is atomic, so
+ * if the process dies before the rename, the target is untouched and the
+ * temporary file is simply overwritten by the next write.
+ *
+ * <pre>
+ *     OutputStream out = atomicWriter.begin();
+ *     try {
+ *         codec.write(tree, out);
+ *         atomicWriter.commit();
+ *     } finally {
+ *         atomicWriter.abort();
+ *     }
+ * </pre>
+ *
+ * The stream returned by {@link #begin()} writes into the temporary file's
+ * channel through a single buffer that is reused for every write.  An
+ * AtomicFileWriter is not thread safe.
+ */
+public class AtomicFileWriter {
+
+    private static final int BUFFER_SIZE = 8192;
+
+    private final File mTarget;
+    private final File mTemp;
+    private final ChannelOutputStream mOutput = new ChannelOutputStream();
+
+    private FileOutputStream mStream;
+
+    /**
+     * Constructs an AtomicFileWriter for the given file.
+     * @param target The file whose contents are replaced.
+     */
+    public AtomicFileWriter(File target) {
+        mTarget = target;
+        mTemp = new File(target.getPath() + ".tmp");
+    }
+
+    /**
+     * Starts writing new contents for the file.
+     * @return A stream to write the new contents to.  Closing it is not
+     *         necessary; {@link #commit()} and {@link #abort()} take care of it.
+     * @throws IOException If the temporary file can't be created.
+     */
+    public OutputStream begin() throws IOException {
+        abort();
+        mStream = new FileOutputStream(mTemp);
+        mOutput.open(mStream.getChannel());
+        return mOutput;
+    }
+
+    /**
+     * Forces the new contents to storage and puts them in place of the
+     * file's old contents.
+     * @throws IOException If the contents can't be written or renamed.
+     */
+    public void commit() throws IOException {
+        if(mStream == null) {
+            throw new IllegalStateException("commit() without begin()");
+        }
+        try {
+            mOutput.flush();
+            mStream.getChannel().force(true);
+        } finally {
+            mOutput.open(null);
+            mStream.close();
+            mStream = null;
+        }
+        if(!mTemp.renameTo(mTarget)) {
+            throw new IOException("Could not rename " + mTemp + " to " + mTarget);
+        }
+    }
+
+    /**
+     * Abandons a write that was begun but not committed, leaving
+     * the file's old contents.  Does nothing otherwise.
+     */
+    public void abort() {
+        if(mStream != null) {
+            mOutput.open(null);
+            try {
+                mStream.close();
+            } catch(IOException e) {
+                e.printStackTrace();
+            }
+            mStream = null;
+            mTemp.delete();
+        }
+    }
+
+    /**
+     * Buffers writes into a reused direct buffer and drains it into a
+     * FileChannel.  Closing it does nothing, so that codecs which close
+     * the streams they're given can't close the channel early.
+     */
+    private static class ChannelOutputStream extends OutputStream {
+
+        private final ByteBuffer mBuffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+        private FileChannel mChannel;
+
+        void open(FileChannel channel) {
+            mChannel = channel;
+            mBuffer.clear();
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            if(!mBuffer.hasRemaining()) {
+                flush();
+            }
+            mBuffer.put((byte) b);
+        }
+
+        @Override
+        public void write(byte[] bytes, int offset, int length) throws IOException {
+            while(length > 0) {
+                if(!mBuffer.hasRemaining()) {
+                    flush();
+                }
+                int count = Math.min(length, mBuffer.remaining());
+                mBuffer.put(bytes, offset, count);
+                offset += count;
+                length -= count;
+            }
+        }
+
+        @Override
+        public void flush() throws IOException {
+            if(mChannel == null) {
+                throw new IOException("Stream is not open");
+            }
+            mBuffer.flip();
+            while(mBuffer.hasRemaining()) {
+                mChannel.write(mBuffer);
+            }
+            mBuffer.clear();
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
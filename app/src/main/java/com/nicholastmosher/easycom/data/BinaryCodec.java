@@ -0,0 +1,276 @@
+package com.nicholastmosher.easycom.data;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonNull;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonPrimitive;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+
+/**
+ * Stores documents in a compact binary form of the JSON tree.  Each value
+ * is a tag byte followed by its payload:
+ * <pre>
+ *     NULL, FALSE, TRUE   no payload
+ *     LONG                zigzag varint
+ *     DOUBLE              8 bytes
+ *     NUMBER              string, for numbers that fit neither of the above
+ *     STRING              varint byte length, UTF-8 bytes
+ *     ARRAY               varint count, values
+ *     OBJECT              varint count, (key, value) pairs
+ * </pre>
+ * Object keys are written once: the first time a key appears it's written
+ * as a string and added to a dictionary, and every later use is just its
+ * index in the dictionary.  Stored collections repeat the same few keys in
+ * every element, so this is where most of the savings over JSON come from.
+ * A key is written as a varint which is either (length << 1) | 1, followed
+ * by the key's bytes, or (index << 1) for a key already in the dictionary.
+ */
+public class BinaryCodec extends DataCodec {
+
+    private static final int NULL = 0;
+    private static final int FALSE = 1;
+    private static final int TRUE = 2;
+    private static final int LONG = 3;
+    private static final int DOUBLE = 4;
+    private static final int NUMBER = 5;
+    private static final int STRING = 6;
+    private static final int ARRAY = 7;
+    private static final int OBJECT = 8;
+
+    private static final int READ_CHUNK = 8192;
+
+    BinaryCodec() {
+    }
+
+    @Override
+    int getFormat() {
+        return FORMAT_BINARY;
+    }
+
+    @Override
+    public void write(JsonElement document, OutputStream out) throws IOException {
+        writeHeader(out);
+        DataOutputStream data = new DataOutputStream(out);
+        writeValue(data, document, new HashMap<String, Integer>());
+        data.flush();
+    }
+
+    @Override
+    public JsonElement readBody(InputStream in) throws IOException {
+        DataInputStream data = new DataInputStream(in);
+        try {
+            return readValue(data, new ArrayList<String>());
+        } catch(RuntimeException e) {
+            throw new IOException("Stored binary data is damaged", e);
+        }
+    }
+
+    private static void writeValue(DataOutputStream out, JsonElement value, Map<String, Integer> keys) throws IOException {
+        if(value == null || value.isJsonNull()) {
+            out.write(NULL);
+        } else if(value.isJsonPrimitive()) {
+            writePrimitive(out, value.getAsJsonPrimitive());
+        } else if(value.isJsonArray()) {
+            JsonArray array = value.getAsJsonArray();
+            out.write(ARRAY);
+            writeVarint(out, array.size());
+            for(JsonElement element : array) {
+                writeValue(out, element, keys);
+            }
+        } else {
+            JsonObject object = value.getAsJsonObject();
+            out.write(OBJECT);
+            writeVarint(out, object.entrySet().size());
+            for(Entry<String, JsonElement> member : object.entrySet()) {
+                writeKey(out, member.getKey(), keys);
+                writeValue(out, member.getValue(), keys);
+            }
+        }
+    }
+
+    private static void writePrimitive(DataOutputStream out, JsonPrimitive primitive) throws IOException {
+        if(primitive.isBoolean()) {
+            out.write(primitive.getAsBoolean() ? TRUE : FALSE);
+        } else if(primitive.isString()) {
+            out.write(STRING);
+            writeString(out, primitive.getAsString());
+        } else {
+            Number number = primitive.getAsNumber();
+            if(number instanceof Long || number instanceof Integer
+                    || number instanceof Short || number instanceof Byte) {
+                out.write(LONG);
+                writeVarint(out, zigzag(number.longValue()));
+            } else if(number instanceof Double || number instanceof Float) {
+                out.write(DOUBLE);
+                out.writeDouble(number.doubleValue());
+            } else {
+                //Numbers parsed from JSON keep their text; store them in the smallest form that's exact.
+                String text = number.toString();
+                try {
+                    long whole = Long.parseLong(text);
+                    out.write(LONG);
+                    writeVarint(out, zigzag(whole));
+                    return;
+                } catch(NumberFormatException e) {
+                    //Not a whole number that fits in a long.
+                }
+                double fraction = Double.parseDouble(text);
+                if(Double.toString(fraction).equals(text)) {
+                    out.write(DOUBLE);
+                    out.writeDouble(fraction);
+                } else {
+                    out.write(NUMBER);
+                    writeString(out, text);
+                }
+            }
+        }
+    }
+
+    private static void writeKey(DataOutputStream out, String key, Map<String, Integer> keys) throws IOException {
+        Integer index = keys.get(key);
+        if(index != null) {
+            writeVarint(out, (long) index << 1);
+            return;
+        }
+        keys.put(key, keys.size());
+        byte[] bytes = key.getBytes(ChannelWriter.UTF_8);
+        writeVarint(out, ((long) bytes.length << 1) | 1);
+        out.write(bytes);
+    }
+
+    private static void writeString(DataOutputStream out, String string) throws IOException {
+        byte[] bytes = string.getBytes(ChannelWriter.UTF_8);
+        writeVarint(out, bytes.length);
+        out.write(bytes);
+    }
+
+    private static JsonElement readValue(DataInputStream in, List<String> keys) throws IOException {
+        int tag = in.read();
+        switch(tag) {
+            case NULL:
+                return JsonNull.INSTANCE;
+            case FALSE:
+                return new JsonPrimitive(false);
+            case TRUE:
+                return new JsonPrimitive(true);
+            case LONG:
+                return new JsonPrimitive(unzigzag(readVarint(in)));
+            case DOUBLE:
+                return new JsonPrimitive(in.readDouble());
+            case NUMBER:
+                return new JsonPrimitive(new BigDecimal(readString(in)));
+            case STRING:
+                return new JsonPrimitive(readString(in));
+            case ARRAY: {
+                int count = readCount(in);
+                JsonArray array = new JsonArray();
+                for(int i = 0; i < count; i++) {
+                    array.add(readValue(in, keys));
+                }
+                return array;
+            }
+            case OBJECT: {
+                int count = readCount(in);
+                JsonObject object = new JsonObject();
+                for(int i = 0; i < count; i++) {
+                    String key = readKey(in, keys);
+                    object.add(key, readValue(in, keys));
+                }
+                return object;
+            }
+            case -1:
+                throw new EOFException("Stored binary data is truncated");
+            default:
+                throw new IOException("Unknown tag " + tag + " in stored binary data");
+        }
+    }
+
+    private static String readKey(DataInputStream in, List<String> keys) throws IOException {
+        long ref = readVarint(in);
+        if((ref & 1) == 0) {
+            return keys.get((int) (ref >>> 1));
+        }
+        byte[] bytes = readBytes(in, checkLength(ref >>> 1));
+        String key = new String(bytes, ChannelWriter.UTF_8);
+        keys.add(key);
+        return key;
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        byte[] bytes = readBytes(in, readCount(in));
+        return new String(bytes, ChannelWriter.UTF_8);
+    }
+
+    /**
+     * Reads a stored length of bytes, growing the buffer only as the bytes
+     * arrive, so that a damaged length can't allocate more than is there.
+     */
+    private static byte[] readBytes(DataInputStream in, int length) throws IOException {
+        byte[] bytes = new byte[Math.min(length, READ_CHUNK)];
+        int read = 0;
+        while(read < length) {
+            if(read == bytes.length) {
+                bytes = Arrays.copyOf(bytes, (int) Math.min(length, 2L * bytes.length));
+            }
+            int count = in.read(bytes, read, bytes.length - read);
+            if(count < 0) {
+                throw new EOFException("Stored binary data is truncated");
+            }
+            read += count;
+        }
+        return bytes;
+    }
+
+    private static int readCount(DataInputStream in) throws IOException {
+        return checkLength(readVarint(in));
+    }
+
+    private static int checkLength(long length) throws IOException {
+        if(length < 0 || length > Integer.MAX_VALUE) {
+            throw new IOException("Invalid length " + length + " in stored binary data");
+        }
+        return (int) length;
+    }
+
+    private static void writeVarint(DataOutputStream out, long value) throws IOException {
+        while((value & ~0x7FL) != 0) {
+            out.write((int) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.write((int) value);
+    }
+
+    private static long readVarint(DataInputStream in) throws IOException {
+        long value = 0;
+        for(int shift = 0; shift < 64; shift += 7) {
+            int b = in.readUnsignedByte();
+            value |= (long) (b & 0x7F) << shift;
+            if((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("Varint too long in stored binary data");
+    }
+
+    private static long zigzag(long value) {
+        return (value << 1) ^ (value >> 63);
+    }
+
+    private static long unzigzag(long value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+}
@@ -0,0 +1,39 @@
+package com.nicholastmosher.easycom.data;
+
+/**
+ * A Packet that carries a single unboxed boolean.
+ */
+public class BooleanPacket extends Packet {
+
+    private boolean mValue;
+
+    BooleanPacket() {
+    }
+
+    BooleanPacket(String name, boolean value) {
+        super(name);
+        mValue = value;
+    }
+
+    /**
+     * Reuses this Packet to carry a new name and value.
+     * @param name  The new name of this Packet.
+     * @param value The new value of this Packet.
+     * @return This Packet, for chaining.
+     */
+    public BooleanPacket reset(String name, boolean value) {
+        setName(name);
+        mValue = value;
+        return this;
+    }
+
+    @Override
+    public Type getType() {
+        return Type.BOOLEAN;
+    }
+
+    @Override
+    public boolean getBoolean() {
+        return mValue;
+    }
+}
@@ -0,0 +1,509 @@
+package com.nicholastmosher.easycom.data;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonNull;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.google.gson.JsonPrimitive;
+import com.google.gson.stream.JsonReader;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.PushbackInputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.Map;
+
+/**
+ * Persists a JSON document as a snapshot file plus an append-only log of
+ * changes, so that saving a small change to a large document costs about
+ * as much as the change rather than the whole document.
+ *
+ * Each write is compared against the last document written, and only the
+ * differences are appended to the log, as a single line holding an array
+ * of operations:
+ * <pre>
+ *     {"op":"set","path":["macros",3,"name"],"value":"Forward"}
+ *     {"op":"remove","path":["settings","theme"]}
+ *     {"op":"set","path":["macros",7],"value":{"name":"Stop"}}
+ *     {"op":"truncate","path":["macros"],"value":4}
+ * </pre>
+ * A path names object members by string and array elements by number.
+ * Objects are compared member by member and arrays element by element, so
+ * editing one field of one element of a long list logs just that field;
+ * an array that grows has its new elements set past its end, and one that
+ * shrinks is truncated.  Primitives that differ are replaced whole.  Once the log
+ * grows larger than the snapshot, the current document is written out as
+ * a new snapshot and the log is emptied.
+ *
+ * Reading loads the snapshot and replays the log on top of it.  A line is
+ * only complete once its newline has been written, so a final line cut
+ * short by a crash is discarded, leaving the document as of the last
+ * complete write.  Each appended line is forced to storage before the
+ * write returns, and snapshots are replaced with an AtomicFileWriter, so
+ * neither a crash nor a power loss can leave the snapshot half written.
+ *
+ * Snapshots are written with a {@link DataCodec}, plain JSON by default.
+ * Reading detects the format a snapshot was written in, so files written
+ * before the log existed are read as snapshots with an empty log, and a
+ * snapshot in a format other than this ChangeLog's codec is rewritten in
+ * that codec as soon as it's read.  The log is always JSON lines, read a
+ * line at a time into a reused buffer.
+ *
+ * A ChangeLog is not thread safe.
+ */
+public class ChangeLog {
+
+    private static final Charset UTF_8 = ChannelWriter.UTF_8;
+
+    /** Writes trees exactly as they are, nulls included. */
+    private static final Gson GSON = new GsonBuilder()
+            .serializeNulls()
+            .disableHtmlEscaping()
+            .create();
+
+    /**
+     * Logs smaller than this are never compacted, so that small documents
+     * aren't rewritten on every change.
+     */
+    private static final long MIN_COMPACT_BYTES = 16 * 1024;
+
+    private static final String OP = "op";
+    private static final String PATH = "path";
+    private static final String VALUE = "value";
+    private static final String SET = "set";
+    private static final String REMOVE = "remove";
+    private static final String TRUNCATE = "truncate";
+
+    private final File mSnapshotFile;
+    private final File mLogFile;
+    private final JsonParser mParser = new JsonParser();
+    private final DataCodec mCodec;
+    private final AtomicFileWriter mSnapshotWriter;
+    private final ChannelWriter mLogWriter = new ChannelWriter();
+    private final ByteBuffer mReadBuffer = ByteBuffer.allocate(8192);
+    private byte[] mLine = new byte[256];
+
+    /** The document as of the last read or write; JsonNull if there is none. */
+    private JsonElement mCurrent;
+    private boolean mLoaded;
+    /** Whether the snapshot last read was in a format other than mCodec. */
+    private boolean mMigrate;
+    private long mLogLength;
+
+    /**
+     * Constructs a ChangeLog that keeps the given snapshot file and a log
+     * file next to it with ".log" appended to its name.
+     * @param snapshotFile The file to keep the snapshot in.
+     */
+    public ChangeLog(File snapshotFile) {
+        this(snapshotFile, DataCodec.JSON);
+    }
+
+    /**
+     * Constructs a ChangeLog that writes snapshots with the given codec.
+     * @param snapshotFile The file to keep the snapshot in.
+     * @param codec        The codec to write snapshots with.
+     */
+    public ChangeLog(File snapshotFile, DataCodec codec) {
+        mSnapshotFile = snapshotFile;
+        mCodec = codec;
+        mLogFile = new File(snapshotFile.getPath() + ".log");
+        mSnapshotWriter = new AtomicFileWriter(snapshotFile);
+    }
+
+    /**
+     * Reads the current document.
+     * @return The document, or null if nothing has been written.
+     * @throws IOException If the snapshot can't be read or is not valid.
+     */
+    public JsonElement read() throws IOException {
+        mCurrent = readSnapshot();
+        replayLog();
+        mLoaded = true;
+        if(mMigrate) {
+            compact();
+        }
+        return mCurrent.isJsonNull() ? null : mCurrent;
+    }
+
+    /**
+     * Saves a new version of the document by appending its differences
+     * from the previous version to the log.
+     * @param document The new version of the document.  It must not be
+     *                 modified afterwards, since it's kept for comparison
+     *                 with the next write.
+     * @throws IOException If the log or snapshot can't be written.
+     */
+    public void write(JsonElement document) throws IOException {
+        if(!mLoaded) {
+            read();
+        }
+
+        JsonArray ops = new JsonArray();
+        diff(new JsonArray(), mCurrent, document, ops);
+        mCurrent = document;
+        if(ops.size() == 0) {
+            return;
+        }
+
+        FileOutputStream out = new FileOutputStream(mLogFile, true);
+        try {
+            FileChannel channel = out.getChannel();
+            mLogWriter.open(channel);
+            GSON.toJson(ops, mLogWriter);
+            mLogWriter.write('\n');
+            mLogWriter.finish();
+            channel.force(false);
+            mLogLength = channel.size();
+        } finally {
+            out.close();
+        }
+
+        if(mLogLength > MIN_COMPACT_BYTES && mLogLength > mSnapshotFile.length()) {
+            compact();
+        }
+    }
+
+    /**
+     * Writes the current document as a new snapshot and empties the log.
+     * Replaying a log over the snapshot it led to gives the same snapshot,
+     * so a crash between the two steps loses nothing.
+     * @throws IOException If the snapshot can't be written.
+     */
+    public void compact() throws IOException {
+        if(!mLoaded) {
+            read();
+        }
+        OutputStream out = mSnapshotWriter.begin();
+        try {
+            if(!mCurrent.isJsonNull()) {
+                mCodec.write(mCurrent, out);
+            }
+            mSnapshotWriter.commit();
+        } finally {
+            mSnapshotWriter.abort();
+        }
+        truncateLog(0);
+        mMigrate = false;
+    }
+
+    /**
+     * Erases the snapshot and the log.
+     * @throws IOException If the files can't be erased.
+     */
+    public void clear() throws IOException {
+        truncateLog(0);
+        if(mSnapshotFile.exists() && !mSnapshotFile.delete()) {
+            throw new IOException("Could not delete " + mSnapshotFile);
+        }
+        mCurrent = JsonNull.INSTANCE;
+        mLoaded = true;
+    }
+
+    /**
+     * Returns a value that changes whenever the snapshot or the log is
+     * modified, by this ChangeLog or anything else, for telling whether a
+     * copy of the document held in memory is still current.  This only
+     * looks at file metadata, so it's cheap enough to call on any thread.
+     * @return A stamp of the files' modification times and sizes.
+     */
+    public long getStamp() {
+        long stamp = mSnapshotFile.lastModified();
+        stamp = stamp * 31 + mSnapshotFile.length();
+        stamp = stamp * 31 + mLogFile.lastModified();
+        return stamp * 31 + mLogFile.length();
+    }
+
+    /**
+     * Returns the size of the log, for deciding when to compact.
+     * @return The number of bytes in the log.
+     */
+    public long getLogLength() {
+        return mLogLength;
+    }
+
+    private JsonElement readSnapshot() throws IOException {
+        mMigrate = false;
+        if(mSnapshotFile.length() == 0) {
+            return JsonNull.INSTANCE;
+        }
+        PushbackInputStream in = new PushbackInputStream(
+                new BufferedInputStream(new FileInputStream(mSnapshotFile)));
+        try {
+            DataCodec codec = DataCodec.detect(in);
+            mMigrate = !codec.isSameFormat(mCodec);
+            return codec.readBody(in);
+        } catch(IOException e) {
+            throw new IOException("Could not read snapshot " + mSnapshotFile, e);
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Applies each complete line of the log to mCurrent, and cuts the log
+     * off after the last line that could be applied.
+     */
+    private void replayLog() throws IOException {
+        mLogLength = 0;
+        if(mLogFile.length() == 0) {
+            return;
+        }
+
+        //File offset just past the last line that was applied.
+        long applied = 0;
+        long position = 0;
+        int lineLength = 0;
+        FileInputStream in = new FileInputStream(mLogFile);
+        try {
+            FileChannel channel = in.getChannel();
+            mReadBuffer.clear();
+            read:
+            while(channel.read(mReadBuffer) >= 0) {
+                mReadBuffer.flip();
+                while(mReadBuffer.hasRemaining()) {
+                    byte b = mReadBuffer.get();
+                    position++;
+                    if(b != '\n') {
+                        if(lineLength == mLine.length) {
+                            mLine = Arrays.copyOf(mLine, mLine.length * 2);
+                        }
+                        mLine[lineLength++] = b;
+                        continue;
+                    }
+                    if(!applyLine(mLine, lineLength)) {
+                        break read;
+                    }
+                    lineLength = 0;
+                    applied = position;
+                }
+                mReadBuffer.clear();
+            }
+        } finally {
+            in.close();
+        }
+
+        mLogLength = applied;
+        if(applied < mLogFile.length()) {
+            truncateLog(applied);
+        }
+    }
+
+    /**
+     * Applies one line of the log to mCurrent.
+     * @return False if the line was damaged; nothing after it can be trusted.
+     */
+    private boolean applyLine(byte[] line, int length) {
+        JsonReader reader = new JsonReader(new InputStreamReader(new ByteArrayInputStream(line, 0, length), UTF_8));
+        try {
+            JsonArray ops = mParser.parse(reader).getAsJsonArray();
+            for(JsonElement op : ops) {
+                apply(op.getAsJsonObject());
+            }
+            return true;
+        } catch(RuntimeException e) {
+            e.printStackTrace();
+            return false;
+        }
+    }
+
+    private void truncateLog(long length) throws IOException {
+        RandomAccessFile file = new RandomAccessFile(mLogFile, "rw");
+        try {
+            file.setLength(length);
+        } finally {
+            file.close();
+        }
+        mLogLength = length;
+    }
+
+    /**
+     * Appends the operations that turn before into after, at the given path.
+     */
+    private static void diff(JsonArray path, JsonElement before, JsonElement after, JsonArray ops) {
+        if(before.equals(after)) {
+            return;
+        }
+        if(before.isJsonArray() && after.isJsonArray()) {
+            diffArray(path, before.getAsJsonArray(), after.getAsJsonArray(), ops);
+            return;
+        }
+        if(!before.isJsonObject() || !after.isJsonObject()) {
+            ops.add(op(SET, path, after));
+            return;
+        }
+
+        JsonObject beforeObject = before.getAsJsonObject();
+        JsonObject afterObject = after.getAsJsonObject();
+        for(Map.Entry<String, JsonElement> member : afterObject.entrySet()) {
+            JsonElement old = beforeObject.get(member.getKey());
+            JsonArray childPath = child(path, member.getKey());
+            if(old == null) {
+                ops.add(op(SET, childPath, member.getValue()));
+            } else {
+                diff(childPath, old, member.getValue(), ops);
+            }
+        }
+        for(Map.Entry<String, JsonElement> member : beforeObject.entrySet()) {
+            if(!afterObject.has(member.getKey())) {
+                ops.add(op(REMOVE, child(path, member.getKey()), null));
+            }
+        }
+    }
+
+    /**
+     * Appends the operations that turn one array into another: the elements
+     * they share by index are diffed in place, extra elements are set at
+     * the indices past the end, and an array that shrank is truncated.
+     */
+    private static void diffArray(JsonArray path, JsonArray before, JsonArray after, JsonArray ops) {
+        int common = Math.min(before.size(), after.size());
+        for(int i = 0; i < common; i++) {
+            diff(child(path, i), before.get(i), after.get(i), ops);
+        }
+        for(int i = common; i < after.size(); i++) {
+            ops.add(op(SET, child(path, i), after.get(i)));
+        }
+        if(after.size() < before.size()) {
+            ops.add(op(TRUNCATE, path, new JsonPrimitive(after.size())));
+        }
+    }
+
+    /**
+     * Applies a single logged operation to mCurrent.  Containers missing
+     * along the path, or of the wrong kind, are created, so that replaying
+     * a log over the snapshot it was compacted into changes nothing.
+     */
+    private void apply(JsonObject op) {
+        JsonArray path = op.getAsJsonArray(PATH);
+        String type = op.get(OP).getAsString();
+        if(TRUNCATE.equals(type)) {
+            JsonArray array = walk(path, path.size(), true).getAsJsonArray();
+            int length = op.get(VALUE).getAsInt();
+            while(array.size() > length) {
+                array.remove(array.size() - 1);
+            }
+            return;
+        }
+
+        boolean set = SET.equals(type);
+        if(path.size() == 0) {
+            mCurrent = set ? op.get(VALUE) : JsonNull.INSTANCE;
+            return;
+        }
+        JsonElement last = path.get(path.size() - 1);
+        JsonElement parent = walk(path, path.size() - 1, isIndex(last));
+        if(set) {
+            put(parent, last, op.get(VALUE));
+        } else if(!isIndex(last)) {
+            parent.getAsJsonObject().remove(last.getAsString());
+        } else if(last.getAsInt() < parent.getAsJsonArray().size()) {
+            parent.getAsJsonArray().remove(last.getAsInt());
+        }
+    }
+
+    /**
+     * Walks down the first segments of a path from mCurrent, replacing
+     * anything on the way that isn't the kind of container the next
+     * segment needs.
+     * @param path  The path to follow.
+     * @param depth The number of segments to follow.
+     * @param array Whether the element reached must be an array rather than an object.
+     * @return The element reached.
+     */
+    private JsonElement walk(JsonArray path, int depth, boolean array) {
+        if(depth == 0) {
+            mCurrent = container(mCurrent, array);
+            return mCurrent;
+        }
+        JsonElement segment = path.get(depth - 1);
+        JsonElement parent = walk(path, depth - 1, isIndex(segment));
+        JsonElement node = get(parent, segment);
+        JsonElement result = container(node, array);
+        if(result != node) {
+            put(parent, segment, result);
+        }
+        return result;
+    }
+
+    private static JsonElement container(JsonElement node, boolean array) {
+        if(array) {
+            return node != null && node.isJsonArray() ? node : new JsonArray();
+        }
+        return node != null && node.isJsonObject() ? node : new JsonObject();
+    }
+
+    private static JsonElement get(JsonElement parent, JsonElement segment) {
+        if(!isIndex(segment)) {
+            return parent.getAsJsonObject().get(segment.getAsString());
+        }
+        JsonArray array = parent.getAsJsonArray();
+        int index = segment.getAsInt();
+        return index < array.size() ? array.get(index) : null;
+    }
+
+    /**
+     * Sets a member or element.  Setting an index past the end of an
+     * array fills the gap with nulls.
+     */
+    private static void put(JsonElement parent, JsonElement segment, JsonElement value) {
+        if(!isIndex(segment)) {
+            parent.getAsJsonObject().add(segment.getAsString(), value);
+            return;
+        }
+        JsonArray array = parent.getAsJsonArray();
+        int index = segment.getAsInt();
+        while(array.size() < index) {
+            array.add(JsonNull.INSTANCE);
+        }
+        if(index < array.size()) {
+            array.set(index, value);
+        } else {
+            array.add(value);
+        }
+    }
+
+    private static boolean isIndex(JsonElement segment) {
+        return segment.isJsonPrimitive() && segment.getAsJsonPrimitive().isNumber();
+    }
+
+    private static JsonObject op(String type, JsonArray path, JsonElement value) {
+        JsonObject op = new JsonObject();
+        op.addProperty(OP, type);
+        op.add(PATH, path);
+        if(value != null) {
+            op.add(VALUE, value);
+        }
+        return op;
+    }
+
+    private static JsonArray child(JsonArray path, String key) {
+        return child(path, new JsonPrimitive(key));
+    }
+
+    private static JsonArray child(JsonArray path, int index) {
+        return child(path, new JsonPrimitive(index));
+    }
+
+    private static JsonArray child(JsonArray path, JsonPrimitive segment) {
+        JsonArray child = new JsonArray();
+        for(JsonElement parentKey : path) {
+            child.add(parentKey);
+        }
+        child.add(segment);
+        return child;
+    }
+}
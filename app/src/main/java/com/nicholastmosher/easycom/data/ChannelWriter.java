@@ -0,0 +1,116 @@
+package com.nicholastmosher.easycom.data;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+
+/**
+ * A Writer that encodes characters as UTF-8 straight into a FileChannel
+ * through a single reused buffer, so that writing a document never builds
+ * it as one String or byte array.  The same ChannelWriter can be pointed
+ * at a new channel for each file written, keeping its encoder and buffer.
+ *
+ * A ChannelWriter is not thread safe.
+ */
+class ChannelWriter extends Writer {
+
+    static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private static final int DEFAULT_BUFFER_SIZE = 8192;
+
+    private final CharsetEncoder mEncoder = UTF_8.newEncoder()
+            .onMalformedInput(CodingErrorAction.REPLACE)
+            .onUnmappableCharacter(CodingErrorAction.REPLACE);
+    private final ByteBuffer mBuffer = ByteBuffer.allocateDirect(DEFAULT_BUFFER_SIZE);
+    private final CharBuffer mSingleChar = CharBuffer.allocate(1);
+
+    private FileChannel mChannel;
+
+    /**
+     * Starts writing to the given channel, at its current position.
+     * @param channel The channel to write to.
+     */
+    void open(FileChannel channel) {
+        mChannel = channel;
+        mEncoder.reset();
+        mBuffer.clear();
+    }
+
+    /**
+     * Encodes anything still held by the encoder and writes all buffered
+     * bytes to the channel.  The channel itself is left open.
+     * @throws IOException If the channel can't be written.
+     */
+    void finish() throws IOException {
+        checkOpen();
+        CharBuffer empty = CharBuffer.wrap("");
+        encode(empty, true);
+        while(mEncoder.flush(mBuffer) == CoderResult.OVERFLOW) {
+            drain();
+        }
+        drain();
+        mChannel = null;
+    }
+
+    @Override
+    public void write(char[] chars, int offset, int length) throws IOException {
+        encode(CharBuffer.wrap(chars, offset, length), false);
+    }
+
+    @Override
+    public void write(String string, int offset, int length) throws IOException {
+        encode(CharBuffer.wrap(string, offset, offset + length), false);
+    }
+
+    @Override
+    public void write(int c) throws IOException {
+        mSingleChar.clear();
+        mSingleChar.put((char) c);
+        mSingleChar.flip();
+        encode(mSingleChar, false);
+    }
+
+    @Override
+    public void flush() throws IOException {
+        checkOpen();
+        drain();
+    }
+
+    /**
+     * Finishes writing, if a channel is open.  Closing the
+     * channel itself is left to its owner.
+     */
+    @Override
+    public void close() throws IOException {
+        if(mChannel != null) {
+            finish();
+        }
+    }
+
+    private void encode(CharBuffer chars, boolean endOfInput) throws IOException {
+        checkOpen();
+        while(mEncoder.encode(chars, mBuffer, endOfInput) == CoderResult.OVERFLOW) {
+            drain();
+        }
+    }
+
+    private void drain() throws IOException {
+        mBuffer.flip();
+        while(mBuffer.hasRemaining()) {
+            mChannel.write(mBuffer);
+        }
+        mBuffer.clear();
+    }
+
+    private void checkOpen() throws IOException {
+        if(mChannel == null) {
+            throw new IOException("ChannelWriter is not open");
+        }
+    }
+}
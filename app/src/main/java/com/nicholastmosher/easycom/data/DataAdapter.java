@@ -1,24 +1,25 @@
 package com.nicholastmosher.easycom.data;
 
 import android.content.Context;
-import android.os.AsyncTask;
+import android.os.Handler;
+import android.os.Looper;
 
 import com.google.gson.Gson;
 import com.google.gson.GsonBuilder;
 import com.google.gson.TypeAdapter;
 
-import java.io.BufferedReader;
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.PrintWriter;
 import java.lang.reflect.Type;
-import java.util.HashMap;
-import java.util.Map;
 import java.util.Observable;
 import java.util.Observer;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
 
 /**
  * Created by Nick Mosher on 10/3/15.
@@ -26,31 +27,74 @@ import java.util.Observer;
  * managed by generic DataAdapters.  IO operations on DataAdapters are
  * asynchronous so as to be non-blocking, and operations that traditionally
  * block for their result (i.e. reading) use callbacks to deliver data
- * when it's ready.
+ * when it's ready, and return Futures for callers that need to wait.
+ * Each DataAdapter's I/O runs in order on its own serial executor from
+ * IoExecutor, so DataAdapters never wait on one another.  The storage
+ * itself is done by a DataStore, which only appends what changed on each
+ * write.
+ *
+ * Writes are debounced by a WriteScheduler: a burst of writes, such as a
+ * series of edits to registered Observable data, is written once, in its
+ * latest state, and writes always land in the order they were made.
+ *
+ * The latest data written or read is kept in memory, and reads are
+ * answered from it right away, without touching the disk, as long as the
+ * file hasn't been modified by anyone else since.  The cached object is the
+ * same instance that was written or last delivered, not a copy.
  */
 public class DataAdapter<T> extends Observable implements Observer {
 
-    private static Map<String, DataAdapter<?>> adapters = new HashMap<>();
+    /**
+     * Every DataAdapter created, by name and type.  Lookups are lock-free,
+     * and putIfAbsent makes sure two threads asking for the same Key get
+     * the same DataAdapter.
+     */
+    private static final ConcurrentMap<Key<?>, DataAdapter<?>> adapters = new ConcurrentHashMap<>();
+
+    /**
+     * The type each file name was first used with, so that no file
+     * is shared by DataAdapters of different types.
+     */
+    private static final ConcurrentMap<String, Class<?>> fileTypes = new ConcurrentHashMap<>();
+    private static final Handler sMainHandler = new Handler(Looper.getMainLooper());
 
     private Type mDataType;
     private File mDataFile;
     private Gson mGson;
-
-    private DataAdapter(Context context, Class<T> type, String name) {
+    /** The TypeAdapter and format this DataAdapter was created with, for checking later lookups. */
+    private TypeAdapter<T> mTypeAdapter;
+    private DataCodec mCodec;
+    private DataStore<T> mStore;
+    private Executor mExecutor;
+    private WriteScheduler<T> mWriteScheduler;
+
+    /** Guards the cached data, which may be touched by the main and I/O threads. */
+    private final Object mCacheLock = new Object();
+    private T mCached;
+    private boolean mHasCached;
+    /** Incremented whenever the cached data is replaced or dropped. */
+    private long mVersion;
+    /** The DataStore's stamp when the cache was last known to match it. */
+    private long mCachedStamp;
+
+    private DataAdapter(Context context, Class<T> type, String name, TypeAdapter<T> adapter, DataCodec codec) {
         mDataType = type;
         mDataFile = new File(context.getFilesDir(), name);
-        mGson = new Gson();
-    }
-
-    private DataAdapter(Context context, Class<T> type, String name, TypeAdapter<T> adapter) {
-        this(context, type, name);
-        GsonBuilder builder = new GsonBuilder();
-        builder.registerTypeAdapter(type, adapter);
-        mGson = builder.create();
-    }
-
-    private DataAdapter(Context context, Class<T> type) {
-        this(context, type, type.toString());
+        mGson = adapter == null ? new Gson() : new GsonBuilder().registerTypeAdapter(type, adapter).create();
+        mTypeAdapter = adapter;
+        mCodec = codec;
+        mStore = new DataStore<>(mDataFile, mDataType, mGson, codec);
+        mExecutor = IoExecutor.newSerialExecutor();
+        mWriteScheduler = new WriteScheduler<>(new WriteScheduler.Writer<T>() {
+            @Override
+            public void write(T data) throws IOException {
+                mStore.write(data);
+                synchronized(mCacheLock) {
+                    //The cache holds this data or newer data still waiting to be written.
+                    mCachedStamp = mStore.getStamp();
+                }
+            }
+        }, mExecutor);
     }
 
     /**
@@ -65,17 +109,7 @@ public class DataAdapter<T> extends Observable implements Observer {
      * @return An instance of a DataAdapter fitting the arguments' specifications.
      */
     public static <T> DataAdapter<T> getDataAdapter(Context context, Class<T> type, String name, TypeAdapter<T> adapter) {
-        //If we already have a DataAdapter of this type, return it.
-        if(adapters.containsKey(name)) {
-            //The fact that the adapters are stored by their type makes this safe.
-            return (DataAdapter<T>) adapters.get(name);
-
-            //If we don't have a DataAdapter of this type, create one and add it and return it.
-        } else {
-            DataAdapter<T> dataAdapter = new DataAdapter<>(context, type, name, adapter);
-            adapters.put(name, dataAdapter);
-            return dataAdapter;
-        }
+        return obtain(context, new Key<>(type, name), adapter, null);
     }
 
     /**
@@ -88,17 +122,7 @@ public class DataAdapter<T> extends Observable implements Observer {
      * @return An instance of a DataAdapter fitting the arguments' specifications.
      */
     public static <T> DataAdapter<T> getDataAdapter(Context context, Class<T> type, String name) {
-        //If we already have a DataAdapter of this type, return it.
-        if(adapters.containsKey(name)) {
-            //The fact that the adapters are stored by their type makes this safe.
-            return (DataAdapter<T>) adapters.get(name);
-
-            //If we don't have a DataAdapter of this type, create one and add it and return it.
-        } else {
-            DataAdapter<T> dataAdapter = new DataAdapter<>(context, type, name);
-            adapters.put(name, dataAdapter);
-            return dataAdapter;
-        }
+        return obtain(context, new Key<>(type, name), null, null);
     }
 
     /**
@@ -113,34 +137,215 @@ public class DataAdapter<T> extends Observable implements Observer {
     }
 
     /**
-     * Initiates an asynchronous task to write the given
-     * data to storage.
+     * Returns an instance of DataAdapter for the given Key,
+     * creating such a DataAdapter if one has not been constructed yet.
+     * @param key The name and type of the DataAdapter, and optionally
+     *            its TypeAdapter and format.
+     * @param <T> The generic type for this adapter.
+     * @return An instance of a DataAdapter fitting the Key.
+     */
+    public static <T> DataAdapter<T> getDataAdapter(Context context, Key<T> key) {
+        return obtain(context, key, key.mAdapter, key.mCodec);
+    }
+
+    /**
+     * Returns an instance of DataAdapter for the given Key that saves its
+     * data in the given format, creating such a DataAdapter if one has not
+     * been constructed yet.  Data saved earlier in another format is still
+     * read, and is converted to this one on first read.  Large datasets that
+     * are mostly read, like macro libraries, load faster with
+     * {@link DataCodec#BINARY} or {@link DataCodec#DEFLATE}.
+     * @param key   The name and type of the DataAdapter.
+     * @param codec The format to save data in.
+     * @param <T>   The generic type for this adapter.
+     * @return An instance of a DataAdapter fitting the Key.
+     * @throws IllegalStateException If the DataAdapter already exists
+     *                               and saves in another format.
+     */
+    public static <T> DataAdapter<T> getDataAdapter(Context context, Key<T> key, DataCodec codec) {
+        return obtain(context, key, key.mAdapter, codec);
+    }
+
+    /**
+     * Reads the data of each of the given DataAdapters into memory in the
+     * background, so that their first reads are answered from memory,
+     * without waiting on the disk or on Gson's reflection.  Meant to be
+     * called once at startup.  DataAdapters that need a TypeAdapter or a
+     * format other than JSON are created with the ones given in their Keys.
+     * @param keys The DataAdapters to warm up.
+     */
+    public static void prewarm(Context context, Key<?>... keys) {
+        Context appContext = context.getApplicationContext();
+        for(Key<?> key : keys) {
+            getDataAdapter(appContext, key).read();
+        }
+    }
+
+    /**
+     * Looks up or creates the DataAdapter for a Key.  If two threads race to
+     * create one, both construct a DataAdapter, which touches no files, and
+     * only the one put in the registry first is ever returned.
+     * @param adapter A TypeAdapter for the data type, or null for any.
+     * @param codec   The format to save data in, or null for any.  A
+     *                DataAdapter created without one saves JSON.
+     * @throws IllegalArgumentException If the Key's name is already used
+     *                                  by a DataAdapter of another type.
+     * @throws IllegalStateException    If the DataAdapter already exists
+     *                                  with another TypeAdapter or format.
+     */
+    @SuppressWarnings("unchecked")
+    private static <T> DataAdapter<T> obtain(Context context, Key<T> key, TypeAdapter<T> adapter, DataCodec codec) {
+        //Safe because a Key's type is always the type of the DataAdapter stored under it.
+        DataAdapter<T> dataAdapter = (DataAdapter<T>) adapters.get(key);
+        if(dataAdapter != null) {
+            return dataAdapter.check(key, adapter, codec);
+        }
+
+        Class<?> fileType = fileTypes.putIfAbsent(key.mName, key.mType);
+        if(fileType != null && fileType != key.mType) {
+            throw new IllegalArgumentException("DataAdapter \"" + key.mName + "\" already stores "
+                    + fileType.getName() + ", not " + key.mType.getName());
+        }
+
+        DataAdapter<T> created = new DataAdapter<>(context, key.mType, key.mName, adapter,
+                codec != null ? codec : DataCodec.JSON);
+        dataAdapter = (DataAdapter<T>) adapters.putIfAbsent(key, created);
+        return dataAdapter != null ? dataAdapter.check(key, adapter, codec) : created;
+    }
+
+    /**
+     * Makes sure this DataAdapter reads and writes the way a caller asked,
+     * since data written in the wrong form couldn't be read by the caller
+     * that expects another.
+     */
+    private DataAdapter<T> check(Key<T> key, TypeAdapter<T> adapter, DataCodec codec) {
+        if(codec != null && codec != mCodec) {
+            throw new IllegalStateException("DataAdapter " + key + " already saves with "
+                    + mCodec.getClass().getSimpleName() + ", not " + codec.getClass().getSimpleName());
+        }
+        if(adapter != null && adapter != mTypeAdapter) {
+            throw new IllegalStateException("DataAdapter " + key + " already uses another TypeAdapter");
+        }
+        return this;
+    }
+
+    /**
+     * Schedules the given data to be written to storage.
      * @param data The data to write.
      */
     public void write(T data) {
-        new WriteTask(data).execute();
+        cache(data);
+        mWriteScheduler.submit(data, null);
     }
 
     /**
-     * Initiate an asynchronous task to write the given
-     * data to storage.  Accepts an observer to notify
+     * Schedules the given data to be written to storage.
+     * Accepts an observer to notify on the main thread
      * when the write operation is complete.
      * @param data     The data to write to file.
-     * @param observer To notify when write is finished.
+     * @param observer To notify when write is finished.  If later
+     *                 writes were coalesced with this one, it's given
+     *                 the latest data, which is what was written.
+     */
+    public void write(T data, final Observer observer) {
+        cache(data);
+        mWriteScheduler.submit(data, new WriteScheduler.OnWrittenListener<T>() {
+            @Override
+            public void onWritten(final T written) {
+                sMainHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        observer.update(DataAdapter.this, written);
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * Writes any scheduled data right away, blocking until it's in
+     * storage.  Call this off the main thread when shutting down.
+     * @throws InterruptedException If interrupted while waiting.
      */
-    public void write(T data, Observer observer) {
-        new WriteTask(data, observer).execute();
+    public void flush() throws InterruptedException {
+        mWriteScheduler.flush();
     }
 
     /**
-     * Initiates an asynchronous task to read data from
-     * this DataAdapter's file.  Callers provide a
-     * DataObserver which is used to deliver the
-     * parsed data.
+     * Reads data from this DataAdapter's file.  Callers
+     * provide an Observer which is used to deliver the
+     * parsed data.  If the data is cached and the file
+     * hasn't changed since, it's delivered right away,
+     * before this returns; otherwise the file is read in
+     * the background and the data delivered on the main
+     * thread when it's ready.
      * @param observer The observer to deliver the data to.
+     * @return A Future for the data, which fails with the
+     *         IOException if the file can't be read.  The
+     *         observer is given null in that case.
+     */
+    public Future<T> read(Observer observer) {
+        ReadTask task = new ReadTask(observer);
+        T cached;
+        synchronized(mCacheLock) {
+            if(!mHasCached || mStore.getStamp() != mCachedStamp) {
+                cached = null;
+            } else {
+                cached = mCached;
+            }
+        }
+        if(cached != null) {
+            task.deliver(cached);
+        } else {
+            mExecutor.execute(task);
+        }
+        return task;
+    }
+
+    /**
+     * Reads data from this DataAdapter's file, like {@link #read(Observer)},
+     * for callers that would rather wait on the result.
+     * @return A Future for the data.
+     */
+    public Future<T> read() {
+        return read(null);
+    }
+
+    /**
+     * Reads the data from storage on the calling thread and caches it.
+     * @return The data read, or null if there is none.
+     */
+    private T readThrough() throws IOException, InterruptedException {
+        //Make sure writes made before this read are in storage first.
+        mWriteScheduler.flushFromExecutor();
+
+        long version;
+        synchronized(mCacheLock) {
+            version = mVersion;
+        }
+        long stamp = mStore.getStamp();
+        T data = mStore.read();
+        synchronized(mCacheLock) {
+            //Only cache what was read if nothing newer was written meanwhile.
+            if(mVersion == version) {
+                mCached = data;
+                mHasCached = data != null;
+                mCachedStamp = stamp;
+            }
+        }
+        return data;
+    }
+
+    /**
+     * Makes the given data the newest data for reads, ahead of it being written.
      */
-    public void read(Observer observer) {
-        new ReadTask(observer).execute();
+    private void cache(T data) {
+        synchronized(mCacheLock) {
+            mCached = data;
+            mHasCached = true;
+            mVersion++;
+            mCachedStamp = mStore.getStamp();
+        }
     }
 
     /**
@@ -159,6 +364,75 @@ public class DataAdapter<T> extends Observable implements Observer {
         }
     }
 
+    /**
+     * Identifies a DataAdapter by the name of its file and the type of
+     * data it stores, so that a lookup can never return a DataAdapter of
+     * the wrong type.
+     * @param <T> The type of data stored.
+     */
+    public static final class Key<T> {
+
+        private final Class<T> mType;
+        private final String mName;
+        private final TypeAdapter<T> mAdapter;
+        private final DataCodec mCodec;
+
+        /**
+         * Constructs a Key.
+         * @param type The data type of the DataAdapter.
+         * @param name The name of the DataAdapter's file.
+         */
+        public Key(Class<T> type, String name) {
+            this(type, name, null, null);
+        }
+
+        /**
+         * Constructs a Key that also says how the DataAdapter is created,
+         * for DataAdapters that may be created from their Key alone, such
+         * as by {@link DataAdapter#prewarm(Context, Key[])}.  Only the type
+         * and name identify the DataAdapter.
+         * @param type    The data type of the DataAdapter.
+         * @param name    The name of the DataAdapter's file.
+         * @param adapter A TypeAdapter for the data type, or null.
+         * @param codec   The format to save data in, or null for JSON.
+         */
+        public Key(Class<T> type, String name, TypeAdapter<T> adapter, DataCodec codec) {
+            if(type == null || name == null) {
+                throw new NullPointerException("Key type and name must not be null");
+            }
+            mType = type;
+            mName = name;
+            mAdapter = adapter;
+            mCodec = codec;
+        }
+
+        /**
+         * Constructs a Key named after its type, like
+         * {@link DataAdapter#getDataAdapter(Context, Class)}.
+         * @param type The data type of the DataAdapter.
+         */
+        public Key(Class<T> type) {
+            this(type, type.toString());
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            if(!(other instanceof Key)) return false;
+            Key<?> key = (Key<?>) other;
+            return mType == key.mType && mName.equals(key.mName);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * mType.hashCode() + mName.hashCode();
+        }
+
+        @Override
+        public String toString() {
+            return mName + " (" + mType.getName() + ")";
+        }
+    }
+
     /**
      * Acts as a flag for our Observer update method for determining whether
      * a particular update is an event that is relevant to us.
@@ -183,127 +457,85 @@ public class DataAdapter<T> extends Observable implements Observer {
         //Unchecked cast because the only observables we subscribe to are confirmed T's
         T updatedData = (T) observable;
 
-        new WriteTask(updatedData).execute();
+        write(updatedData);
     }
 
     /**
-     * Erases this Data Adapter's data file.
+     * Erases this Data Adapter's data file, after any
+     * reads or writes already in progress.  Writes still
+     * waiting out their debounce window are dropped.
      */
     public void wipeFile() {
-        try {
-            new PrintWriter(mDataFile).close();
-        } catch(IOException e) {
-            e.printStackTrace();
-        }
-    }
-
-    /**
-     * Asynchronous task that takes care of writing data to a file.
-     */
-    public class WriteTask extends AsyncTask<Void, Void, T> {
-
-        private T mData;
-        private Observer mObserver;
-
-        public WriteTask(T data) {
-            mData = data;
+        mWriteScheduler.cancel();
+        synchronized(mCacheLock) {
+            mCached = null;
+            mHasCached = false;
+            mVersion++;
         }
-
-        public WriteTask(T data, Observer listener) {
-            this(data);
-            mObserver = listener;
-        }
-
-        /**
-         * Actually performs data writing.
-         * @param params Null in this case.
-         * @return True if written successfully, false otherwise.
-         */
-        @Override
-        protected T doInBackground(Void... params) {
-            wipeFile();
-            if(!mDataFile.exists()) {
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
                 try {
-                    mDataFile.createNewFile();
-                    System.out.println("Successfully created new DataFile " + mDataFile.toString());
+                    mStore.wipe();
                 } catch(IOException e) {
                     e.printStackTrace();
-                    return null;
                 }
             }
-
-            String json = mGson.toJson(mData);
-            try {
-                FileOutputStream fos = new FileOutputStream(mDataFile, true);
-                fos.write(json.getBytes());
-                fos.close();
-                return mData;
-            } catch(IOException e) {
-                e.printStackTrace();
-                return null;
-            }
-        }
-
-        @Override
-        protected void onPostExecute(T data) {
-            super.onPostExecute(data);
-            if(mObserver != null) {
-                mObserver.update(DataAdapter.this, data);
-            }
-        }
+        });
     }
 
     /**
-     * Asynchronous task that reads from a file and delivers with a callback.
+     * Task that reads from a file on the I/O executor and delivers
+     * the data to an Observer on the main thread.
      */
-    public class ReadTask extends AsyncTask<Void, Void, T> {
+    private class ReadTask extends FutureTask<T> {
 
-        private Observer mObserver;
+        private final Observer mObserver;
 
         public ReadTask(Observer observer) {
+            super(new Callable<T>() {
+                @Override
+                public T call() throws Exception {
+                    return readThrough();
+                }
+            });
             mObserver = observer;
         }
 
-        @Override
-        protected T doInBackground(Void... params) {
-            T data;
-            try {
-                BufferedReader br = new BufferedReader(
-                        new InputStreamReader(
-                                new FileInputStream(mDataFile)));
-
-                StringBuilder builder = new StringBuilder();
-                String line;
-                while((line = br.readLine()) != null) {
-                    builder.append(line);
-                }
-                String json = builder.toString();
-                System.out.println("Read json data: (" + json + ")");
-                if(json.equals("")) {
-                    System.out.println("RETURNING NULL");
-                    return null;
-                }
-
-                System.out.println("About to construct data: ");
-                data = mGson.fromJson(json, mDataType);
-                System.out.println("Constructed json data: " + data.toString());
-                return data;
-
-            } catch(IOException e) {
-                e.printStackTrace();
-                return null;
-            }
+        /**
+         * Completes this task with data that's already at hand.
+         */
+        void deliver(T data) {
+            set(data);
         }
 
         /**
-         * When we've finished parsing the data, call the listener
+         * When we've finished parsing the data, call the observer
          * to deliver the constructed object.
-         * @param data The data read from storage.
          */
         @Override
-        protected void onPostExecute(T data) {
-            super.onPostExecute(data);
-            mObserver.update(DataAdapter.this, data);
+        protected void done() {
+            if(mObserver == null || isCancelled()) return;
+            T data = null;
+            try {
+                data = get();
+            } catch(InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch(ExecutionException e) {
+                e.getCause().printStackTrace();
+            }
+
+            if(Looper.myLooper() == Looper.getMainLooper()) {
+                mObserver.update(DataAdapter.this, data);
+            } else {
+                final T result = data;
+                sMainHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        mObserver.update(DataAdapter.this, result);
+                    }
+                });
+            }
         }
     }
-}
\ No newline at end of file
+}
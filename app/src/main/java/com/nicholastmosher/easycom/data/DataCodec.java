@@ -0,0 +1,96 @@
+package com.nicholastmosher.easycom.data;
+
+import com.google.gson.JsonElement;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PushbackInputStream;
+
+/**
+ * Converts a stored document, as a JSON tree, to and from bytes.  Which
+ * codec a DataStore writes with is up to its owner; reading works with any
+ * of them, since every format can be told apart by its first bytes:
+ * <pre>
+ *     JSON:    plain JSON text, with no header, as DataAdapter always wrote
+ *     Binary:  [0xEC][1][tree], see {@link BinaryCodec}
+ *     Deflate: [0xEC][2][deflated document in another format]
+ * </pre>
+ * No JSON text can begin with 0xEC, so files written before codecs existed
+ * are read as JSON.
+ */
+public abstract class DataCodec {
+
+    static final int MAGIC = 0xEC;
+    static final int FORMAT_JSON = 0;
+    static final int FORMAT_BINARY = 1;
+    static final int FORMAT_DEFLATE = 2;
+
+    public static final DataCodec JSON = new JsonCodec();
+    public static final DataCodec BINARY = new BinaryCodec();
+    public static final DataCodec DEFLATE = new DeflateCodec(BINARY);
+
+    /**
+     * Returns the format byte that follows the magic byte in this codec's
+     * header, or FORMAT_JSON for plain JSON, which has no header.
+     */
+    abstract int getFormat();
+
+    /**
+     * Writes a document, including this codec's header.
+     * @param document The document to write.
+     * @param out      The stream to write to.  It's not closed.
+     * @throws IOException If the stream can't be written.
+     */
+    public abstract void write(JsonElement document, OutputStream out) throws IOException;
+
+    /**
+     * Reads a document whose header has already been read by
+     * {@link #detect(PushbackInputStream)}.
+     * @param in The stream to read from.
+     * @return The document read.
+     * @throws IOException If the stream can't be read or isn't valid.
+     */
+    public abstract JsonElement readBody(InputStream in) throws IOException;
+
+    /**
+     * Tells whether this codec writes in the same format as another.
+     * @param other The codec to compare with.
+     * @return True if both write the same format.
+     */
+    public boolean isSameFormat(DataCodec other) {
+        return getFormat() == other.getFormat();
+    }
+
+    /**
+     * Reads the header at the start of a stream, if there is one, and
+     * returns the codec that can read the rest.
+     * @param in The stream to read from; must allow one byte of pushback.
+     * @return The codec the stream was written with.
+     * @throws IOException If the stream can't be read or has an unknown header.
+     */
+    public static DataCodec detect(PushbackInputStream in) throws IOException {
+        int first = in.read();
+        if(first != MAGIC) {
+            if(first >= 0) in.unread(first);
+            return JSON;
+        }
+        int format = in.read();
+        switch(format) {
+            case FORMAT_BINARY:
+                return BINARY;
+            case FORMAT_DEFLATE:
+                return DEFLATE;
+            default:
+                throw new IOException("Unknown stored data format " + format);
+        }
+    }
+
+    /**
+     * Writes this codec's header.  Codecs with a header call this first.
+     */
+    void writeHeader(OutputStream out) throws IOException {
+        out.write(MAGIC);
+        out.write(getFormat());
+    }
+}
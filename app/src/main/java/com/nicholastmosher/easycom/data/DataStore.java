@@ -0,0 +1,88 @@
+package com.nicholastmosher.easycom.data;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonElement;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.Type;
+
+/**
+ * Stores a single object of a given type in a file, as JSON by default or
+ * in the format of another DataCodec.  This is the
+ * synchronous storage behind a DataAdapter; it has no Android dependencies,
+ * so it can be exercised directly on a plain JVM.
+ *
+ * Objects are converted to a JSON tree and saved through a ChangeLog, so
+ * each write only appends what changed since the previous one.
+ *
+ * Reads and writes are synchronized, so a DataStore may be shared between
+ * background threads.
+ * @param <T> The type of object stored.
+ */
+public class DataStore<T> {
+
+    private final Type mType;
+    private final Gson mGson;
+    private final ChangeLog mChangeLog;
+
+    /**
+     * Constructs a DataStore.
+     * @param file The file to store the object in.
+     * @param type The type of the object stored.
+     * @param gson The Gson instance to convert objects with.
+     */
+    public DataStore(File file, Type type, Gson gson) {
+        this(file, type, gson, DataCodec.JSON);
+    }
+
+    /**
+     * Constructs a DataStore that saves in the given format.  Files saved
+     * in any other format are still read, and are converted on first read.
+     * @param file  The file to store the object in.
+     * @param type  The type of the object stored.
+     * @param gson  The Gson instance to convert objects with.
+     * @param codec The format to save the object in.
+     */
+    public DataStore(File file, Type type, Gson gson, DataCodec codec) {
+        mType = type;
+        mGson = gson;
+        mChangeLog = new ChangeLog(file, codec);
+    }
+
+    /**
+     * Writes the given object to storage.
+     * @param data The object to write.
+     * @throws IOException If the object couldn't be written.
+     */
+    public synchronized void write(T data) throws IOException {
+        mChangeLog.write(mGson.toJsonTree(data, mType));
+    }
+
+    /**
+     * Reads the object from storage.
+     * @return The stored object, or null if nothing has been stored.
+     * @throws IOException If the file couldn't be read.
+     */
+    public synchronized T read() throws IOException {
+        JsonElement tree = mChangeLog.read();
+        return tree == null ? null : mGson.<T>fromJson(tree, mType);
+    }
+
+    /**
+     * Returns a value that changes whenever the stored object's files are
+     * modified.  Doesn't wait for a read or write in progress.
+     * @return A stamp of the stored object's files.
+     */
+    public long getStamp() {
+        return mChangeLog.getStamp();
+    }
+
+    /**
+     * Erases the stored object.
+     * @throws IOException If the file couldn't be erased.
+     */
+    public synchronized void wipe() throws IOException {
+        mChangeLog.clear();
+    }
+}
@@ -0,0 +1,74 @@
+package com.nicholastmosher.easycom.data;
+
+import com.google.gson.JsonElement;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PushbackInputStream;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Compresses documents written by another codec with deflate.  Best for
+ * large datasets that are read much more often than they're compacted,
+ * such as macro libraries and captured sessions; the compressed document
+ * carries its own header, so it's read back with whichever codec wrote it.
+ */
+public class DeflateCodec extends DataCodec {
+
+    private static final int BUFFER_SIZE = 8192;
+
+    private final DataCodec mInner;
+    private final int mLevel;
+
+    /**
+     * Constructs a DeflateCodec with the default compression level.
+     * @param inner The codec whose output is compressed.
+     */
+    public DeflateCodec(DataCodec inner) {
+        this(inner, Deflater.DEFAULT_COMPRESSION);
+    }
+
+    /**
+     * Constructs a DeflateCodec.
+     * @param inner The codec whose output is compressed.
+     * @param level The compression level, from 0 to 9.
+     */
+    public DeflateCodec(DataCodec inner, int level) {
+        mInner = inner;
+        mLevel = level;
+    }
+
+    @Override
+    int getFormat() {
+        return FORMAT_DEFLATE;
+    }
+
+    @Override
+    public void write(JsonElement document, OutputStream out) throws IOException {
+        writeHeader(out);
+        Deflater deflater = new Deflater(mLevel);
+        try {
+            DeflaterOutputStream deflated = new DeflaterOutputStream(out, deflater, BUFFER_SIZE);
+            mInner.write(document, deflated);
+            deflated.finish();
+        } finally {
+            deflater.end();
+        }
+    }
+
+    @Override
+    public JsonElement readBody(InputStream in) throws IOException {
+        Inflater inflater = new Inflater();
+        try {
+            PushbackInputStream inflated = new PushbackInputStream(
+                    new InflaterInputStream(in, inflater, BUFFER_SIZE));
+            return detect(inflated).readBody(inflated);
+        } finally {
+            inflater.end();
+        }
+    }
+}
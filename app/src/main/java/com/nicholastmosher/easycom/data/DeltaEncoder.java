@@ -0,0 +1,295 @@
+package com.nicholastmosher.easycom.data;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Filters a stream of named Packets so that only values that have actually
+ * changed get sent.  Control UIs tend to resend every joystick axis and
+ * toggle on every frame; the DeltaEncoder remembers the last value it sent
+ * for each Packet name and drops Packets that differ from it by no more
+ * than a threshold.
+ *
+ * A receiver that misses a Packet would otherwise never learn the value, so
+ * every keyframe interval the encoder resends the latest value offered for
+ * every name, including values that were suppressed; a stream that settles
+ * within the threshold of what was last sent still arrives at its final
+ * value by the next keyframe.
+ * Keyframes are checked whenever a Packet is offered; callers whose streams
+ * may go quiet can also call {@link #sendKeyframeIfDue()} periodically.
+ *
+ * All methods are synchronized.
+ */
+public class DeltaEncoder {
+
+    public static final long DEFAULT_KEYFRAME_INTERVAL_MILLIS = 1000;
+
+    /**
+     * Receives the Packets that the DeltaEncoder decides to send.
+     */
+    public interface OnSendListener {
+        void onSend(Packet packet);
+    }
+
+    private final OnSendListener mListener;
+    /** The last value sent for each name, which offered values are compared to. */
+    private final Map<String, Packet> mLastSent = new HashMap<>();
+    /** The latest value offered for each name, which keyframes send. */
+    private final Map<String, Packet> mLatest = new HashMap<>();
+    private final Map<String, Double> mThresholds = new HashMap<>();
+    private final double mDefaultThreshold;
+    private final long mKeyframeIntervalNanos;
+
+    private long mLastKeyframe = System.nanoTime();
+    private long mSent;
+    private long mSuppressed;
+
+    /**
+     * Constructs a DeltaEncoder that sends changed Packets into a
+     * PacketFrameBuilder, using the default keyframe interval.
+     * @param builder   The frame builder to send changed Packets into.
+     * @param threshold How far a numeric value must move before it's resent.
+     */
+    public DeltaEncoder(final PacketFrameBuilder builder, double threshold) {
+        this(new OnSendListener() {
+            @Override
+            public void onSend(Packet packet) {
+                builder.add(packet);
+            }
+        }, threshold, DEFAULT_KEYFRAME_INTERVAL_MILLIS);
+    }
+
+    /**
+     * Constructs a DeltaEncoder.
+     * @param listener               Receives the Packets that should be sent.
+     * @param threshold              How far a numeric value must move before
+     *                               it's resent.  Zero resends on any change.
+     * @param keyframeIntervalMillis How often the full state is resent.  Zero
+     *                               or less disables keyframes.
+     */
+    public DeltaEncoder(OnSendListener listener, double threshold, long keyframeIntervalMillis) {
+        if(threshold < 0) {
+            throw new IllegalArgumentException("Threshold must not be negative");
+        }
+        mListener = listener;
+        mDefaultThreshold = threshold;
+        mKeyframeIntervalNanos = TimeUnit.MILLISECONDS.toNanos(keyframeIntervalMillis);
+    }
+
+    /**
+     * Overrides the change threshold for Packets with the given name, for
+     * streams that need finer or coarser resolution than the default.
+     * @param name      The Packet name to set the threshold for.
+     * @param threshold How far the named value must move before it's resent.
+     */
+    public synchronized void setThreshold(String name, double threshold) {
+        if(threshold < 0) {
+            throw new IllegalArgumentException("Threshold must not be negative");
+        }
+        mThresholds.put(name, threshold);
+    }
+
+    /**
+     * Offers a Packet to the encoder.  The Packet is sent if its name is new
+     * or its value changed by more than the threshold; otherwise it's dropped.
+     * The caller keeps ownership of the Packet, so pooled Packets may be
+     * released as soon as this returns.
+     * @param packet The latest value for the Packet's name.
+     * @return True if the Packet was sent.
+     */
+    public synchronized boolean offer(Packet packet) {
+        Packet last = mLastSent.get(packet.getName());
+        boolean changed = (last == null || last.getType() != packet.getType()
+                || hasChanged(last, packet, getThreshold(packet.getName())));
+
+        remember(mLatest, packet);
+        if(changed) {
+            remember(mLastSent, packet);
+            mSent++;
+            mListener.onSend(packet);
+        } else {
+            mSuppressed++;
+        }
+
+        sendKeyframeIfDue();
+        return changed;
+    }
+
+    /**
+     * Sends a keyframe if the keyframe interval has
+     * elapsed since the last one.
+     */
+    public synchronized void sendKeyframeIfDue() {
+        if(mKeyframeIntervalNanos > 0 && System.nanoTime() - mLastKeyframe >= mKeyframeIntervalNanos) {
+            sendKeyframe();
+        }
+    }
+
+    /**
+     * Immediately resends the latest value of every name the encoder has
+     * seen, so a receiver that dropped data can resynchronize.
+     */
+    public synchronized void sendKeyframe() {
+        mLastKeyframe = System.nanoTime();
+        for(Packet packet : mLatest.values()) {
+            remember(mLastSent, packet);
+            mSent++;
+            mListener.onSend(packet);
+        }
+    }
+
+    /**
+     * Forgets all remembered values, so that the next Packet for every name
+     * is sent.  Use this when the receiver has lost its state, for example
+     * after reconnecting.
+     */
+    public synchronized void reset() {
+        mLastSent.clear();
+        mLatest.clear();
+    }
+
+    /**
+     * Returns the number of Packets sent, including keyframes.
+     * @return The number of Packets sent.
+     */
+    public synchronized long getSentCount() {
+        return mSent;
+    }
+
+    /**
+     * Returns the number of Packets dropped because they hadn't changed.
+     * @return The number of Packets suppressed.
+     */
+    public synchronized long getSuppressedCount() {
+        return mSuppressed;
+    }
+
+    private double getThreshold(String name) {
+        Double threshold = mThresholds.get(name);
+        return (threshold != null) ? threshold : mDefaultThreshold;
+    }
+
+    /**
+     * Compares two Packets of the same Type.  Numbers have changed if they
+     * moved by more than the threshold; everything else has changed if it's
+     * not equal.
+     */
+    private static boolean hasChanged(Packet last, Packet next, double threshold) {
+        switch(next.getType()) {
+            case BOOLEAN:
+                return last.getBoolean() != next.getBoolean();
+            case INT:
+                return Math.abs((double) next.getInt() - last.getInt()) > threshold;
+            case LONG:
+                return Math.abs((double) next.getLong() - last.getLong()) > threshold;
+            case DOUBLE:
+                return hasChanged(last.getDouble(), next.getDouble(), threshold);
+            case STRING:
+                return !last.getString().equals(next.getString());
+        }
+
+        if(last.getLength() != next.getLength()) {
+            return true;
+        }
+        for(int i = 0; i < next.getLength(); i++) {
+            switch(next.getType()) {
+                case BOOLEAN_ARRAY:
+                    if(last.getBoolean(i) != next.getBoolean(i)) return true;
+                    break;
+                case INT_ARRAY:
+                    if(Math.abs((double) next.getInt(i) - last.getInt(i)) > threshold) return true;
+                    break;
+                case LONG_ARRAY:
+                    if(Math.abs((double) next.getLong(i) - last.getLong(i)) > threshold) return true;
+                    break;
+                case DOUBLE_ARRAY:
+                    if(hasChanged(last.getDouble(i), next.getDouble(i), threshold)) return true;
+                    break;
+                case STRING_ARRAY:
+                    if(!equals(last.getString(i), next.getString(i))) return true;
+                    break;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * A value going to or from NaN always counts as a change, since any
+     * comparison with NaN is false.
+     */
+    private static boolean hasChanged(double last, double next, double threshold) {
+        return Math.abs(next - last) > threshold || Double.isNaN(next) != Double.isNaN(last);
+    }
+
+    private static boolean equals(String a, String b) {
+        return (a == null) ? b == null : a.equals(b);
+    }
+
+    /**
+     * Stores a copy of a Packet under its name, reusing
+     * the stored Packet if it has the same Type.
+     */
+    private static void remember(Map<String, Packet> values, Packet packet) {
+        Packet stored = values.get(packet.getName());
+        if(stored == null || stored.getType() != packet.getType()) {
+            stored = PacketPool.create(packet.getType());
+            values.put(packet.getName(), stored);
+        }
+        copy(packet, stored);
+    }
+
+    /**
+     * Copies the name and value of one Packet into another of the same Type.
+     */
+    private static void copy(Packet from, Packet to) {
+        String name = from.getName();
+        switch(from.getType()) {
+            case BOOLEAN:
+                ((BooleanPacket) to).reset(name, from.getBoolean());
+                return;
+            case INT:
+                ((IntPacket) to).reset(name, from.getInt());
+                return;
+            case LONG:
+                ((LongPacket) to).reset(name, from.getLong());
+                return;
+            case DOUBLE:
+                ((DoublePacket) to).reset(name, from.getDouble());
+                return;
+            case STRING:
+                ((StringPacket) to).reset(name, from.getString());
+                return;
+        }
+
+        to.setName(name);
+        int length = from.getLength();
+        switch(from.getType()) {
+            case BOOLEAN_ARRAY:
+                BooleanArrayPacket booleans = (BooleanArrayPacket) to;
+                booleans.setLength(length);
+                for(int i = 0; i < length; i++) booleans.set(i, from.getBoolean(i));
+                break;
+            case INT_ARRAY:
+                IntArrayPacket ints = (IntArrayPacket) to;
+                ints.setLength(length);
+                for(int i = 0; i < length; i++) ints.set(i, from.getInt(i));
+                break;
+            case LONG_ARRAY:
+                LongArrayPacket longs = (LongArrayPacket) to;
+                longs.setLength(length);
+                for(int i = 0; i < length; i++) longs.set(i, from.getLong(i));
+                break;
+            case DOUBLE_ARRAY:
+                DoubleArrayPacket doubles = (DoubleArrayPacket) to;
+                doubles.setLength(length);
+                for(int i = 0; i < length; i++) doubles.set(i, from.getDouble(i));
+                break;
+            case STRING_ARRAY:
+                StringArrayPacket strings = (StringArrayPacket) to;
+                strings.setLength(length);
+                for(int i = 0; i < length; i++) strings.set(i, from.getString(i));
+                break;
+        }
+    }
+}
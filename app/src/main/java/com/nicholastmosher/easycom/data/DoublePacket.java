@@ -0,0 +1,39 @@
+package com.nicholastmosher.easycom.data;
+
+/**
+ * A Packet that carries a single unboxed double.
+ */
+public class DoublePacket extends Packet {
+
+    private double mValue;
+
+    DoublePacket() {
+    }
+
+    DoublePacket(String name, double value) {
+        super(name);
+        mValue = value;
+    }
+
+    /**
+     * Reuses this Packet to carry a new name and value.
+     * @param name  The new name of this Packet.
+     * @param value The new value of this Packet.
+     * @return This Packet, for chaining.
+     */
+    public DoublePacket reset(String name, double value) {
+        setName(name);
+        mValue = value;
+        return this;
+    }
+
+    @Override
+    public Type getType() {
+        return Type.DOUBLE;
+    }
+
+    @Override
+    public double getDouble() {
+        return mValue;
+    }
+}
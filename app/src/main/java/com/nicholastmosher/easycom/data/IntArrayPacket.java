@@ -0,0 +1,105 @@
+package com.nicholastmosher.easycom.data;
+
+/**
+ * A Packet that carries an array of ints.  The values are copied into a
+ * backing array owned by this Packet, which is reused across resets and only
+ * grows when a longer array is stored.  Read single elements with
+ * {@link #getInt(int)} to avoid allocating; {@link #getIntArray()} returns
+ * a copy.
+ */
+public class IntArrayPacket extends Packet {
+
+    private static final int[] EMPTY = new int[0];
+
+    private int[] mValues = EMPTY;
+    private int mLength;
+
+    IntArrayPacket() {
+    }
+
+    IntArrayPacket(String name, int[] values) {
+        super(name);
+        setValues(values, 0, values.length);
+    }
+
+    /**
+     * Reuses this Packet to carry a new name and values.
+     * @param name   The new name of this Packet.
+     * @param values The new values of this Packet.  They are copied.
+     * @return This Packet, for chaining.
+     */
+    public IntArrayPacket reset(String name, int[] values) {
+        return reset(name, values, 0, values.length);
+    }
+
+    /**
+     * Reuses this Packet to carry a new name and a range of values.
+     * @param name   The new name of this Packet.
+     * @param values The array holding the new values.  They are copied.
+     * @param offset The index of the first value to copy.
+     * @param length The number of values to copy.
+     * @return This Packet, for chaining.
+     */
+    public IntArrayPacket reset(String name, int[] values, int offset, int length) {
+        setName(name);
+        setValues(values, offset, length);
+        return this;
+    }
+
+    /**
+     * Sets the length of this Packet without copying any values, so that a
+     * decoder can fill it in place with {@link #set(int, int)}.
+     */
+    void setLength(int length) {
+        if(mValues.length < length) {
+            mValues = new int[length];
+        }
+        mLength = length;
+    }
+
+    void set(int index, int value) {
+        if(index >= mLength) {
+            throw new ArrayIndexOutOfBoundsException(index);
+        }
+        mValues[index] = value;
+    }
+
+    private void setValues(int[] values, int offset, int length) {
+        if(values == null) {
+            throw new NullPointerException("Packet data is null!");
+        }
+        setLength(length);
+        System.arraycopy(values, offset, mValues, 0, length);
+    }
+
+    @Override
+    void clear() {
+        super.clear();
+        mLength = 0;
+    }
+
+    @Override
+    public Type getType() {
+        return Type.INT_ARRAY;
+    }
+
+    @Override
+    public int getLength() {
+        return mLength;
+    }
+
+    @Override
+    public int getInt(int index) {
+        if(index >= mLength) {
+            throw new ArrayIndexOutOfBoundsException(index);
+        }
+        return mValues[index];
+    }
+
+    @Override
+    public int[] getIntArray() {
+        int[] copy = new int[mLength];
+        System.arraycopy(mValues, 0, copy, 0, mLength);
+        return copy;
+    }
+}
@@ -0,0 +1,39 @@
+package com.nicholastmosher.easycom.data;
+
+/**
+ * A Packet that carries a single unboxed int.
+ */
+public class IntPacket extends Packet {
+
+    private int mValue;
+
+    IntPacket() {
+    }
+
+    IntPacket(String name, int value) {
+        super(name);
+        mValue = value;
+    }
+
+    /**
+     * Reuses this Packet to carry a new name and value.
+     * @param name  The new name of this Packet.
+     * @param value The new value of this Packet.
+     * @return This Packet, for chaining.
+     */
+    public IntPacket reset(String name, int value) {
+        setName(name);
+        mValue = value;
+        return this;
+    }
+
+    @Override
+    public Type getType() {
+        return Type.INT;
+    }
+
+    @Override
+    public int getInt() {
+        return mValue;
+    }
+}
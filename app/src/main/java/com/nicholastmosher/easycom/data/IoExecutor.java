@@ -0,0 +1,98 @@
+package com.nicholastmosher.easycom.data;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The threads that file I/O for stored data runs on, kept apart from
+ * AsyncTask's executor so that storage never waits behind unrelated work,
+ * and unrelated work never waits behind storage.
+ *
+ * Work for a single file is given to a serial executor from
+ * {@link #newSerialExecutor()}, which runs its tasks one at a time and in
+ * order.  Serial executors share one small pool of threads, so work on
+ * different files runs in parallel and one slow file doesn't hold up the
+ * rest.
+ */
+public final class IoExecutor {
+
+    private static final int POOL_SIZE = 4;
+    private static final long KEEP_ALIVE_SECONDS = 30;
+
+    private static ThreadPoolExecutor sPool;
+
+    private IoExecutor() {
+    }
+
+    /**
+     * Returns a new executor that runs its tasks one at a time, in the
+     * order they were given, on the shared I/O threads.
+     * @return A new serial executor.
+     */
+    public static Executor newSerialExecutor() {
+        return new SerialExecutor(getPool());
+    }
+
+    private static synchronized Executor getPool() {
+        if(sPool == null) {
+            final AtomicInteger count = new AtomicInteger();
+            sPool = new ThreadPoolExecutor(POOL_SIZE, POOL_SIZE, KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+                    new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, "IoExecutor-" + count.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+            //Let the threads go when there's been nothing to do for a while.
+            sPool.allowCoreThreadTimeOut(true);
+        }
+        return sPool;
+    }
+
+    /**
+     * Runs tasks one at a time on a shared executor.  At most one of its
+     * tasks is ever queued on the shared executor; the next is handed over
+     * when the running one finishes.
+     */
+    private static class SerialExecutor implements Executor {
+
+        private final Executor mExecutor;
+        private final ArrayDeque<Runnable> mTasks = new ArrayDeque<>();
+        private Runnable mActive;
+
+        SerialExecutor(Executor executor) {
+            mExecutor = executor;
+        }
+
+        @Override
+        public synchronized void execute(final Runnable task) {
+            mTasks.offer(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        task.run();
+                    } finally {
+                        scheduleNext();
+                    }
+                }
+            });
+            if(mActive == null) {
+                scheduleNext();
+            }
+        }
+
+        private synchronized void scheduleNext() {
+            mActive = mTasks.poll();
+            if(mActive != null) {
+                mExecutor.execute(mActive);
+            }
+        }
+    }
+}
@@ -0,0 +1,59 @@
+package com.nicholastmosher.easycom.data;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonIOException;
+import com.google.gson.JsonParseException;
+import com.google.gson.JsonParser;
+import com.google.gson.stream.JsonReader;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+
+/**
+ * Stores documents as plain UTF-8 JSON text, with no header, so files stay
+ * readable and compatible with everything DataAdapter wrote before codecs.
+ * Reading streams through Gson's JsonReader, without building a String.
+ */
+public class JsonCodec extends DataCodec {
+
+    /** Writes trees exactly as they are, nulls included. */
+    private static final Gson GSON = new GsonBuilder()
+            .serializeNulls()
+            .disableHtmlEscaping()
+            .create();
+
+    JsonCodec() {
+    }
+
+    @Override
+    int getFormat() {
+        return FORMAT_JSON;
+    }
+
+    @Override
+    public void write(JsonElement document, OutputStream out) throws IOException {
+        Writer writer = new OutputStreamWriter(out, ChannelWriter.UTF_8);
+        try {
+            GSON.toJson(document, writer);
+        } catch(JsonIOException e) {
+            throw new IOException(e);
+        }
+        writer.flush();
+    }
+
+    @Override
+    public JsonElement readBody(InputStream in) throws IOException {
+        JsonReader reader = new JsonReader(new InputStreamReader(in, ChannelWriter.UTF_8.newDecoder()));
+        try {
+            return new JsonParser().parse(reader);
+        } catch(JsonParseException e) {
+            throw new IOException("Stored data is not valid JSON", e);
+        }
+    }
+}
@@ -0,0 +1,105 @@
+package com.nicholastmosher.easycom.data;
+
+/**
+ * A Packet that carries an array of longs.  The values are copied into a
+ * backing array owned by this Packet, which is reused across resets and only
+ * grows when a longer array is stored.  Read single elements with
+ * {@link #getLong(int)} to avoid allocating; {@link #getLongArray()} returns
+ * a copy.
+ */
+public class LongArrayPacket extends Packet {
+
+    private static final long[] EMPTY = new long[0];
+
+    private long[] mValues = EMPTY;
+    private int mLength;
+
+    LongArrayPacket() {
+    }
+
+    LongArrayPacket(String name, long[] values) {
+        super(name);
+        setValues(values, 0, values.length);
+    }
+
+    /**
+     * Reuses this Packet to carry a new name and values.
+     * @param name   The new name of this Packet.
+     * @param values The new values of this Packet.  They are copied.
+     * @return This Packet, for chaining.
+     */
+    public LongArrayPacket reset(String name, long[] values) {
+        return reset(name, values, 0, values.length);
+    }
+
+    /**
+     * Reuses this Packet to carry a new name and a range of values.
+     * @param name   The new name of this Packet.
+     * @param values The array holding the new values.  They are copied.
+     * @param offset The index of the first value to copy.
+     * @param length The number of values to copy.
+     * @return This Packet, for chaining.
+     */
+    public LongArrayPacket reset(String name, long[] values, int offset, int length) {
+        setName(name);
+        setValues(values, offset, length);
+        return this;
+    }
+
+    /**
+     * Sets the length of this Packet without copying any values, so that a
+     * decoder can fill it in place with {@link #set(int, long)}.
+     */
+    void setLength(int length) {
+        if(mValues.length < length) {
+            mValues = new long[length];
+        }
+        mLength = length;
+    }
+
+    void set(int index, long value) {
+        if(index >= mLength) {
+            throw new ArrayIndexOutOfBoundsException(index);
+        }
+        mValues[index] = value;
+    }
+
+    private void setValues(long[] values, int offset, int length) {
+        if(values == null) {
+            throw new NullPointerException("Packet data is null!");
+        }
+        setLength(length);
+        System.arraycopy(values, offset, mValues, 0, length);
+    }
+
+    @Override
+    void clear() {
+        super.clear();
+        mLength = 0;
+    }
+
+    @Override
+    public Type getType() {
+        return Type.LONG_ARRAY;
+    }
+
+    @Override
+    public int getLength() {
+        return mLength;
+    }
+
+    @Override
+    public long getLong(int index) {
+        if(index >= mLength) {
+            throw new ArrayIndexOutOfBoundsException(index);
+        }
+        return mValues[index];
+    }
+
+    @Override
+    public long[] getLongArray() {
+        long[] copy = new long[mLength];
+        System.arraycopy(mValues, 0, copy, 0, mLength);
+        return copy;
+    }
+}
@@ -0,0 +1,39 @@
+package com.nicholastmosher.easycom.data;
+
+/**
+ * A Packet that carries a single unboxed long.
+ */
+public class LongPacket extends Packet {
+
+    private long mValue;
+
+    LongPacket() {
+    }
+
+    LongPacket(String name, long value) {
+        super(name);
+        mValue = value;
+    }
+
+    /**
+     * Reuses this Packet to carry a new name and value.
+     * @param name  The new name of this Packet.
+     * @param value The new value of this Packet.
+     * @return This Packet, for chaining.
+     */
+    public LongPacket reset(String name, long value) {
+        setName(name);
+        mValue = value;
+        return this;
+    }
+
+    @Override
+    public Type getType() {
+        return Type.LONG;
+    }
+
+    @Override
+    public long getLong() {
+        return mValue;
+    }
+}
@@ -1,165 +1,361 @@
 package com.nicholastmosher.easycom.data;
 
 import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParseException;
+import com.google.gson.JsonParser;
+import com.google.gson.TypeAdapter;
 import com.google.gson.reflect.TypeToken;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonWriter;
 
-import java.lang.reflect.Type;
+import java.io.IOException;
 
 /**
  * Created by Nick Mosher on 4/24/15.
+ * A named value that can be sent over a Connection.  Each kind of value has
+ * its own Packet subclass that stores it unboxed, so reading a value never
+ * allocates.  Packets are mutable so that they can be reset and reused by a
+ * high-rate sender instead of creating a new Packet per message.
  */
-public class Packet<T> {
+public abstract class Packet {
+
+    /**
+     * Gson is thread safe and expensive to build, so every json
+     * conversion shares this single instance.
+     */
+    private static final Gson GSON = new GsonBuilder()
+            .registerTypeHierarchyAdapter(Packet.class, new JsonAdapter())
+            .create();
 
     private String mName;
-    private Object mData;
 
-    private Packet(String name, Object data) {
-        if(name == null) {
-            throw new NullPointerException("Packet name is null!");
+    /**
+     * Set by PacketPool while this Packet is idle in the pool, to catch
+     * Packets that are released twice.
+     */
+    boolean mPooled;
+
+    /**
+     * Constructs an unnamed Packet for PacketPool to fill in later.
+     */
+    Packet() {
+    }
+
+    Packet(String name) {
+        setName(name);
+    }
+
+    /**
+     * Identifies the kind of value a Packet carries.  Each Type has a
+     * one-byte tag that is used to identify it in the binary wire format.
+     */
+    public enum Type {
+        BOOLEAN(1),
+        BOOLEAN_ARRAY(2),
+        INT(3),
+        INT_ARRAY(4),
+        LONG(5),
+        LONG_ARRAY(6),
+        DOUBLE(7),
+        DOUBLE_ARRAY(8),
+        STRING(9),
+        STRING_ARRAY(10);
+
+        private static final Type[] TAGS = new Type[16];
+        static {
+            for(Type type : values()) {
+                TAGS[type.mTag] = type;
+            }
+        }
+
+        private final byte mTag;
+
+        Type(int tag) {
+            mTag = (byte) tag;
+        }
+
+        /**
+         * Returns the tag byte that identifies this Type on the wire.
+         * @return The tag byte that identifies this Type on the wire.
+         */
+        public byte getTag() {
+            return mTag;
         }
-        if(data == null) {
-            throw new NullPointerException("Packet data is null!");
+
+        /**
+         * Looks up the Type identified by the given tag byte.
+         * @param tag The tag byte read from the wire.
+         * @return The Type matching the tag.
+         * @throws IllegalArgumentException If the tag is unknown.
+         */
+        public static Type fromTag(byte tag) throws IllegalArgumentException {
+            if(tag < 0 || tag >= TAGS.length || TAGS[tag] == null) {
+                throw new IllegalArgumentException("Unknown packet tag " + tag);
+            }
+            return TAGS[tag];
         }
     }
 
-    public static Packet asBoolean(String name, boolean value) {
-        return new Packet(name, value);
+    public static BooleanPacket asBoolean(String name, boolean value) {
+        return new BooleanPacket(name, value);
     }
 
-    public static Packet asBooleanArray(String name, boolean[] value) {
-        return new Packet(name, value);
+    public static BooleanArrayPacket asBooleanArray(String name, boolean[] value) {
+        return new BooleanArrayPacket(name, value);
     }
 
-    public static Packet asInt(String name, int value) {
-        return new Packet(name, value);
+    public static IntPacket asInt(String name, int value) {
+        return new IntPacket(name, value);
     }
 
-    public static Packet asIntArray(String name, int[] value) {
-        return new Packet(name, value);
+    public static IntArrayPacket asIntArray(String name, int[] value) {
+        return new IntArrayPacket(name, value);
     }
 
-    public static Packet asLong(String name, long value) {
-        return new Packet(name, value);
+    public static LongPacket asLong(String name, long value) {
+        return new LongPacket(name, value);
     }
 
-    public static Packet asLongArray(String name, long[] value) {
-        return new Packet(name, value);
+    public static LongArrayPacket asLongArray(String name, long[] value) {
+        return new LongArrayPacket(name, value);
     }
 
-    public static Packet asDouble(String name, double value) {
-        return new Packet(name, value);
+    public static DoublePacket asDouble(String name, double value) {
+        return new DoublePacket(name, value);
     }
 
-    public static Packet asDoubleArray(String name, double[] value) {
-        return new Packet(name, value);
+    public static DoubleArrayPacket asDoubleArray(String name, double[] value) {
+        return new DoubleArrayPacket(name, value);
     }
 
-    public static Packet asString(String name, String value) {
-        return new Packet(name, value);
+    public static StringPacket asString(String name, String value) {
+        return new StringPacket(name, value);
     }
 
-    public static Packet asStringArray(String name, String[] value) {
-        return new Packet(name, value);
+    public static StringArrayPacket asStringArray(String name, String[] value) {
+        return new StringArrayPacket(name, value);
     }
 
     public String getName() {
         return mName;
     }
 
-    public boolean getBoolean() throws IllegalStateException {
-        if(mData instanceof Boolean) {
-            return (Boolean) mData;
-        } else {
-            throw new IllegalStateException("Command is not a boolean!");
+    void setName(String name) {
+        if(name == null) {
+            throw new NullPointerException("Packet name is null!");
         }
+        mName = name;
     }
 
-    public boolean getBooleanArray() throws IllegalStateException {
-        if(mData instanceof Boolean[]) {
-            return (Boolean) mData;
-        } else {
-            throw new IllegalStateException("Command is not a boolean!");
-        }
+    /**
+     * Releases the name and any references held by this Packet so that
+     * a pooled Packet doesn't keep stale data alive.
+     */
+    void clear() {
+        mName = null;
+    }
+
+    /**
+     * Returns the Type of the value carried by this Packet.
+     * @return The Type of the value carried by this Packet.
+     */
+    public abstract Type getType();
+
+    /**
+     * Returns the number of elements in an array Packet.
+     * @return The number of elements in this Packet's array.
+     * @throws IllegalStateException If this Packet does not hold an array.
+     */
+    public int getLength() throws IllegalStateException {
+        throw new IllegalStateException("Command is not an array!");
+    }
+
+    public boolean getBoolean() throws IllegalStateException {
+        throw new IllegalStateException("Command is not a boolean!");
+    }
+
+    public boolean getBoolean(int index) throws IllegalStateException {
+        throw new IllegalStateException("Command is not a boolean array!");
+    }
+
+    public boolean[] getBooleanArray() throws IllegalStateException {
+        throw new IllegalStateException("Command is not a boolean array!");
     }
 
     public int getInt() throws IllegalStateException {
-        if(mData instanceof Integer) {
-            return (Integer) mData;
-        } else {
-            throw new IllegalStateException("Command is not an int!");
-        }
+        throw new IllegalStateException("Command is not an int!");
     }
 
-    public boolean getIntArray() throws IllegalStateException {
-        if(mData instanceof Integer[]) {
-            return (Boolean) mData;
-        } else {
-            throw new IllegalStateException("Command is not a boolean!");
-        }
+    public int getInt(int index) throws IllegalStateException {
+        throw new IllegalStateException("Command is not an int array!");
+    }
+
+    public int[] getIntArray() throws IllegalStateException {
+        throw new IllegalStateException("Command is not an int array!");
     }
 
     public long getLong() throws IllegalStateException {
-        if(mData instanceof Long) {
-            return (Long) mData;
-        } else {
-            throw new IllegalStateException("Command is not a long!");
-        }
+        throw new IllegalStateException("Command is not a long!");
     }
 
-    public boolean getLongArray() throws IllegalStateException {
-        if(mData instanceof Long[]) {
-            return (Boolean) mData;
-        } else {
-            throw new IllegalStateException("Command is not a boolean!");
-        }
+    public long getLong(int index) throws IllegalStateException {
+        throw new IllegalStateException("Command is not a long array!");
+    }
+
+    public long[] getLongArray() throws IllegalStateException {
+        throw new IllegalStateException("Command is not a long array!");
     }
 
     public double getDouble() throws IllegalStateException {
-        if(mData instanceof Double) {
-            return (Double) mData;
-        } else {
-            throw new IllegalStateException("Command is not a double!");
-        }
+        throw new IllegalStateException("Command is not a double!");
     }
 
-    public boolean getDoubleArray() throws IllegalStateException {
-        if(mData instanceof Double[]) {
-            return (Boolean) mData;
-        } else {
-            throw new IllegalStateException("Command is not a boolean!");
-        }
+    public double getDouble(int index) throws IllegalStateException {
+        throw new IllegalStateException("Command is not a double array!");
+    }
+
+    public double[] getDoubleArray() throws IllegalStateException {
+        throw new IllegalStateException("Command is not a double array!");
     }
 
     public String getString() throws IllegalStateException {
-        if(mData instanceof String) {
-            return (String) mData;
-        } else {
-            throw new IllegalStateException("Command is not a String!");
-        }
+        throw new IllegalStateException("Command is not a String!");
     }
 
-    public boolean getStringArray() throws IllegalStateException {
-        if(mData instanceof String[]) {
-            return (Boolean) mData;
-        } else {
-            throw new IllegalStateException("Command is not a boolean!");
-        }
+    public String getString(int index) throws IllegalStateException {
+        throw new IllegalStateException("Command is not a String array!");
+    }
+
+    public String[] getStringArray() throws IllegalStateException {
+        throw new IllegalStateException("Command is not a String array!");
     }
 
-    public static Type getTypeToken() {
+    public static java.lang.reflect.Type getTypeToken() {
         return new TypeToken<Packet>() {
         }.getType();
     }
 
+    /**
+     * Converts this Packet to json.  The binary format written by
+     * {@link PacketCodec} is preferred for sending; json is kept for
+     * debugging and human-readable output.
+     * @return A json representation of this Packet.
+     */
     public String toJson() {
-        return new Gson().toJson(this);
+        return GSON.toJson(this, Packet.class);
     }
 
     public static String toJson(Packet packet) {
-        return new Gson().toJson(packet);
+        return GSON.toJson(packet, Packet.class);
     }
 
     public static Packet fromJson(String json) {
-        return new Gson().fromJson(json, getTypeToken());
+        return GSON.fromJson(json, Packet.class);
+    }
+
+    @Override
+    public String toString() {
+        return toJson();
+    }
+
+    /**
+     * Converts Packets to and from json objects of the form
+     * {"type": "INT", "name": "speed", "value": 42}.  The type is stored
+     * explicitly so that the right Packet subclass can be rebuilt.
+     */
+    private static class JsonAdapter extends TypeAdapter<Packet> {
+
+        @Override
+        public void write(JsonWriter out, Packet packet) throws IOException {
+            if(packet == null) {
+                out.nullValue();
+                return;
+            }
+            out.beginObject();
+            out.name("type").value(packet.getType().name());
+            out.name("name").value(packet.getName());
+            out.name("value");
+
+            Type type = packet.getType();
+            switch(type) {
+                case BOOLEAN:
+                    out.value(packet.getBoolean());
+                    break;
+                case INT:
+                    out.value(packet.getInt());
+                    break;
+                case LONG:
+                    out.value(packet.getLong());
+                    break;
+                case DOUBLE:
+                    out.value(packet.getDouble());
+                    break;
+                case STRING:
+                    out.value(packet.getString());
+                    break;
+                default:
+                    out.beginArray();
+                    for(int i = 0; i < packet.getLength(); i++) {
+                        if(type == Type.BOOLEAN_ARRAY) out.value(packet.getBoolean(i));
+                        else if(type == Type.INT_ARRAY) out.value(packet.getInt(i));
+                        else if(type == Type.LONG_ARRAY) out.value(packet.getLong(i));
+                        else if(type == Type.DOUBLE_ARRAY) out.value(packet.getDouble(i));
+                        else out.value(packet.getString(i));
+                    }
+                    out.endArray();
+                    break;
+            }
+            out.endObject();
+        }
+
+        @Override
+        public Packet read(JsonReader in) throws IOException {
+            JsonObject object = new JsonParser().parse(in).getAsJsonObject();
+            if(!object.has("type") || !object.has("name") || !object.has("value")) {
+                throw new JsonParseException("Packet json requires type, name, and value");
+            }
+            Type type = Type.valueOf(object.get("type").getAsString());
+            String name = object.get("name").getAsString();
+
+            switch(type) {
+                case BOOLEAN:
+                    return asBoolean(name, object.get("value").getAsBoolean());
+                case INT:
+                    return asInt(name, object.get("value").getAsInt());
+                case LONG:
+                    return asLong(name, object.get("value").getAsLong());
+                case DOUBLE:
+                    return asDouble(name, object.get("value").getAsDouble());
+                case STRING:
+                    return asString(name, object.get("value").getAsString());
+            }
+
+            JsonArray array = object.getAsJsonArray("value");
+            switch(type) {
+                case BOOLEAN_ARRAY:
+                    boolean[] booleans = new boolean[array.size()];
+                    for(int i = 0; i < booleans.length; i++) booleans[i] = array.get(i).getAsBoolean();
+                    return asBooleanArray(name, booleans);
+                case INT_ARRAY:
+                    int[] ints = new int[array.size()];
+                    for(int i = 0; i < ints.length; i++) ints[i] = array.get(i).getAsInt();
+                    return asIntArray(name, ints);
+                case LONG_ARRAY:
+                    long[] longs = new long[array.size()];
+                    for(int i = 0; i < longs.length; i++) longs[i] = array.get(i).getAsLong();
+                    return asLongArray(name, longs);
+                case DOUBLE_ARRAY:
+                    double[] doubles = new double[array.size()];
+                    for(int i = 0; i < doubles.length; i++) doubles[i] = array.get(i).getAsDouble();
+                    return asDoubleArray(name, doubles);
+                default:
+                    String[] strings = new String[array.size()];
+                    for(int i = 0; i < strings.length; i++) strings[i] = array.get(i).getAsString();
+                    return asStringArray(name, strings);
+            }
+        }
     }
 }
@@ -0,0 +1,388 @@
+package com.nicholastmosher.easycom.data;
+
+import com.nicholastmosher.easycom.core.connection.Connection;
+
+import java.nio.BufferOverflowException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Encodes Packets into a compact binary format and decodes them back.
+ * Each encoded Packet is laid out as:
+ * <pre>
+ *     [type tag: 1 byte][name length: 1 byte][name: UTF-8][payload]
+ * </pre>
+ * Primitive payloads are written big-endian straight into a reusable
+ * ByteBuffer, and read straight into the unboxed fields of the matching
+ * Packet subclass.  Strings and arrays are prefixed with a 4 byte length.
+ * Boolean arrays are packed 8 values per byte.
+ *
+ * Names are interned on both sides of the codec: the encoder caches the
+ * UTF-8 bytes of each name it has seen, and the decoder maps incoming name
+ * bytes back to a canonical String instance, so steady streams of the same
+ * names don't allocate a String per Packet.  Because every Packet still
+ * carries its own name, the wire format is stateless and any Packet can be
+ * decoded on its own, even if earlier Packets were dropped.
+ *
+ * A PacketCodec is not thread safe; use one per sending thread.
+ */
+public class PacketCodec {
+
+    public static final int MAX_NAME_LENGTH = 255;
+
+    private static final int DEFAULT_CAPACITY = 256;
+    private static final int MAX_INTERNED_NAMES = 1024;
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private ByteBuffer mBuffer;
+    private final PacketPool mPool;
+    private final Map<String, byte[]> mEncodedNames = new HashMap<>();
+    private final NameTable mDecodedNames = new NameTable();
+
+    public PacketCodec() {
+        this(DEFAULT_CAPACITY, null);
+    }
+
+    /**
+     * Constructs a PacketCodec that decodes into Packets taken from the
+     * given pool.  Receivers should release decoded Packets back to the
+     * pool once they are done with them.
+     * @param pool The pool to take decoded Packets from.
+     */
+    public PacketCodec(PacketPool pool) {
+        this(DEFAULT_CAPACITY, pool);
+    }
+
+    /**
+     * Constructs a PacketCodec whose encoding buffer starts at the given size.
+     * The buffer grows if a Packet doesn't fit, and is reused afterwards.
+     * @param capacity The initial size of the encoding buffer in bytes.
+     * @param pool     The pool to take decoded Packets from, or null to
+     *                 allocate a new Packet for each decode.
+     */
+    public PacketCodec(int capacity, PacketPool pool) {
+        mBuffer = ByteBuffer.allocate(capacity);
+        mPool = pool;
+    }
+
+    /**
+     * Encodes the given Packet into this codec's reusable buffer.  The
+     * returned buffer is ready for reading and is only valid until the
+     * next call to encode.
+     * @param packet The Packet to encode.
+     * @return The codec's buffer, holding the encoded Packet.
+     */
+    public ByteBuffer encode(Packet packet) {
+        while(true) {
+            mBuffer.clear();
+            try {
+                encode(packet, mBuffer);
+                mBuffer.flip();
+                return mBuffer;
+            } catch(BufferOverflowException e) {
+                mBuffer = ByteBuffer.allocate(mBuffer.capacity() * 2);
+            }
+        }
+    }
+
+    /**
+     * Encodes the given Packet into the given buffer at its current position.
+     * A Packet that can't be encoded is rejected before anything is written.
+     * @param packet The Packet to encode.
+     * @param out    The buffer to write to.
+     * @throws BufferOverflowException  If the Packet doesn't fit in the buffer.
+     * @throws IllegalArgumentException If the Packet's name is longer than
+     *                                  MAX_NAME_LENGTH bytes, or it's a
+     *                                  String array holding null.
+     */
+    public void encode(Packet packet, ByteBuffer out) throws BufferOverflowException {
+        Packet.Type type = packet.getType();
+        byte[] name = encodeName(packet.getName());
+        checkStrings(packet);
+
+        out.put(type.getTag());
+        out.put((byte) name.length);
+        out.put(name);
+
+        switch(type) {
+            case BOOLEAN:
+                out.put((byte) (packet.getBoolean() ? 1 : 0));
+                break;
+            case BOOLEAN_ARRAY:
+                putBooleans(out, packet);
+                break;
+            case INT:
+                out.putInt(packet.getInt());
+                break;
+            case INT_ARRAY:
+                out.putInt(packet.getLength());
+                for(int i = 0; i < packet.getLength(); i++) out.putInt(packet.getInt(i));
+                break;
+            case LONG:
+                out.putLong(packet.getLong());
+                break;
+            case LONG_ARRAY:
+                out.putInt(packet.getLength());
+                for(int i = 0; i < packet.getLength(); i++) out.putLong(packet.getLong(i));
+                break;
+            case DOUBLE:
+                out.putDouble(packet.getDouble());
+                break;
+            case DOUBLE_ARRAY:
+                out.putInt(packet.getLength());
+                for(int i = 0; i < packet.getLength(); i++) out.putDouble(packet.getDouble(i));
+                break;
+            case STRING:
+                putString(out, packet.getString());
+                break;
+            case STRING_ARRAY:
+                out.putInt(packet.getLength());
+                for(int i = 0; i < packet.getLength(); i++) putString(out, packet.getString(i));
+                break;
+        }
+    }
+
+    /**
+     * Encodes the given Packet and copies it into a byte array that
+     * is sized exactly to the encoded Packet.
+     * @param packet The Packet to encode.
+     * @return A byte array holding the encoded Packet.
+     */
+    public byte[] toBytes(Packet packet) {
+        ByteBuffer encoded = encode(packet);
+        byte[] bytes = new byte[encoded.remaining()];
+        encoded.get(bytes);
+        return bytes;
+    }
+
+    /**
+     * Encodes the given Packet and sends it over the given Connection.
+     * @param connection The Connection to send the Packet over.
+     * @param packet     The Packet to send.
+     */
+    public void send(Connection connection, Packet packet) {
+        connection.send(toBytes(packet));
+    }
+
+    /**
+     * Decodes a single Packet from the given bytes.
+     * @param data The bytes of one encoded Packet.
+     * @return The decoded Packet.
+     * @throws IllegalArgumentException If the bytes are not a valid Packet.
+     */
+    public Packet decode(byte[] data) throws IllegalArgumentException {
+        return decode(ByteBuffer.wrap(data));
+    }
+
+    /**
+     * Decodes one Packet starting at the buffer's current position, leaving
+     * the position just past the decoded Packet.
+     * @param in The buffer to read from.
+     * @return The decoded Packet.
+     * @throws IllegalArgumentException If the bytes are not a valid Packet.
+     */
+    public Packet decode(ByteBuffer in) throws IllegalArgumentException {
+        try {
+            Packet.Type type = Packet.Type.fromTag(in.get());
+            String name = mDecodedNames.intern(in, in.get() & 0xFF);
+
+            Packet packet = (mPool != null) ? mPool.obtain(type) : PacketPool.create(type);
+            packet.setName(name);
+
+            switch(type) {
+                case BOOLEAN:
+                    return ((BooleanPacket) packet).reset(name, in.get() != 0);
+                case BOOLEAN_ARRAY:
+                    return getBooleans(in, (BooleanArrayPacket) packet);
+                case INT:
+                    return ((IntPacket) packet).reset(name, in.getInt());
+                case INT_ARRAY:
+                    IntArrayPacket ints = (IntArrayPacket) packet;
+                    ints.setLength(getLength(in, 4));
+                    for(int i = 0; i < ints.getLength(); i++) ints.set(i, in.getInt());
+                    return ints;
+                case LONG:
+                    return ((LongPacket) packet).reset(name, in.getLong());
+                case LONG_ARRAY:
+                    LongArrayPacket longs = (LongArrayPacket) packet;
+                    longs.setLength(getLength(in, 8));
+                    for(int i = 0; i < longs.getLength(); i++) longs.set(i, in.getLong());
+                    return longs;
+                case DOUBLE:
+                    return ((DoublePacket) packet).reset(name, in.getDouble());
+                case DOUBLE_ARRAY:
+                    DoubleArrayPacket doubles = (DoubleArrayPacket) packet;
+                    doubles.setLength(getLength(in, 8));
+                    for(int i = 0; i < doubles.getLength(); i++) doubles.set(i, in.getDouble());
+                    return doubles;
+                case STRING:
+                    return ((StringPacket) packet).reset(name, getString(in));
+                case STRING_ARRAY:
+                    StringArrayPacket strings = (StringArrayPacket) packet;
+                    strings.setLength(getLength(in, 4));
+                    for(int i = 0; i < strings.getLength(); i++) strings.set(i, getString(in));
+                    return strings;
+                default:
+                    throw new IllegalArgumentException("Unhandled packet type " + type);
+            }
+        } catch(BufferUnderflowException e) {
+            throw new IllegalArgumentException("Truncated packet", e);
+        }
+    }
+
+    /**
+     * Returns the cached UTF-8 bytes of the given name, encoding
+     * and caching them if this is the first time we've seen it.
+     */
+    private byte[] encodeName(String name) {
+        byte[] bytes = mEncodedNames.get(name);
+        if(bytes == null) {
+            bytes = name.getBytes(UTF_8);
+            if(bytes.length > MAX_NAME_LENGTH) {
+                throw new IllegalArgumentException("Packet name is longer than "
+                        + MAX_NAME_LENGTH + " bytes: " + name);
+            }
+            if(mEncodedNames.size() < MAX_INTERNED_NAMES) {
+                mEncodedNames.put(name, bytes);
+            }
+        }
+        return bytes;
+    }
+
+    /**
+     * Rejects a String array holding null, which has no encoding.  A
+     * StringPacket can't hold null in the first place.
+     */
+    private static void checkStrings(Packet packet) {
+        if(packet.getType() != Packet.Type.STRING_ARRAY) {
+            return;
+        }
+        for(int i = 0; i < packet.getLength(); i++) {
+            if(packet.getString(i) == null) {
+                throw new IllegalArgumentException("Packet " + packet.getName() + " holds a null String at " + i);
+            }
+        }
+    }
+
+    private static void putString(ByteBuffer out, String value) {
+        byte[] bytes = value.getBytes(UTF_8);
+        out.putInt(bytes.length);
+        out.put(bytes);
+    }
+
+    private static String getString(ByteBuffer in) {
+        byte[] bytes = new byte[getLength(in, 1)];
+        in.get(bytes);
+        return new String(bytes, UTF_8);
+    }
+
+    private static void putBooleans(ByteBuffer out, Packet packet) {
+        int length = packet.getLength();
+        out.putInt(length);
+        int bits = 0;
+        for(int i = 0; i < length; i++) {
+            if(packet.getBoolean(i)) bits |= 1 << (i & 7);
+            if((i & 7) == 7 || i == length - 1) {
+                out.put((byte) bits);
+                bits = 0;
+            }
+        }
+    }
+
+    private static BooleanArrayPacket getBooleans(ByteBuffer in, BooleanArrayPacket packet) {
+        int length = in.getInt();
+        if(length < 0 || (length + 7) / 8 > in.remaining()) {
+            throw new IllegalArgumentException("Invalid boolean array length " + length);
+        }
+        packet.setLength(length);
+        int bits = 0;
+        for(int i = 0; i < length; i++) {
+            if((i & 7) == 0) bits = in.get();
+            packet.set(i, (bits & (1 << (i & 7))) != 0);
+        }
+        return packet;
+    }
+
+    /**
+     * Reads a length prefix and checks that the buffer holds at least that
+     * many elements of the given size, so a corrupt length can't cause a
+     * huge allocation.
+     */
+    private static int getLength(ByteBuffer in, int elementSize) {
+        int length = in.getInt();
+        if(length < 0 || length > in.remaining() / elementSize) {
+            throw new IllegalArgumentException("Invalid length " + length);
+        }
+        return length;
+    }
+
+    /**
+     * Maps UTF-8 name bytes to canonical String instances without allocating
+     * a String when the name has been seen before.  Entries are never evicted;
+     * once the table is full, unknown names are decoded without interning.
+     */
+    private static class NameTable {
+
+        private static final int BUCKETS = 128;
+
+        private static class Entry {
+            final byte[] mBytes;
+            final String mName;
+            final int mHash;
+            final Entry mNext;
+
+            Entry(byte[] bytes, String name, int hash, Entry next) {
+                mBytes = bytes;
+                mName = name;
+                mHash = hash;
+                mNext = next;
+            }
+        }
+
+        private final Entry[] mBuckets = new Entry[BUCKETS];
+        private int mSize;
+
+        /**
+         * Reads a name of the given length from the buffer and returns the
+         * canonical String for it.
+         */
+        String intern(ByteBuffer in, int length) {
+            if(length > in.remaining()) {
+                throw new BufferUnderflowException();
+            }
+            int start = in.position();
+            int hash = 1;
+            for(int i = 0; i < length; i++) {
+                hash = 31 * hash + in.get(start + i);
+            }
+
+            int bucket = hash & (BUCKETS - 1);
+            for(Entry entry = mBuckets[bucket]; entry != null; entry = entry.mNext) {
+                if(entry.mHash == hash && matches(entry.mBytes, in, start, length)) {
+                    in.position(start + length);
+                    return entry.mName;
+                }
+            }
+
+            byte[] bytes = new byte[length];
+            in.get(bytes);
+            String name = new String(bytes, UTF_8);
+            if(mSize < MAX_INTERNED_NAMES) {
+                mBuckets[bucket] = new Entry(bytes, name, hash, mBuckets[bucket]);
+                mSize++;
+            }
+            return name;
+        }
+
+        private static boolean matches(byte[] bytes, ByteBuffer in, int start, int length) {
+            if(bytes.length != length) return false;
+            for(int i = 0; i < length; i++) {
+                if(bytes[i] != in.get(start + i)) return false;
+            }
+            return true;
+        }
+    }
+}
@@ -0,0 +1,290 @@
+package com.nicholastmosher.easycom.data;
+
+import com.nicholastmosher.easycom.core.connection.Connection;
+
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Coalesces many Packets into a single frame so that a burst of small values
+ * costs one Connection.send instead of one per Packet.  A frame is written as
+ * <pre>
+ *     [body length: 4 bytes][Packet][Packet]...
+ * </pre>
+ * where each Packet is encoded by {@link PacketCodec}.  A frame is flushed
+ * once it reaches its byte budget, or once the time window that started with
+ * its first Packet has elapsed, whichever comes first.  Frames are read back
+ * into Packets by a {@link PacketFrameReader}.
+ *
+ * Packets are encoded as soon as they're added, so pooled Packets may be
+ * released right after calling {@link #add(Packet)}.  Packets may be added
+ * from any thread.  Frames are handed to the listener one at a time and in
+ * order, but outside the lock that guards the frame being built, and a
+ * frame whose window has elapsed is flushed on a pool thread rather than on
+ * the timer every builder shares; a listener that blocks on a slow link
+ * only holds up its own builder.
+ */
+public class PacketFrameBuilder {
+
+    public static final int HEADER_LENGTH = 4;
+    public static final int DEFAULT_BYTE_BUDGET = 512;
+    public static final long DEFAULT_WINDOW_MILLIS = 10;
+
+    private static ScheduledExecutorService sScheduler;
+    private static ExecutorService sFlushPool;
+
+    /**
+     * Receives finished frames from a PacketFrameBuilder.
+     */
+    public interface OnFrameReadyListener {
+        void onFrameReady(byte[] frame);
+    }
+
+    private final OnFrameReadyListener mListener;
+    private final PacketCodec mCodec = new PacketCodec();
+    private final int mByteBudget;
+    private final long mWindowMillis;
+    private final ScheduledExecutorService mScheduler;
+
+    /** Held while frames are taken and delivered, so they're delivered in order. */
+    private final Object mSendLock = new Object();
+
+    //Guarded by this.
+    private ByteBuffer mFrame;
+    private int mPacketCount;
+    private long mFrameCount;
+    /** The window flush scheduled for the current frame, if any. */
+    private ScheduledFuture<?> mWindowFlush;
+
+    /**
+     * Constructs a PacketFrameBuilder that sends its frames over the given
+     * Connection, using the default byte budget and time window.
+     * @param connection The Connection to send frames over.
+     */
+    public PacketFrameBuilder(final Connection connection) {
+        this(new OnFrameReadyListener() {
+            @Override
+            public void onFrameReady(byte[] frame) {
+                connection.send(frame);
+            }
+        }, DEFAULT_BYTE_BUDGET, DEFAULT_WINDOW_MILLIS);
+    }
+
+    /**
+     * Constructs a PacketFrameBuilder that delivers its frames to a listener.
+     * @param listener     Receives each finished frame.
+     * @param byteBudget   The frame size, header included, at which a frame is
+     *                     flushed.  A single Packet larger than the budget is
+     *                     sent in a frame of its own.
+     * @param windowMillis The longest time a Packet waits in an unfilled frame
+     *                     before the frame is flushed anyway.  Zero disables
+     *                     the window, so frames are only flushed by the budget
+     *                     or by calling {@link #flush()}.
+     */
+    public PacketFrameBuilder(OnFrameReadyListener listener, int byteBudget, long windowMillis) {
+        if(byteBudget <= HEADER_LENGTH) {
+            throw new IllegalArgumentException("Byte budget must be larger than the frame header");
+        }
+        mListener = listener;
+        mByteBudget = byteBudget;
+        mWindowMillis = windowMillis;
+        mScheduler = (windowMillis > 0) ? getScheduler() : null;
+        mFrame = ByteBuffer.allocate(byteBudget);
+        mFrame.position(HEADER_LENGTH);
+    }
+
+    /**
+     * Encodes the given Packet into the current frame, flushing
+     * the frame if it has reached its byte budget.  A Packet that can't be
+     * encoded leaves the frame as it was.
+     * @param packet The Packet to add.
+     * @throws IllegalArgumentException If the Packet can't be encoded.
+     */
+    public void add(Packet packet) {
+        synchronized(mSendLock) {
+            byte[] overflowed = null;
+            byte[] filled = null;
+            try {
+                synchronized(this) {
+                    int start = mFrame.position();
+                    try {
+                        mCodec.encode(packet, mFrame);
+                    } catch(BufferOverflowException e) {
+                        //Take back the partial Packet, send what we have, and retry in an empty frame.
+                        mFrame.position(start);
+                        overflowed = takeFrame();
+                        encodeIntoEmptyFrame(packet);
+                    } catch(RuntimeException e) {
+                        //The Packet couldn't be encoded; take back whatever of it was written.
+                        mFrame.position(start);
+                        throw e;
+                    }
+
+                    if(++mPacketCount == 1 && mScheduler != null) {
+                        scheduleWindowFlush();
+                    }
+                    if(mFrame.position() >= mByteBudget) {
+                        filled = takeFrame();
+                    }
+                }
+            } finally {
+                deliver(overflowed);
+                deliver(filled);
+            }
+        }
+    }
+
+    /**
+     * Sends the current frame immediately if it holds any Packets.
+     */
+    public void flush() {
+        synchronized(mSendLock) {
+            byte[] frame;
+            synchronized(this) {
+                frame = takeFrame();
+            }
+            deliver(frame);
+        }
+    }
+
+    /**
+     * Sends the frame a window flush was scheduled for, unless it
+     * has already been sent by its budget or by {@link #flush()}.
+     */
+    private void flushWindow(long frameNumber) {
+        synchronized(mSendLock) {
+            byte[] frame = null;
+            synchronized(this) {
+                if(mFrameCount == frameNumber) {
+                    frame = takeFrame();
+                }
+            }
+            deliver(frame);
+        }
+    }
+
+    /**
+     * Must be called holding this builder's lock.
+     */
+    private void scheduleWindowFlush() {
+        final long frameNumber = mFrameCount;
+        final Runnable flush = new Runnable() {
+            @Override
+            public void run() {
+                flushWindow(frameNumber);
+            }
+        };
+        mWindowFlush = mScheduler.schedule(new Runnable() {
+            @Override
+            public void run() {
+                //Sending may block on a slow link, which mustn't stall the shared timer.
+                getFlushPool().execute(flush);
+            }
+        }, mWindowMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Finishes the current frame and starts a new one.  Must be called
+     * holding this builder's lock.
+     * @return The finished frame, or null if it held no Packets.
+     */
+    private byte[] takeFrame() {
+        if(mPacketCount == 0) {
+            return null;
+        }
+        if(mWindowFlush != null) {
+            mWindowFlush.cancel(false);
+            mWindowFlush = null;
+        }
+        int length = mFrame.position();
+        mFrame.putInt(0, length - HEADER_LENGTH);
+        byte[] frame = new byte[length];
+        mFrame.position(0);
+        mFrame.get(frame);
+
+        mFrame.clear();
+        mFrame.position(HEADER_LENGTH);
+        mPacketCount = 0;
+        mFrameCount++;
+        return frame;
+    }
+
+    /**
+     * Must be called holding mSendLock, but not this builder's lock.
+     */
+    private void deliver(byte[] frame) {
+        if(frame != null) {
+            mListener.onFrameReady(frame);
+        }
+    }
+
+    /**
+     * Returns the number of frames this builder has sent.
+     * @return The number of frames sent.
+     */
+    public synchronized long getFrameCount() {
+        return mFrameCount;
+    }
+
+    /**
+     * Encodes a Packet that didn't fit in the remainder of a frame, growing
+     * the frame buffer if the Packet is larger than the whole budget.
+     */
+    private void encodeIntoEmptyFrame(Packet packet) {
+        while(true) {
+            try {
+                mCodec.encode(packet, mFrame);
+                return;
+            } catch(BufferOverflowException e) {
+                mFrame = ByteBuffer.allocate(mFrame.capacity() * 2);
+                mFrame.position(HEADER_LENGTH);
+            } catch(RuntimeException e) {
+                mFrame.position(HEADER_LENGTH);
+                throw e;
+            }
+        }
+    }
+
+    /**
+     * Returns the scheduler that times every PacketFrameBuilder's windows.
+     * Its one daemon thread only hands elapsed windows to the flush pool.
+     */
+    private static synchronized ScheduledExecutorService getScheduler() {
+        if(sScheduler == null) {
+            sScheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, "PacketFrameBuilder");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        return sScheduler;
+    }
+
+    /**
+     * Returns the daemon threads that flush frames whose window has elapsed.
+     */
+    private static synchronized ExecutorService getFlushPool() {
+        if(sFlushPool == null) {
+            final AtomicInteger count = new AtomicInteger();
+            sFlushPool = Executors.newCachedThreadPool(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, "PacketFrameBuilder-" + count.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        return sFlushPool;
+    }
+}
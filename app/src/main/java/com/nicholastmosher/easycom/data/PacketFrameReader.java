@@ -0,0 +1,131 @@
+package com.nicholastmosher.easycom.data;
+
+import com.nicholastmosher.easycom.core.connection.Connection;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Splits frames written by a {@link PacketFrameBuilder} back into Packets.
+ * Incoming bytes may break frames at any point, so bytes are accumulated
+ * until a whole frame has arrived, and then each Packet in the frame is
+ * delivered to the listener in order.
+ *
+ * A PacketFrameReader can be attached directly to a Connection as an
+ * OnDataReceivedListener.  It is not thread safe, which is fine as long
+ * as bytes are fed to it from a single receiving thread.
+ */
+public class PacketFrameReader implements Connection.OnDataReceivedListener {
+
+    public static final int DEFAULT_MAX_FRAME_LENGTH = 1 << 20;
+
+    /**
+     * Receives the Packets read out of each frame.
+     */
+    public interface OnPacketReceivedListener {
+        void onPacketReceived(Packet packet);
+    }
+
+    private final OnPacketReceivedListener mListener;
+    private final PacketCodec mCodec;
+    private final int mMaxFrameLength;
+
+    private ByteBuffer mBuffer = ByteBuffer.allocate(1024);
+    private long mCorruptFrames;
+
+    public PacketFrameReader(OnPacketReceivedListener listener) {
+        this(listener, null, DEFAULT_MAX_FRAME_LENGTH);
+    }
+
+    /**
+     * Constructs a PacketFrameReader.
+     * @param listener       Receives each decoded Packet.
+     * @param pool           A pool to decode Packets into, or null to allocate
+     *                       new Packets.  With a pool, the listener should
+     *                       release each Packet once it's done with it.
+     * @param maxFrameLength The largest frame body to accept.  A larger
+     *                       length means the stream is corrupt, and the
+     *                       buffered bytes are discarded.
+     */
+    public PacketFrameReader(OnPacketReceivedListener listener, PacketPool pool, int maxFrameLength) {
+        mListener = listener;
+        mCodec = new PacketCodec(pool);
+        mMaxFrameLength = maxFrameLength;
+    }
+
+    @Override
+    public void onDataReceived(Connection connection, byte[] data) {
+        feed(data, 0, data.length);
+    }
+
+    /**
+     * Feeds received bytes into this reader, delivering
+     * every Packet of each frame they complete.
+     * @param data   The array holding the received bytes.
+     * @param offset The index of the first received byte.
+     * @param length The number of received bytes.
+     */
+    public void feed(byte[] data, int offset, int length) {
+        ensureCapacity(length);
+        mBuffer.put(data, offset, length);
+        mBuffer.flip();
+
+        while(mBuffer.remaining() >= PacketFrameBuilder.HEADER_LENGTH) {
+            int frameLength = mBuffer.getInt(mBuffer.position());
+            if(frameLength < 0 || frameLength > mMaxFrameLength) {
+                mCorruptFrames++;
+                mBuffer.clear();
+                return;
+            }
+            if(mBuffer.remaining() < PacketFrameBuilder.HEADER_LENGTH + frameLength) {
+                break;
+            }
+
+            mBuffer.position(mBuffer.position() + PacketFrameBuilder.HEADER_LENGTH);
+            int frameEnd = mBuffer.position() + frameLength;
+            readFrame(frameEnd);
+            mBuffer.position(frameEnd);
+        }
+        mBuffer.compact();
+    }
+
+    /**
+     * Returns the number of frames that were discarded because they
+     * could not be decoded.
+     * @return The number of corrupt frames.
+     */
+    public long getCorruptFrames() {
+        return mCorruptFrames;
+    }
+
+    /**
+     * Decodes the Packets between the buffer's position and frameEnd.
+     */
+    private void readFrame(int frameEnd) {
+        int limit = mBuffer.limit();
+        mBuffer.limit(frameEnd);
+        try {
+            while(mBuffer.hasRemaining()) {
+                mListener.onPacketReceived(mCodec.decode(mBuffer));
+            }
+        } catch(IllegalArgumentException e) {
+            //The rest of this frame can't be trusted, but the next frame can still be read.
+            mCorruptFrames++;
+        } finally {
+            mBuffer.limit(limit);
+        }
+    }
+
+    private void ensureCapacity(int incoming) {
+        if(mBuffer.remaining() >= incoming) {
+            return;
+        }
+        int capacity = mBuffer.capacity();
+        while(capacity - mBuffer.position() < incoming) {
+            capacity *= 2;
+        }
+        ByteBuffer larger = ByteBuffer.allocate(capacity);
+        mBuffer.flip();
+        larger.put(mBuffer);
+        mBuffer = larger;
+    }
+}
@@ -0,0 +1,193 @@
+package com.nicholastmosher.easycom.data;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Recycles Packets so that high-rate senders, such as a joystick streaming
+ * control values, don't create garbage for every message.  Packets are
+ * taken with one of the acquire methods and handed back with
+ * {@link #release(Packet)} once they have been sent or consumed.
+ *
+ * A PacketPool is thread safe: the UI thread may acquire Packets while a
+ * Connection's writer thread releases them.  Each Packet Type is kept in
+ * its own bounded stack guarded by its own lock, so contention is limited
+ * to threads working with the same Type.
+ */
+public class PacketPool {
+
+    public static final int DEFAULT_CAPACITY = 32;
+
+    private static final Packet.Type[] TYPES = Packet.Type.values();
+    private static final PacketPool sDefaultPool = new PacketPool(DEFAULT_CAPACITY);
+
+    private final Stack[] mStacks = new Stack[TYPES.length];
+    private final AtomicLong mHits = new AtomicLong();
+    private final AtomicLong mMisses = new AtomicLong();
+    private final AtomicLong mDiscards = new AtomicLong();
+
+    /**
+     * Constructs a PacketPool that keeps at most the given
+     * number of idle Packets of each Type.
+     * @param capacity The maximum number of idle Packets per Type.
+     */
+    public PacketPool(int capacity) {
+        if(capacity < 0) {
+            throw new IllegalArgumentException("Pool capacity must not be negative");
+        }
+        for(int i = 0; i < mStacks.length; i++) {
+            mStacks[i] = new Stack(capacity);
+        }
+    }
+
+    /**
+     * Returns a process-wide PacketPool for callers that don't need
+     * their own.
+     * @return The shared PacketPool.
+     */
+    public static PacketPool getDefault() {
+        return sDefaultPool;
+    }
+
+    public BooleanPacket acquireBoolean(String name, boolean value) {
+        return ((BooleanPacket) obtain(Packet.Type.BOOLEAN)).reset(name, value);
+    }
+
+    public BooleanArrayPacket acquireBooleanArray(String name, boolean[] value) {
+        return ((BooleanArrayPacket) obtain(Packet.Type.BOOLEAN_ARRAY)).reset(name, value);
+    }
+
+    public IntPacket acquireInt(String name, int value) {
+        return ((IntPacket) obtain(Packet.Type.INT)).reset(name, value);
+    }
+
+    public IntArrayPacket acquireIntArray(String name, int[] value) {
+        return ((IntArrayPacket) obtain(Packet.Type.INT_ARRAY)).reset(name, value);
+    }
+
+    public LongPacket acquireLong(String name, long value) {
+        return ((LongPacket) obtain(Packet.Type.LONG)).reset(name, value);
+    }
+
+    public LongArrayPacket acquireLongArray(String name, long[] value) {
+        return ((LongArrayPacket) obtain(Packet.Type.LONG_ARRAY)).reset(name, value);
+    }
+
+    public DoublePacket acquireDouble(String name, double value) {
+        return ((DoublePacket) obtain(Packet.Type.DOUBLE)).reset(name, value);
+    }
+
+    public DoubleArrayPacket acquireDoubleArray(String name, double[] value) {
+        return ((DoubleArrayPacket) obtain(Packet.Type.DOUBLE_ARRAY)).reset(name, value);
+    }
+
+    public StringPacket acquireString(String name, String value) {
+        return ((StringPacket) obtain(Packet.Type.STRING)).reset(name, value);
+    }
+
+    public StringArrayPacket acquireStringArray(String name, String[] value) {
+        return ((StringArrayPacket) obtain(Packet.Type.STRING_ARRAY)).reset(name, value);
+    }
+
+    /**
+     * Returns a Packet to this pool.  The Packet must not be used by the
+     * caller afterwards.  If the pool is already full the Packet is simply
+     * left for the garbage collector.
+     * @param packet The Packet to recycle.
+     * @throws IllegalStateException If the Packet has already been released.
+     */
+    public void release(Packet packet) throws IllegalStateException {
+        Stack stack = mStacks[packet.getType().ordinal()];
+        synchronized(stack) {
+            if(packet.mPooled) {
+                throw new IllegalStateException("Packet has already been released!");
+            }
+            packet.clear();
+            if(stack.mSize < stack.mPackets.length) {
+                packet.mPooled = true;
+                stack.mPackets[stack.mSize++] = packet;
+                return;
+            }
+        }
+        mDiscards.incrementAndGet();
+    }
+
+    /**
+     * Returns the number of acquires that were served by a recycled Packet.
+     * @return The number of pool hits.
+     */
+    public long getHits() {
+        return mHits.get();
+    }
+
+    /**
+     * Returns the number of acquires that had to allocate a new Packet.
+     * @return The number of pool misses.
+     */
+    public long getMisses() {
+        return mMisses.get();
+    }
+
+    /**
+     * Returns the number of released Packets that were dropped
+     * because the pool was full.
+     * @return The number of discarded Packets.
+     */
+    public long getDiscards() {
+        return mDiscards.get();
+    }
+
+    /**
+     * Takes an idle Packet of the given Type, or creates an empty one if
+     * none are available.  The returned Packet has no name until it's reset.
+     * @param type The Type of Packet to obtain.
+     * @return A Packet of the given Type.
+     */
+    Packet obtain(Packet.Type type) {
+        Stack stack = mStacks[type.ordinal()];
+        synchronized(stack) {
+            if(stack.mSize > 0) {
+                Packet packet = stack.mPackets[--stack.mSize];
+                stack.mPackets[stack.mSize] = null;
+                packet.mPooled = false;
+                mHits.incrementAndGet();
+                return packet;
+            }
+        }
+        mMisses.incrementAndGet();
+        return create(type);
+    }
+
+    /**
+     * Creates an empty Packet of the given Type.
+     * @param type The Type of Packet to create.
+     * @return A new, unnamed Packet.
+     */
+    static Packet create(Packet.Type type) {
+        switch(type) {
+            case BOOLEAN: return new BooleanPacket();
+            case BOOLEAN_ARRAY: return new BooleanArrayPacket();
+            case INT: return new IntPacket();
+            case INT_ARRAY: return new IntArrayPacket();
+            case LONG: return new LongPacket();
+            case LONG_ARRAY: return new LongArrayPacket();
+            case DOUBLE: return new DoublePacket();
+            case DOUBLE_ARRAY: return new DoubleArrayPacket();
+            case STRING: return new StringPacket();
+            case STRING_ARRAY: return new StringArrayPacket();
+            default: throw new IllegalArgumentException("Unhandled packet type " + type);
+        }
+    }
+
+    /**
+     * A fixed-size stack of idle Packets of one Type.
+     */
+    private static class Stack {
+
+        final Packet[] mPackets;
+        int mSize;
+
+        Stack(int capacity) {
+            mPackets = new Packet[capacity];
+        }
+    }
+}
@@ -0,0 +1,110 @@
+package com.nicholastmosher.easycom.data;
+
+import java.util.Arrays;
+
+/**
+ * A Packet that carries an array of Strings.  The values are copied into a
+ * backing array owned by this Packet, which is reused across resets and only
+ * grows when a longer array is stored.  Read single elements with
+ * {@link #getString(int)} to avoid allocating; {@link #getStringArray()} returns
+ * a copy.
+ */
+public class StringArrayPacket extends Packet {
+
+    private static final String[] EMPTY = new String[0];
+
+    private String[] mValues = EMPTY;
+    private int mLength;
+
+    StringArrayPacket() {
+    }
+
+    StringArrayPacket(String name, String[] values) {
+        super(name);
+        setValues(values, 0, values.length);
+    }
+
+    /**
+     * Reuses this Packet to carry a new name and values.
+     * @param name   The new name of this Packet.
+     * @param values The new values of this Packet.  They are copied.
+     * @return This Packet, for chaining.
+     */
+    public StringArrayPacket reset(String name, String[] values) {
+        return reset(name, values, 0, values.length);
+    }
+
+    /**
+     * Reuses this Packet to carry a new name and a range of values.
+     * @param name   The new name of this Packet.
+     * @param values The array holding the new values.  They are copied.
+     * @param offset The index of the first value to copy.
+     * @param length The number of values to copy.
+     * @return This Packet, for chaining.
+     */
+    public StringArrayPacket reset(String name, String[] values, int offset, int length) {
+        setName(name);
+        setValues(values, offset, length);
+        return this;
+    }
+
+    /**
+     * Sets the length of this Packet without copying any values, so that a
+     * decoder can fill it in place with {@link #set(int, String)}.
+     */
+    void setLength(int length) {
+        if(mValues.length < length) {
+            mValues = new String[length];
+        } else if(mLength > length) {
+            Arrays.fill(mValues, length, mLength, null);
+        }
+        mLength = length;
+    }
+
+    void set(int index, String value) {
+        if(index >= mLength) {
+            throw new ArrayIndexOutOfBoundsException(index);
+        }
+        mValues[index] = value;
+    }
+
+    private void setValues(String[] values, int offset, int length) {
+        if(values == null) {
+            throw new NullPointerException("Packet data is null!");
+        }
+        setLength(length);
+        System.arraycopy(values, offset, mValues, 0, length);
+    }
+
+    @Override
+    void clear() {
+        super.clear();
+        Arrays.fill(mValues, 0, mLength, null);
+        mLength = 0;
+    }
+
+    @Override
+    public Type getType() {
+        return Type.STRING_ARRAY;
+    }
+
+    @Override
+    public int getLength() {
+        return mLength;
+    }
+
+    @Override
+    public String getString(int index) {
+        if(index >= mLength) {
+            throw new ArrayIndexOutOfBoundsException(index);
+        }
+        return mValues[index];
+    }
+
+    @Override
+    public String[] getStringArray() {
+        String[] copy = new String[mLength];
+        System.arraycopy(mValues, 0, copy, 0, mLength);
+        return copy;
+    }
+}
@@ -0,0 +1,52 @@
+package com.nicholastmosher.easycom.data;
+
+/**
+ * A Packet that carries a single String.
+ */
+public class StringPacket extends Packet {
+
+    private String mValue;
+
+    StringPacket() {
+    }
+
+    StringPacket(String name, String value) {
+        super(name);
+        setValue(value);
+    }
+
+    /**
+     * Reuses this Packet to carry a new name and value.
+     * @param name  The new name of this Packet.
+     * @param value The new value of this Packet.
+     * @return This Packet, for chaining.
+     */
+    public StringPacket reset(String name, String value) {
+        setName(name);
+        setValue(value);
+        return this;
+    }
+
+    private void setValue(String value) {
+        if(value == null) {
+            throw new NullPointerException("Packet data is null!");
+        }
+        mValue = value;
+    }
+
+    @Override
+    void clear() {
+        super.clear();
+        mValue = null;
+    }
+
+    @Override
+    public Type getType() {
+        return Type.STRING;
+    }
+
+    @Override
+    public String getString() {
+        return mValue;
+    }
+}
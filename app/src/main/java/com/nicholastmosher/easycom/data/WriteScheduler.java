@@ -0,0 +1,234 @@
+package com.nicholastmosher.easycom.data;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Coalesces a burst of writes of the same object into a single write of
+ * its latest state.  A write that's submitted while another is waiting
+ * simply replaces it, and the write happens once the debounce window after
+ * the first submission has elapsed, so ten quick edits cost one write.
+ *
+ * Only one write runs at a time, and each one writes whatever was most
+ * recently submitted when it starts, so an older state can never be
+ * written after a newer one: the last write always wins.
+ *
+ * Every callback passed with a coalesced write is called once with the
+ * state that was actually written, or with null if the write failed.
+ * Callbacks are called on the thread that did the write.
+ *
+ * One shared timer thread waits out the debounce windows; the writes
+ * themselves, flushes included, run on the Executor given to each
+ * WriteScheduler, so they're serialized with any other work on it.
+ * @param <T> The type of object written.
+ */
+public class WriteScheduler<T> {
+
+    public static final long DEFAULT_DEBOUNCE_MILLIS = 100;
+
+    /**
+     * Does the actual writing of an object to storage.
+     */
+    public interface Writer<T> {
+        void write(T data) throws IOException;
+    }
+
+    /**
+     * Called once a submitted write has been carried out.
+     */
+    public interface OnWrittenListener<T> {
+        /**
+         * @param data The state that was written, which may be newer than
+         *             the one submitted, or null if the write failed.
+         */
+        void onWritten(T data);
+    }
+
+    private static ScheduledExecutorService sScheduler;
+
+    private final Writer<T> mWriter;
+    private final long mDebounceMillis;
+    private final ScheduledExecutorService mScheduler;
+    private final Executor mExecutor;
+    private final Runnable mStartDrain = new Runnable() {
+        @Override
+        public void run() {
+            mExecutor.execute(mDrain);
+        }
+    };
+    private final Runnable mDrain = new Runnable() {
+        @Override
+        public void run() {
+            try {
+                drain();
+            } catch(InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    };
+
+    private final Object mLock = new Object();
+    private T mPending;
+    private boolean mHasPending;
+    private List<OnWrittenListener<T>> mListeners = new ArrayList<>();
+    private boolean mScheduled;
+    private boolean mWriting;
+
+    public WriteScheduler(Writer<T> writer, Executor executor) {
+        this(writer, DEFAULT_DEBOUNCE_MILLIS, executor);
+    }
+
+    /**
+     * Constructs a WriteScheduler.
+     * @param writer         Writes objects to storage.
+     * @param debounceMillis How long to wait for further writes before writing.
+     * @param executor       The executor to write on.  Should be serial, so
+     *                       that writes don't hold up one another's threads.
+     */
+    public WriteScheduler(Writer<T> writer, long debounceMillis, Executor executor) {
+        mWriter = writer;
+        mDebounceMillis = debounceMillis;
+        mExecutor = executor;
+        mScheduler = getScheduler();
+    }
+
+    /**
+     * Submits an object to be written, replacing any write still waiting.
+     * @param data     The object to write.
+     * @param listener Called once the write is done; may be null.
+     */
+    public void submit(T data, OnWrittenListener<T> listener) {
+        synchronized(mLock) {
+            mPending = data;
+            mHasPending = true;
+            if(listener != null) {
+                mListeners.add(listener);
+            }
+            if(!mScheduled) {
+                mScheduled = true;
+                mScheduler.schedule(mStartDrain, mDebounceMillis, TimeUnit.MILLISECONDS);
+            }
+        }
+    }
+
+    /**
+     * Writes any waiting object right away on the executor, after whatever
+     * is already queued on it, and waits for it, so that everything
+     * submitted so far is in storage when this returns.  For use when
+     * shutting down.  Must not be called from a task on the executor,
+     * which would wait on itself; use {@link #flushFromExecutor()} there.
+     * @throws InterruptedException If interrupted while waiting.
+     */
+    public void flush() throws InterruptedException {
+        FutureTask<Void> task = new FutureTask<>(new Callable<Void>() {
+            @Override
+            public Void call() throws InterruptedException {
+                drain();
+                return null;
+            }
+        });
+        mExecutor.execute(task);
+        try {
+            task.get();
+        } catch(ExecutionException e) {
+            if(e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new RuntimeException(e.getCause());
+        }
+    }
+
+    /**
+     * Writes any waiting object right away on the calling thread, which
+     * must be running a task on the executor, so that a task reading from
+     * storage sees everything submitted before it.
+     * @throws InterruptedException If interrupted while waiting.
+     */
+    public void flushFromExecutor() throws InterruptedException {
+        drain();
+    }
+
+    /**
+     * Drops the object waiting to be written, if there is one, and calls
+     * its callbacks with null.  A write already running still finishes.
+     */
+    public void cancel() {
+        List<OnWrittenListener<T>> listeners;
+        synchronized(mLock) {
+            listeners = mListeners;
+            mPending = null;
+            mHasPending = false;
+            mListeners = new ArrayList<>();
+        }
+        for(OnWrittenListener<T> listener : listeners) {
+            listener.onWritten(null);
+        }
+    }
+
+    /**
+     * Writes the most recently submitted object, if there is one.
+     */
+    private void drain() throws InterruptedException {
+        T data;
+        List<OnWrittenListener<T>> listeners;
+        synchronized(mLock) {
+            while(mWriting) {
+                mLock.wait();
+            }
+            mScheduled = false;
+            if(!mHasPending) {
+                return;
+            }
+            data = mPending;
+            listeners = mListeners;
+            mPending = null;
+            mHasPending = false;
+            mListeners = new ArrayList<>();
+            mWriting = true;
+        }
+
+        T written = null;
+        try {
+            mWriter.write(data);
+            written = data;
+        } catch(IOException e) {
+            e.printStackTrace();
+        } finally {
+            synchronized(mLock) {
+                mWriting = false;
+                mLock.notifyAll();
+            }
+        }
+
+        for(OnWrittenListener<T> listener : listeners) {
+            listener.onWritten(written);
+        }
+    }
+
+    /**
+     * Returns the scheduler that times debounce windows.
+     * One daemon thread serves every WriteScheduler.
+     */
+    private static synchronized ScheduledExecutorService getScheduler() {
+        if(sScheduler == null) {
+            sScheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, "WriteScheduler");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        return sScheduler;
+    }
+}
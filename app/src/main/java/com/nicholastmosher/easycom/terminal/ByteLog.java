@@ -0,0 +1,122 @@
+package com.nicholastmosher.easycom.terminal;
+
+/**
+ * An append-only log of the raw bytes received by the terminal.  Bytes are
+ * stored once, in fixed-size chunks, and every display mode reads from the
+ * same log, so switching between text, hex, and binary views never copies
+ * the capture.
+ *
+ * Bytes are addressed by their offset from the start of the session.  When
+ * the log exceeds its size limit, whole chunks are dropped from the front;
+ * {@link #getStart()} gives the offset of the oldest byte still held.
+ *
+ * A ByteLog is not thread safe and should only be used from the UI thread.
+ */
+public class ByteLog {
+
+    private static final int CHUNK_SIZE = 1 << 16;
+
+    /** A ring of chunks; the oldest is at mHead. */
+    private final byte[][] mChunks;
+    private int mHead;
+    private int mChunkCount;
+
+    /** Offset of the first byte of the oldest chunk. */
+    private long mStart;
+    /** Offset one past the last byte written. */
+    private long mEnd;
+
+    /**
+     * Constructs a ByteLog.
+     * @param maxBytes The most bytes to keep before dropping the oldest.
+     *                 Rounded up to a whole number of chunks.
+     */
+    public ByteLog(long maxBytes) {
+        mChunks = new byte[(int) Math.max(2, (maxBytes + CHUNK_SIZE - 1) / CHUNK_SIZE)][];
+    }
+
+    /**
+     * Appends bytes to the end of the log.
+     * @param data   The array holding the bytes to append.
+     * @param offset The index of the first byte to append.
+     * @param length The number of bytes to append.
+     */
+    public void append(byte[] data, int offset, int length) {
+        while(length > 0) {
+            if(mChunkCount == 0 || lastChunkUsed() == CHUNK_SIZE) {
+                addChunk();
+            }
+            int used = lastChunkUsed();
+            int count = Math.min(length, CHUNK_SIZE - used);
+            System.arraycopy(data, offset, chunk(mChunkCount - 1), used, count);
+            offset += count;
+            length -= count;
+            mEnd += count;
+        }
+    }
+
+    /**
+     * Returns the offset of the oldest byte still held.
+     * @return The offset of the oldest held byte.
+     */
+    public long getStart() {
+        return mStart;
+    }
+
+    /**
+     * Returns the offset one past the newest byte.  This is the
+     * total number of bytes ever appended.
+     * @return The offset one past the newest byte.
+     */
+    public long getEnd() {
+        return mEnd;
+    }
+
+    /**
+     * Copies bytes out of the log.
+     * @param position The offset of the first byte to read.  Must not be
+     *                 before {@link #getStart()}.
+     * @param dest     The array to copy into.
+     * @param offset   The index in dest to start copying to.
+     * @param length   The maximum number of bytes to copy.
+     * @return The number of bytes copied, which is less than length
+     *         if the end of the log was reached.
+     */
+    public int read(long position, byte[] dest, int offset, int length) {
+        if(position < mStart) {
+            throw new IndexOutOfBoundsException("Position " + position + " was dropped from the log");
+        }
+        int total = 0;
+        while(total < length && position < mEnd) {
+            int index = (int) ((position - mStart) / CHUNK_SIZE);
+            int chunkOffset = (int) ((position - mStart) % CHUNK_SIZE);
+            int count = (int) Math.min(Math.min(length - total, CHUNK_SIZE - chunkOffset), mEnd - position);
+            System.arraycopy(chunk(index), chunkOffset, dest, offset + total, count);
+            total += count;
+            position += count;
+        }
+        return total;
+    }
+
+    private byte[] chunk(int index) {
+        return mChunks[(mHead + index) % mChunks.length];
+    }
+
+    private int lastChunkUsed() {
+        return (int) (mEnd - mStart - (long) (mChunkCount - 1) * CHUNK_SIZE);
+    }
+
+    /**
+     * Starts a new chunk, reusing the oldest one if the log is full.
+     */
+    private void addChunk() {
+        if(mChunkCount == mChunks.length) {
+            mHead = (mHead + 1) % mChunks.length;
+            mStart += CHUNK_SIZE;
+        } else {
+            int slot = (mHead + mChunkCount) % mChunks.length;
+            mChunks[slot] = new byte[CHUNK_SIZE];
+            mChunkCount++;
+        }
+    }
+}
@@ -0,0 +1,93 @@
+package com.nicholastmosher.easycom.terminal;
+
+/**
+ * Presents a ByteLog as rows of formatted bytes, for the hex, binary, and
+ * ascii terminal views.  Rows are aligned to offsets in the session, so a
+ * row's content only changes while it is the last, unfilled row.  Rows are
+ * formatted on demand into a reused buffer, so only the rows a view
+ * actually binds are ever formatted.
+ */
+public class ByteRowView implements LineSource {
+
+    /**
+     * The ways a row of bytes can be formatted.
+     */
+    public enum Format {
+        HEX(16, 3),
+        BINARY(4, 9),
+        ASCII(32, 1);
+
+        private final int mBytesPerRow;
+        private final int mCharsPerByte;
+
+        Format(int bytesPerRow, int charsPerByte) {
+            mBytesPerRow = bytesPerRow;
+            mCharsPerByte = charsPerByte;
+        }
+    }
+
+    private static final char[] HEX_DIGITS = "0123456789ABCDEF".toCharArray();
+    private static final int OFFSET_DIGITS = 8;
+
+    private final ByteLog mLog;
+    private final Format mFormat;
+    private final byte[] mRowBytes;
+    private final StringBuilder mRow;
+
+    public ByteRowView(ByteLog log, Format format) {
+        mLog = log;
+        mFormat = format;
+        mRowBytes = new byte[format.mBytesPerRow];
+        mRow = new StringBuilder(OFFSET_DIGITS + 2 + format.mBytesPerRow * format.mCharsPerByte);
+    }
+
+    @Override
+    public long getFirstLineNumber() {
+        return mLog.getStart() / mFormat.mBytesPerRow;
+    }
+
+    @Override
+    public int getLineCount() {
+        long lastRow = (mLog.getEnd() + mFormat.mBytesPerRow - 1) / mFormat.mBytesPerRow;
+        return (int) (lastRow - getFirstLineNumber());
+    }
+
+    @Override
+    public CharSequence getLine(int index) {
+        long row = getFirstLineNumber() + index;
+        long position = Math.max(row * mFormat.mBytesPerRow, mLog.getStart());
+        int skipped = (int) (position - row * mFormat.mBytesPerRow);
+        int count = mLog.read(position, mRowBytes, skipped, mRowBytes.length - skipped);
+
+        mRow.setLength(0);
+        appendHex(row * mFormat.mBytesPerRow, OFFSET_DIGITS);
+        mRow.append("  ");
+        for(int i = 0; i < skipped + count; i++) {
+            byte b = mRowBytes[i];
+            boolean missing = i < skipped;
+            switch(mFormat) {
+                case HEX:
+                    if(missing) mRow.append("  ");
+                    else appendHex(b & 0xFF, 2);
+                    mRow.append(' ');
+                    break;
+                case BINARY:
+                    for(int bit = 7; bit >= 0; bit--) {
+                        mRow.append(missing ? ' ' : ((b >> bit) & 1) == 1 ? '1' : '0');
+                    }
+                    mRow.append(' ');
+                    break;
+                case ASCII:
+                    mRow.append(missing ? ' ' : (b >= 0x20 && b < 0x7F) ? (char) b : '.');
+                    break;
+            }
+        }
+        return mRow;
+    }
+
+    private void appendHex(long value, int digits) {
+        for(int shift = (digits - 1) * 4; shift >= 0; shift -= 4) {
+            mRow.append(HEX_DIGITS[(int) ((value >> shift) & 0xF)]);
+        }
+    }
+}
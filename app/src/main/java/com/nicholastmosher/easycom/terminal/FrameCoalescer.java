@@ -0,0 +1,103 @@
+package com.nicholastmosher.easycom.terminal;
+
+import android.annotation.TargetApi;
+import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
+import android.view.Choreographer;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Collapses any number of update requests, made from any thread, into at
+ * most one callback on the UI thread per display frame.  Producers call
+ * {@link #request()} every time they have new data; the listener then runs
+ * once at the start of the next frame and handles everything that arrived
+ * in the meantime.
+ *
+ * Frames are timed by the Choreographer where it's available (API 16+),
+ * and approximated with a 16ms Handler delay on older devices.
+ */
+public class FrameCoalescer {
+
+    private static final long FALLBACK_FRAME_MILLIS = 16;
+
+    /**
+     * Called on the UI thread once per frame in which updates were requested.
+     */
+    public interface OnFrameListener {
+        void onFrame();
+    }
+
+    private final OnFrameListener mListener;
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    private final AtomicBoolean mScheduled = new AtomicBoolean();
+    private volatile boolean mCancelled;
+
+    private final Runnable mFrameRunnable = new Runnable() {
+        @Override
+        public void run() {
+            doFrame();
+        }
+    };
+
+    private final Runnable mScheduleRunnable = new Runnable() {
+        @Override
+        public void run() {
+            if(Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN) {
+                postFrameCallback();
+            } else {
+                mHandler.postDelayed(mFrameRunnable, FALLBACK_FRAME_MILLIS);
+            }
+        }
+    };
+
+    private Object mFrameCallback;
+
+    public FrameCoalescer(OnFrameListener listener) {
+        mListener = listener;
+    }
+
+    /**
+     * Requests that the listener run at the next frame.  Safe to call from
+     * any thread; requests made before that frame are merged into one.
+     */
+    public void request() {
+        if(!mCancelled && mScheduled.compareAndSet(false, true)) {
+            mHandler.post(mScheduleRunnable);
+        }
+    }
+
+    /**
+     * Stops delivering frames.  Pending and future requests are ignored.
+     * Call this when the owning Activity is destroyed.
+     */
+    public void cancel() {
+        mCancelled = true;
+        mHandler.removeCallbacks(mScheduleRunnable);
+        mHandler.removeCallbacks(mFrameRunnable);
+        if(mFrameCallback != null && Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN) {
+            Choreographer.getInstance().removeFrameCallback((Choreographer.FrameCallback) mFrameCallback);
+        }
+    }
+
+    private void doFrame() {
+        if(mCancelled) return;
+        //Clear the flag first so that data arriving while the listener runs schedules another frame.
+        mScheduled.set(false);
+        mListener.onFrame();
+    }
+
+    @TargetApi(Build.VERSION_CODES.JELLY_BEAN)
+    private void postFrameCallback() {
+        if(mFrameCallback == null) {
+            mFrameCallback = new Choreographer.FrameCallback() {
+                @Override
+                public void doFrame(long frameTimeNanos) {
+                    FrameCoalescer.this.doFrame();
+                }
+            };
+        }
+        Choreographer.getInstance().postFrameCallback((Choreographer.FrameCallback) mFrameCallback);
+    }
+}
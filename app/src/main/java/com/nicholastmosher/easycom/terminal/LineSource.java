@@ -0,0 +1,32 @@
+package com.nicholastmosher.easycom.terminal;
+
+/**
+ * A scrolling list of lines for the terminal to display.  Lines are numbered
+ * from the start of the session; old lines may be dropped from the front and
+ * new lines added at the end, and only the last line may change once it has
+ * been added.  This lets a view update itself with range notifications
+ * instead of rebinding everything.
+ */
+public interface LineSource {
+
+    /**
+     * Returns the session-wide number of the oldest line still available.
+     * @return The number of the oldest available line.
+     */
+    long getFirstLineNumber();
+
+    /**
+     * Returns the number of lines currently available.
+     * @return The number of available lines.
+     */
+    int getLineCount();
+
+    /**
+     * Returns the line at the given index, where 0 is the oldest available
+     * line.  The returned text may be reused by later calls, so callers
+     * should copy it rather than keep it.
+     * @param index The index of the line to get.
+     * @return The text of the line.
+     */
+    CharSequence getLine(int index);
+}
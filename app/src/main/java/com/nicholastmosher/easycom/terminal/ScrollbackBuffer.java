@@ -0,0 +1,160 @@
+package com.nicholastmosher.easycom.terminal;
+
+/**
+ * Holds the most recent lines of terminal output in a fixed-size ring.
+ * Once the line limit is reached, starting a new line evicts the oldest one,
+ * so memory stays bounded no matter how long a device keeps talking.  Lines
+ * longer than the maximum line length are wrapped onto a new line.
+ *
+ * Each line is kept in a StringBuilder that is reused when its slot in the
+ * ring is evicted, so appending text doesn't create a String per chunk.
+ * Lines are numbered from the start of the session; {@link #getFirstLineNumber()}
+ * tells which line is the oldest one still held, so a view can work out
+ * which lines were evicted or added since it last looked.
+ *
+ * A ScrollbackBuffer is not thread safe and should only be used from the
+ * UI thread.
+ */
+public class ScrollbackBuffer implements LineSource {
+
+    public static final int DEFAULT_MAX_LINE_LENGTH = 1024;
+
+    private final StringBuilder[] mLines;
+    private final int mMaxLineLength;
+
+    /** Ring index of the oldest line. */
+    private int mHead;
+    private int mLineCount;
+    private long mFirstLineNumber;
+
+    public ScrollbackBuffer(int lineLimit) {
+        this(lineLimit, DEFAULT_MAX_LINE_LENGTH);
+    }
+
+    /**
+     * Constructs a ScrollbackBuffer.
+     * @param lineLimit     The maximum number of lines to hold.
+     * @param maxLineLength The length at which a line is wrapped.
+     */
+    public ScrollbackBuffer(int lineLimit, int maxLineLength) {
+        if(lineLimit < 1 || maxLineLength < 1) {
+            throw new IllegalArgumentException("Line limit and line length must be positive");
+        }
+        mLines = new StringBuilder[lineLimit];
+        mMaxLineLength = maxLineLength;
+        clear();
+    }
+
+    /**
+     * Appends text to the end of the buffer.  Each '\n' starts a new line;
+     * '\r' characters are dropped.
+     * @param text The text to append.
+     */
+    public void append(CharSequence text) {
+        for(int i = 0; i < text.length(); i++) {
+            append(text.charAt(i));
+        }
+    }
+
+    /**
+     * Appends a range of characters to the end of the buffer.
+     * @param text   The array holding the characters to append.
+     * @param offset The index of the first character to append.
+     * @param length The number of characters to append.
+     */
+    public void append(char[] text, int offset, int length) {
+        for(int i = offset; i < offset + length; i++) {
+            append(text[i]);
+        }
+    }
+
+    /**
+     * Appends a single character to the end of the buffer.
+     * @param c The character to append.
+     */
+    public void append(char c) {
+        if(c == '\n') {
+            newLine();
+        } else if(c != '\r') {
+            StringBuilder line = lastLine();
+            if(line.length() >= mMaxLineLength) {
+                newLine();
+                line = lastLine();
+            }
+            line.append(c);
+        }
+    }
+
+    /**
+     * Returns the number of lines currently held, including
+     * the last, possibly unfinished, line.
+     * @return The number of lines held.
+     */
+    @Override
+    public int getLineCount() {
+        return mLineCount;
+    }
+
+    /**
+     * Returns the session-wide number of the oldest line still held.
+     * This grows by one each time a line is evicted.
+     * @return The number of the oldest held line.
+     */
+    @Override
+    public long getFirstLineNumber() {
+        return mFirstLineNumber;
+    }
+
+    /**
+     * Returns the line at the given index, where 0 is the oldest line held.
+     * The returned text is live and will change as the buffer is appended
+     * to, so callers should copy it (e.g. into a TextView) rather than keep it.
+     * @param index The index of the line to get.
+     * @return The text of the line.
+     */
+    @Override
+    public CharSequence getLine(int index) {
+        if(index < 0 || index >= mLineCount) {
+            throw new IndexOutOfBoundsException("Line " + index + " of " + mLineCount);
+        }
+        return mLines[(mHead + index) % mLines.length];
+    }
+
+    /**
+     * Removes all lines, leaving a single empty line.
+     */
+    public void clear() {
+        for(StringBuilder line : mLines) {
+            if(line != null) line.setLength(0);
+        }
+        mFirstLineNumber += mLineCount;
+        mHead = 0;
+        mLineCount = 0;
+        newLine();
+    }
+
+    private StringBuilder lastLine() {
+        return mLines[(mHead + mLineCount - 1) % mLines.length];
+    }
+
+    /**
+     * Starts a new, empty line, evicting the oldest line if the buffer is full.
+     */
+    private void newLine() {
+        int slot;
+        if(mLineCount == mLines.length) {
+            slot = mHead;
+            mHead = (mHead + 1) % mLines.length;
+            mFirstLineNumber++;
+        } else {
+            slot = (mHead + mLineCount) % mLines.length;
+            mLineCount++;
+        }
+
+        if(mLines[slot] == null) {
+            mLines[slot] = new StringBuilder();
+        } else {
+            mLines[slot].setLength(0);
+        }
+    }
+}
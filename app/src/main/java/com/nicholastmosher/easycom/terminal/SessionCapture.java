@@ -0,0 +1,391 @@
+package com.nicholastmosher.easycom.terminal;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Records terminal traffic in both directions to a log on disk, for captures
+ * that run for hours and must survive the app being killed.  The log lives
+ * in its own directory and is split into fixed-size segment files, each of
+ * which is memory-mapped while it's being written.  Writes are plain memory
+ * copies, nothing is kept on the Java heap, and because mapped pages belong
+ * to the kernel's page cache, everything recorded up to a process kill is
+ * still written out.
+ *
+ * Each segment starts with a header, followed by records:
+ * <pre>
+ *     header: [magic: 4][version: 4][first record timestamp: 8]
+ *     record: [payload length: 4][timestamp millis: 8][direction: 1][payload]
+ * </pre>
+ * A record's length is written after its body, and unused space in a segment
+ * is zero, so a zero length marks the end of the data and a record torn by a
+ * crash is simply never seen.  Segments are ordered by time, so a
+ * {@link Cursor} can seek to a timestamp by binary searching segment headers
+ * and scanning a single segment.
+ *
+ * Recording is synchronized, so received and sent data may be recorded from
+ * different threads.
+ */
+public class SessionCapture implements Closeable {
+
+    public static final int DEFAULT_SEGMENT_SIZE = 4 << 20;
+
+    private static final int MAGIC = 0x45434350;
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 16;
+    private static final int FIRST_TIMESTAMP_OFFSET = 8;
+    private static final int RECORD_HEADER_SIZE = 13;
+    private static final String SEGMENT_PREFIX = "segment-";
+    private static final String SEGMENT_SUFFIX = ".cap";
+
+    /**
+     * Which way a recorded chunk of data travelled.
+     */
+    public enum Direction {
+        RECEIVED,
+        SENT
+    }
+
+    private final File mDirectory;
+    private final int mSegmentSize;
+
+    private int mSegmentIndex = -1;
+    private MappedByteBuffer mSegment;
+    private boolean mClosed;
+
+    /**
+     * Opens a capture in the given directory, continuing after the last
+     * complete record if the directory already holds one.
+     * @param directory   The directory to keep the segment files in.
+     * @param segmentSize The size of each segment file.
+     * @throws IOException If the directory or a segment can't be opened.
+     */
+    public SessionCapture(File directory, int segmentSize) throws IOException {
+        if(segmentSize < HEADER_SIZE + RECORD_HEADER_SIZE + 1) {
+            throw new IllegalArgumentException("Segment size " + segmentSize + " is too small");
+        }
+        if(!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Could not create capture directory " + directory);
+        }
+        mDirectory = directory;
+        mSegmentSize = segmentSize;
+
+        File[] segments = listSegments(directory);
+        if(segments.length > 0) {
+            mSegmentIndex = segments.length - 1;
+            mSegment = map(segments[mSegmentIndex], segmentSize);
+            clearFrom(mSegment, findEnd(mSegment));
+        } else {
+            nextSegment();
+        }
+    }
+
+    /**
+     * Creates a new capture in a timestamped directory under the given root,
+     * such as a "captures" directory in the app's files directory.
+     * @param root The directory to create the capture's directory in.
+     * @return The new SessionCapture.
+     * @throws IOException If the capture can't be created.
+     */
+    public static SessionCapture create(File root) throws IOException {
+        String name = new SimpleDateFormat("yyyyMMdd-HHmmss", Locale.US).format(new Date());
+        return new SessionCapture(new File(root, name), DEFAULT_SEGMENT_SIZE);
+    }
+
+    /**
+     * Returns the directory this capture writes to.
+     * @return The capture's directory.
+     */
+    public File getDirectory() {
+        return mDirectory;
+    }
+
+    /**
+     * Records a chunk of traffic with the current time.  Chunks that don't
+     * fit in the rest of a segment are split across segments.
+     * @param direction Which way the data travelled.
+     * @param data      The array holding the data.
+     * @param offset    The index of the first byte to record.
+     * @param length    The number of bytes to record.
+     * @throws IOException If a new segment can't be created.
+     */
+    public void record(Direction direction, byte[] data, int offset, int length) throws IOException {
+        record(direction, System.currentTimeMillis(), data, offset, length);
+    }
+
+    /**
+     * Records a chunk of traffic with the time it was sent or received, for
+     * callers that record it later on another thread.
+     * @param direction Which way the data travelled.
+     * @param timestamp When the data travelled, in milliseconds since the epoch.
+     * @param data      The array holding the data.
+     * @param offset    The index of the first byte to record.
+     * @param length    The number of bytes to record.
+     * @throws IOException If a new segment can't be created.
+     */
+    public synchronized void record(Direction direction, long timestamp, byte[] data, int offset, int length)
+            throws IOException {
+        if(mClosed) {
+            throw new IOException("Capture is closed");
+        }
+        while(length > 0) {
+            if(mSegment.remaining() <= RECORD_HEADER_SIZE) {
+                nextSegment();
+            }
+            int count = Math.min(length, mSegment.remaining() - RECORD_HEADER_SIZE);
+            int start = mSegment.position();
+            if(start == HEADER_SIZE) {
+                mSegment.putLong(FIRST_TIMESTAMP_OFFSET, timestamp);
+            }
+
+            mSegment.position(start + 4);
+            mSegment.putLong(timestamp);
+            mSegment.put((byte) direction.ordinal());
+            mSegment.put(data, offset, count);
+            //The length goes in last; until then, readers see the end of the data here.
+            mSegment.putInt(start, count);
+
+            offset += count;
+            length -= count;
+        }
+    }
+
+    /**
+     * Asks the system to write everything recorded so far to storage.
+     */
+    public synchronized void force() {
+        if(!mClosed) {
+            mSegment.force();
+        }
+    }
+
+    @Override
+    public synchronized void close() {
+        if(!mClosed) {
+            mSegment.force();
+            mSegment = null;
+            mClosed = true;
+        }
+    }
+
+    /**
+     * Opens a Cursor for reading back the capture in the given directory.
+     * @param directory The capture's directory.
+     * @return A Cursor positioned before the first record.
+     * @throws IOException If the segments can't be read.
+     */
+    public static Cursor openCursor(File directory) throws IOException {
+        return new Cursor(listSegments(directory));
+    }
+
+    private void nextSegment() throws IOException {
+        if(mSegment != null) {
+            mSegment.force();
+        }
+        mSegmentIndex++;
+        File file = new File(mDirectory, String.format(Locale.US, "%s%05d%s",
+                SEGMENT_PREFIX, mSegmentIndex, SEGMENT_SUFFIX));
+        mSegment = map(file, mSegmentSize);
+        mSegment.putInt(0, MAGIC);
+        mSegment.putInt(4, VERSION);
+        mSegment.position(HEADER_SIZE);
+    }
+
+    private static MappedByteBuffer map(File file, int size) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            //The mapping stays valid after the channel is closed.
+            return raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+        } finally {
+            raf.close();
+        }
+    }
+
+    private static File[] listSegments(File directory) {
+        File[] segments = directory.listFiles();
+        if(segments == null) {
+            return new File[0];
+        }
+        List<File> matching = new ArrayList<>();
+        for(File file : segments) {
+            if(file.getName().startsWith(SEGMENT_PREFIX) && file.getName().endsWith(SEGMENT_SUFFIX)) {
+                matching.add(file);
+            }
+        }
+        File[] sorted = matching.toArray(new File[matching.size()]);
+        //Segment names are zero padded, so name order is time order.
+        Arrays.sort(sorted);
+        return sorted;
+    }
+
+    /**
+     * Zeroes a segment from the end of its data to its limit and leaves it
+     * positioned there, so that the body of a record torn by a crash can't
+     * be read as records once new ones are written in front of it.
+     */
+    private static void clearFrom(MappedByteBuffer segment, int position) {
+        byte[] zeros = new byte[Math.min(8192, segment.limit() - position)];
+        segment.position(position);
+        while(segment.hasRemaining()) {
+            segment.put(zeros, 0, Math.min(zeros.length, segment.remaining()));
+        }
+        segment.force();
+        segment.position(position);
+    }
+
+    /**
+     * Returns the position just past the last complete record in a segment.
+     */
+    private static int findEnd(MappedByteBuffer segment) {
+        int position = HEADER_SIZE;
+        while(position + RECORD_HEADER_SIZE <= segment.limit()) {
+            int length = segment.getInt(position);
+            if(length <= 0 || position + RECORD_HEADER_SIZE + length > segment.limit()) break;
+            position += RECORD_HEADER_SIZE + length;
+        }
+        return position;
+    }
+
+    /**
+     * Reads records back out of a capture, in time order.  Segments are
+     * mapped read-only one at a time, so reading doesn't load the capture
+     * onto the heap either.
+     */
+    public static class Cursor implements Closeable {
+
+        private final File[] mSegments;
+        private int mSegmentIndex = -1;
+        private MappedByteBuffer mSegment;
+        private int mEnd;
+        private int mNext;
+
+        private long mTimestamp;
+        private Direction mDirection;
+        private int mPayloadPosition;
+        private int mLength;
+
+        Cursor(File[] segments) {
+            mSegments = segments;
+        }
+
+        /**
+         * Moves to the first record at or after the given time.
+         * @param timestamp The time to seek to, in milliseconds since the epoch.
+         * @return True if such a record exists; the Cursor is then positioned
+         *         on it.  False if every record is older.
+         * @throws IOException If a segment can't be read.
+         */
+        public boolean seek(long timestamp) throws IOException {
+            //Find the last segment that starts at or before the timestamp.
+            int low = 0;
+            int high = mSegments.length - 1;
+            int found = 0;
+            while(low <= high) {
+                int middle = (low + high) >>> 1;
+                if(readFirstTimestamp(mSegments[middle]) <= timestamp) {
+                    found = middle;
+                    low = middle + 1;
+                } else {
+                    high = middle - 1;
+                }
+            }
+
+            openSegment(found - 1);
+            while(next()) {
+                if(mTimestamp >= timestamp) return true;
+            }
+            return false;
+        }
+
+        /**
+         * Advances to the next record.
+         * @return True if there was another record, false at the end of the capture.
+         * @throws IOException If a segment can't be read.
+         */
+        public boolean next() throws IOException {
+            while(true) {
+                if(mSegment != null && mNext < mEnd) {
+                    mLength = mSegment.getInt(mNext);
+                    mTimestamp = mSegment.getLong(mNext + 4);
+                    mDirection = Direction.values()[mSegment.get(mNext + 12)];
+                    mPayloadPosition = mNext + RECORD_HEADER_SIZE;
+                    mNext = mPayloadPosition + mLength;
+                    return true;
+                }
+                if(mSegmentIndex + 1 >= mSegments.length) {
+                    return false;
+                }
+                openSegment(mSegmentIndex);
+            }
+        }
+
+        public long getTimestamp() {
+            return mTimestamp;
+        }
+
+        public Direction getDirection() {
+            return mDirection;
+        }
+
+        public int getLength() {
+            return mLength;
+        }
+
+        /**
+         * Copies the current record's payload into the given array.
+         * @param dest   The array to copy into; must have room for {@link #getLength()} bytes.
+         * @param offset The index in dest to start copying to.
+         */
+        public void getPayload(byte[] dest, int offset) {
+            mSegment.position(mPayloadPosition);
+            mSegment.get(dest, offset, mLength);
+        }
+
+        @Override
+        public void close() {
+            mSegment = null;
+        }
+
+        /**
+         * Maps the segment after the given index and positions before its first record.
+         */
+        private void openSegment(int previousIndex) throws IOException {
+            mSegmentIndex = previousIndex + 1;
+            if(mSegmentIndex >= mSegments.length) {
+                mSegment = null;
+                return;
+            }
+            RandomAccessFile raf = new RandomAccessFile(mSegments[mSegmentIndex], "r");
+            try {
+                mSegment = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length());
+            } finally {
+                raf.close();
+            }
+            if(mSegment.limit() < HEADER_SIZE || mSegment.getInt(0) != MAGIC) {
+                throw new IOException("Not a capture segment: " + mSegments[mSegmentIndex]);
+            }
+            mEnd = findEnd(mSegment);
+            mNext = HEADER_SIZE;
+        }
+
+        private static long readFirstTimestamp(File segment) throws IOException {
+            RandomAccessFile raf = new RandomAccessFile(segment, "r");
+            try {
+                raf.seek(FIRST_TIMESTAMP_OFFSET);
+                return raf.readLong();
+            } finally {
+                raf.close();
+            }
+        }
+    }
+}
@@ -0,0 +1,101 @@
+package com.nicholastmosher.easycom.terminal;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A lock-free queue of bytes for exactly one producer thread and one
+ * consumer thread, such as a Connection's receiving thread handing data to
+ * the UI thread.  Bytes are copied into a fixed ring, so neither side
+ * allocates or blocks.  If the producer outruns the consumer, bytes that
+ * don't fit are dropped and counted rather than growing the queue.
+ *
+ * The producer only ever writes the tail and the consumer only ever writes
+ * the head; each side publishes its progress with an ordered store after
+ * touching the ring, which is all the synchronization a single producer and
+ * single consumer need.
+ */
+public class SpscByteQueue {
+
+    private final byte[] mRing;
+    private final int mMask;
+
+    /** Total bytes ever read.  Written only by the consumer. */
+    private final AtomicLong mHead = new AtomicLong();
+    /** Total bytes ever written.  Written only by the producer. */
+    private final AtomicLong mTail = new AtomicLong();
+    private final AtomicLong mDropped = new AtomicLong();
+
+    /**
+     * Constructs a queue holding up to the given number of bytes.
+     * @param capacity The capacity in bytes, rounded up to a power of two.
+     */
+    public SpscByteQueue(int capacity) {
+        if(capacity < 1 || capacity > (1 << 30)) {
+            throw new IllegalArgumentException("Invalid capacity " + capacity);
+        }
+        int size = Integer.highestOneBit(capacity);
+        if(size < capacity) size <<= 1;
+        mRing = new byte[size];
+        mMask = size - 1;
+    }
+
+    /**
+     * Copies bytes into the queue.  May only be called from the producer thread.
+     * @param data   The array holding the bytes to enqueue.
+     * @param offset The index of the first byte to enqueue.
+     * @param length The number of bytes to enqueue.
+     * @return The number of bytes enqueued.  Any remainder was dropped.
+     */
+    public int offer(byte[] data, int offset, int length) {
+        long tail = mTail.get();
+        int free = mRing.length - (int) (tail - mHead.get());
+        int count = Math.min(free, length);
+        if(count < length) {
+            mDropped.addAndGet(length - count);
+        }
+
+        int start = (int) (tail & mMask);
+        int firstPart = Math.min(count, mRing.length - start);
+        System.arraycopy(data, offset, mRing, start, firstPart);
+        System.arraycopy(data, offset + firstPart, mRing, 0, count - firstPart);
+        mTail.lazySet(tail + count);
+        return count;
+    }
+
+    /**
+     * Copies queued bytes out of the queue.  May only be called from the
+     * consumer thread.
+     * @param dest   The array to copy bytes into.
+     * @param offset The index in dest to start copying to.
+     * @param length The maximum number of bytes to copy.
+     * @return The number of bytes copied, or 0 if the queue was empty.
+     */
+    public int poll(byte[] dest, int offset, int length) {
+        long head = mHead.get();
+        int available = (int) (mTail.get() - head);
+        int count = Math.min(available, length);
+
+        int start = (int) (head & mMask);
+        int firstPart = Math.min(count, mRing.length - start);
+        System.arraycopy(mRing, start, dest, offset, firstPart);
+        System.arraycopy(mRing, 0, dest, offset + firstPart, count - firstPart);
+        mHead.lazySet(head + count);
+        return count;
+    }
+
+    /**
+     * Returns whether the queue currently holds no bytes.
+     * @return True if the queue is empty.
+     */
+    public boolean isEmpty() {
+        return mTail.get() == mHead.get();
+    }
+
+    /**
+     * Returns the total number of bytes dropped because the queue was full.
+     * @return The number of dropped bytes.
+     */
+    public long getDropped() {
+        return mDropped.get();
+    }
+}
@@ -0,0 +1,84 @@
+package com.nicholastmosher.easycom.terminal;
+
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+
+/**
+ * Decodes a stream of received bytes into characters and appends them
+ * straight into a ScrollbackBuffer.  The decoder and its buffers are
+ * created once and reused for every chunk, so decoding doesn't allocate.
+ *
+ * Devices don't split their output on character boundaries, so a multi-byte
+ * UTF-8 sequence may be broken across two chunks.  Any incomplete sequence
+ * at the end of a chunk is held back in the input buffer and completed by
+ * the next chunk, rather than being decoded as garbage.  Bytes that are not
+ * valid in the charset are shown as the replacement character.
+ *
+ * A StreamDecoder is not thread safe.
+ */
+public class StreamDecoder {
+
+    public static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private static final int DEFAULT_BUFFER_SIZE = 8192;
+
+    private final CharsetDecoder mDecoder;
+    private final ByteBuffer mInput;
+    private final CharBuffer mOutput;
+
+    public StreamDecoder() {
+        this(UTF_8, DEFAULT_BUFFER_SIZE);
+    }
+
+    /**
+     * Constructs a StreamDecoder.
+     * @param charset    The charset the device sends.
+     * @param bufferSize The size of the byte and char buffers.  Chunks
+     *                   larger than this are decoded in several passes.
+     */
+    public StreamDecoder(Charset charset, int bufferSize) {
+        mDecoder = charset.newDecoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+        mInput = ByteBuffer.allocateDirect(bufferSize);
+        mOutput = CharBuffer.allocate(bufferSize);
+    }
+
+    /**
+     * Decodes a chunk of bytes and appends the resulting characters to the
+     * scrollback.  A partial character at the end of the chunk is kept
+     * until the next call.
+     * @param data   The array holding the received bytes.
+     * @param offset The index of the first received byte.
+     * @param length The number of received bytes.
+     * @param out    The scrollback to append characters to.
+     */
+    public void decode(byte[] data, int offset, int length, ScrollbackBuffer out) {
+        int end = offset + length;
+        while(offset < end) {
+            int count = Math.min(mInput.remaining(), end - offset);
+            mInput.put(data, offset, count);
+            offset += count;
+
+            mInput.flip();
+            mDecoder.decode(mInput, mOutput, false);
+            mOutput.flip();
+            out.append(mOutput.array(), mOutput.arrayOffset(), mOutput.limit());
+            mOutput.clear();
+            mInput.compact();
+        }
+    }
+
+    /**
+     * Discards any partial character being held and resets the decoder,
+     * for when the stream is restarted (e.g. after a reconnect).
+     */
+    public void reset() {
+        mInput.clear();
+        mOutput.clear();
+        mDecoder.reset();
+    }
+}
@@ -0,0 +1,50 @@
+package com.nicholastmosher.easycom.connection;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks that Backoff delays double from the base, stay in the upper half
+ * of their ceiling, and stop growing at the maximum.
+ */
+public class BackoffTest {
+
+    @Test
+    public void doublesUpToMaximum() {
+        Backoff backoff = new Backoff(100, 1000);
+        long[] ceilings = {100, 200, 400, 800, 1000, 1000};
+        for(long ceiling : ceilings) {
+            long delay = backoff.nextDelayMillis();
+            assertTrue(delay + " not in [" + ceiling / 2 + ", " + ceiling + "]",
+                    delay >= ceiling / 2 && delay <= ceiling);
+        }
+        assertEquals(ceilings.length, backoff.getAttempts());
+    }
+
+    @Test
+    public void staysAtMaximumAfterManyAttempts() {
+        Backoff backoff = new Backoff(1, 5000);
+        for(int i = 0; i < 100; i++) {
+            assertTrue(backoff.nextDelayMillis() <= 5000);
+        }
+        assertTrue(backoff.nextDelayMillis() >= 2500);
+    }
+
+    @Test
+    public void startsOverAfterReset() {
+        Backoff backoff = new Backoff(100, 1000);
+        for(int i = 0; i < 5; i++) {
+            backoff.nextDelayMillis();
+        }
+        backoff.reset();
+        assertEquals(0, backoff.getAttempts());
+        assertTrue(backoff.nextDelayMillis() <= 100);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsMaximumBelowBase() {
+        new Backoff(1000, 100);
+    }
+}
@@ -0,0 +1,167 @@
+package com.nicholastmosher.easycom.connection;
+
+import com.nicholastmosher.easycom.core.connection.Connection;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks that a LaneScheduler lets high lanes preempt low ones, and that a
+ * LaneDemultiplexer puts the messages back together, across a dropped link
+ * too.
+ */
+public class LaneSchedulerTest {
+
+    private static final int CHUNK_SIZE = 4;
+
+    private final List<byte[]> mMessages = new ArrayList<>();
+    private final List<Integer> mLanes = new ArrayList<>();
+    private final LaneDemultiplexer mDemultiplexer = new LaneDemultiplexer(
+            new LaneDemultiplexer.OnMessageListener() {
+                @Override
+                public void onMessage(Connection connection, int lane, byte[] message) {
+                    mLanes.add(lane);
+                    mMessages.add(message);
+                }
+            }, 3, 64);
+
+    @Test
+    public void controlPreemptsBulk() throws Exception {
+        RecordingConnection connection = new RecordingConnection(true);
+        LaneScheduler scheduler = new LaneScheduler(connection, 3, CHUNK_SIZE, 1024);
+        byte[] bulk = message(5 * CHUNK_SIZE);
+        scheduler.send(LaneScheduler.LANE_BULK, bulk);
+        connection.awaitBlockedSend();
+        scheduler.send(LaneScheduler.LANE_CONTROL, new byte[] {42});
+
+        connection.allow(6);
+        for(int i = 0; i < 6; i++) {
+            byte[] chunk = connection.next();
+            feed(chunk);
+            if(i == 1) {
+                //The control message goes out right after the bulk chunk in flight.
+                assertEquals(LaneScheduler.LANE_CONTROL | 0x80, chunk[0] & 0xFF);
+            }
+        }
+
+        assertEquals(2, mMessages.size());
+        assertEquals(LaneScheduler.LANE_CONTROL, (int) mLanes.get(0));
+        assertArrayEquals(new byte[] {42}, mMessages.get(0));
+        assertArrayEquals(bulk, mMessages.get(1));
+    }
+
+    @Test
+    public void readsChunksSplitAndMerged() throws Exception {
+        RecordingConnection connection = new RecordingConnection(false);
+        LaneScheduler scheduler = new LaneScheduler(connection, 3, CHUNK_SIZE, 1024);
+        byte[] first = message(9);
+        byte[] second = new byte[0];
+        scheduler.send(LaneScheduler.LANE_NORMAL, first);
+        scheduler.send(LaneScheduler.LANE_NORMAL, second);
+
+        //Merge every chunk into one stream, then feed it a byte at a time.
+        byte[] stream = new byte[0];
+        for(int i = 0; i < 4; i++) {
+            stream = concat(stream, connection.next());
+        }
+        for(byte b : stream) {
+            feed(new byte[] {b});
+        }
+
+        assertEquals(2, mMessages.size());
+        assertArrayEquals(first, mMessages.get(0));
+        assertArrayEquals(second, mMessages.get(1));
+    }
+
+    @Test
+    public void skipsUnknownLanesAndOversizedMessages() {
+        feed(new byte[] {5 | (byte) 0x80, 0, 1, 7});
+        feed(concat(new byte[] {LaneScheduler.LANE_BULK | (byte) 0x80, 0, 65}, new byte[65]));
+        feed(new byte[] {LaneScheduler.LANE_BULK | (byte) 0x80, 0, 1, 9});
+
+        assertEquals(2, mDemultiplexer.getDiscardedCount());
+        assertEquals(1, mMessages.size());
+        assertArrayEquals(new byte[] {9}, mMessages.get(0));
+    }
+
+    /**
+     * A message cut off by a dropped link used to be finished on the next
+     * link from where it stopped, and delivered with its middle missing.
+     */
+    @Test
+    public void restartsMessageCutOffByDroppedLink() throws Exception {
+        RecordingConnection connection = new RecordingConnection(true);
+        LaneScheduler scheduler = new LaneScheduler(connection, 3, CHUNK_SIZE, 1024);
+        byte[] bulk = message(5 * CHUNK_SIZE);
+        scheduler.send(LaneScheduler.LANE_BULK, bulk);
+
+        connection.allow(2);
+        feed(connection.next());
+        feed(connection.next());
+        connection.awaitBlockedSend();
+
+        IOException cause = new IOException("Link dropped");
+        scheduler.onLinkDown(null, cause);
+        mDemultiplexer.onLinkDown(null, cause);
+        //The chunk that was being sent when the link dropped.
+        connection.allow(1);
+        byte[] stale = connection.next();
+
+        mDemultiplexer.onLinkUp(null);
+        scheduler.onLinkUp(null);
+        //The stale chunk was still queued, so it arrives on the new link first.
+        feed(stale);
+        connection.allow(6);
+        for(int i = 0; i < 6; i++) {
+            feed(connection.next());
+        }
+
+        assertEquals(1, mMessages.size());
+        assertArrayEquals(bulk, mMessages.get(0));
+        assertEquals(1, scheduler.getRestartedCount());
+        assertTrue(mDemultiplexer.getDiscardedCount() > 0);
+        assertEquals(0, scheduler.getQueuedBytes());
+    }
+
+    @Test
+    public void holdsMessagesWhileLinkIsDown() throws Exception {
+        RecordingConnection connection = new RecordingConnection(false);
+        LaneScheduler scheduler = new LaneScheduler(connection, 3, CHUNK_SIZE, 1024);
+        scheduler.onLinkDown(null, null);
+        scheduler.send(LaneScheduler.LANE_CONTROL, new byte[] {1});
+        Thread.sleep(50);
+        assertNull(connection.poll());
+
+        scheduler.onLinkUp(null);
+        //SYNC chunks for every lane, then the message.
+        assertEquals(3 * LaneScheduler.HEADER_LENGTH, connection.next().length);
+        assertArrayEquals(new byte[] {(byte) 0x80, 0, 1, 1}, connection.next());
+    }
+
+    private void feed(byte[] data) {
+        mDemultiplexer.onDataReceived(null, data);
+    }
+
+    private static byte[] message(int length) {
+        byte[] message = new byte[length];
+        for(int i = 0; i < length; i++) {
+            message[i] = (byte) (i + 1);
+        }
+        return message;
+    }
+
+    private static byte[] concat(byte[] a, byte[] b) {
+        byte[] result = new byte[a.length + b.length];
+        System.arraycopy(a, 0, result, 0, a.length);
+        System.arraycopy(b, 0, result, a.length, b.length);
+        return result;
+    }
+}
@@ -0,0 +1,189 @@
+package com.nicholastmosher.easycom.connection;
+
+import com.nicholastmosher.easycom.core.connection.Connection;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks a NioTcpIpConnection against a local server: data queued before
+ * the socket opens, backpressure that wakes as the socket drains, and link
+ * listeners told when the other end goes away.
+ */
+public class NioTcpIpConnectionTest {
+
+    private static final long TIMEOUT_SECONDS = 20;
+
+    private ServerSocket mServer;
+    private NioTcpIpConnection mConnection;
+
+    @Before
+    public void setUp() throws IOException {
+        mServer = new ServerSocket(0, 1, InetAddress.getByName("127.0.0.1"));
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        if(mConnection != null) {
+            mConnection.disconnect();
+        }
+        mServer.close();
+    }
+
+    @Test
+    public void sendsDataQueuedBeforeConnect() throws Exception {
+        mConnection = newConnection(NioTcpIpConnection.DEFAULT_HIGH_WATER);
+        mConnection.send("early".getBytes());
+        mConnection.connect();
+
+        Socket socket = mServer.accept();
+        byte[] received = new byte[5];
+        InputStream in = socket.getInputStream();
+        int read = 0;
+        while(read < received.length) {
+            read += in.read(received, read, received.length - read);
+        }
+        assertArrayEquals("early".getBytes(), received);
+        socket.close();
+    }
+
+    @Test
+    public void deliversReceivedData() throws Exception {
+        mConnection = newConnection(NioTcpIpConnection.DEFAULT_HIGH_WATER);
+        final CountDownLatch received = new CountDownLatch(5);
+        mConnection.addOnDataReceivedListener(new Connection.OnDataReceivedListener() {
+            @Override
+            public void onDataReceived(Connection connection, byte[] data) {
+                for(int i = 0; i < data.length; i++) {
+                    received.countDown();
+                }
+            }
+        });
+        mConnection.connect();
+        Socket socket = mServer.accept();
+        socket.getOutputStream().write("hello".getBytes());
+
+        assertTrue(received.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+        socket.close();
+    }
+
+    /**
+     * A sender waiting for room was only woken when the queue emptied, so
+     * senders of mixed sizes near the high water mark could wait forever
+     * on a socket that was draining.
+     */
+    @Test
+    public void blockedSenderWakesAsSocketDrains() throws Exception {
+        mConnection = newConnection(4096);
+        mConnection.connect();
+        final AtomicLong received = new AtomicLong();
+        Thread reader = drain(mServer.accept(), 2000L * 5000, received);
+
+        final CountDownLatch sent = new CountDownLatch(1);
+        Thread sender = new Thread() {
+            @Override
+            public void run() {
+                for(int i = 0; i < 2000; i++) {
+                    mConnection.send(new byte[2000]);
+                    mConnection.send(new byte[3000]);
+                }
+                sent.countDown();
+            }
+        };
+        sender.setDaemon(true);
+        sender.start();
+
+        assertTrue("Sender never finished", sent.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+        reader.join(TimeUnit.SECONDS.toMillis(TIMEOUT_SECONDS));
+        assertEquals(2000L * 5000, received.get());
+    }
+
+    @Test
+    public void tellsLinkListenersWhenPeerCloses() throws Exception {
+        mConnection = newConnection(NioTcpIpConnection.DEFAULT_HIGH_WATER);
+        final CountDownLatch up = new CountDownLatch(1);
+        final CountDownLatch down = new CountDownLatch(1);
+        final IOException[] cause = new IOException[1];
+        mConnection.addOnLinkListener(new NioTcpIpConnection.OnLinkListener() {
+            @Override
+            public void onLinkUp(NioTcpIpConnection connection) {
+                up.countDown();
+            }
+
+            @Override
+            public void onLinkDown(NioTcpIpConnection connection, IOException e) {
+                cause[0] = e;
+                down.countDown();
+            }
+        });
+        mConnection.connect();
+        Socket socket = mServer.accept();
+        assertTrue(up.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+        assertTrue(mConnection.isLinkUp());
+
+        socket.close();
+        assertTrue(down.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+        assertNotNull(cause[0]);
+        assertTrue(!mConnection.isLinkUp());
+    }
+
+    @Test
+    public void reconnectsAfterDisconnect() throws Exception {
+        mConnection = newConnection(NioTcpIpConnection.DEFAULT_HIGH_WATER);
+        for(int i = 0; i < 3; i++) {
+            mConnection.connect();
+            Socket socket = mServer.accept();
+            mConnection.send(new byte[] {(byte) i});
+            assertEquals(i, socket.getInputStream().read());
+            mConnection.disconnect();
+            assertEquals(-1, socket.getInputStream().read());
+            socket.close();
+        }
+    }
+
+    private NioTcpIpConnection newConnection(int highWater) {
+        return new NioTcpIpConnection("Loopback", "127.0.0.1", mServer.getLocalPort(),
+                NioEngine.getDefault(), highWater);
+    }
+
+    /**
+     * Reads and counts what's sent to a socket, a little at a time, until
+     * the expected amount has arrived.
+     */
+    private static Thread drain(final Socket socket, final long expected, final AtomicLong received) {
+        Thread reader = new Thread() {
+            @Override
+            public void run() {
+                byte[] buffer = new byte[1500];
+                try {
+                    InputStream in = socket.getInputStream();
+                    int count;
+                    while(received.get() < expected && (count = in.read(buffer)) >= 0) {
+                        received.addAndGet(count);
+                    }
+                    socket.close();
+                } catch(IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        };
+        reader.setDaemon(true);
+        reader.start();
+        return reader;
+    }
+}
@@ -0,0 +1,71 @@
+package com.nicholastmosher.easycom.connection;
+
+import com.nicholastmosher.easycom.core.connection.TcpIpConnection;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A Connection that keeps what's sent through it instead of sending it.
+ * A held connection blocks each send until it's allowed through, to stand
+ * in for a link that's slower than its sender.
+ */
+class RecordingConnection extends TcpIpConnection {
+
+    private final BlockingQueue<byte[]> mSent = new LinkedBlockingQueue<>();
+    private final Semaphore mPermits;
+
+    /**
+     * @param held Whether sends wait for {@link #allow(int)}.
+     */
+    RecordingConnection(boolean held) {
+        super("Recording", "localhost", 0);
+        mPermits = held ? new Semaphore(0) : null;
+    }
+
+    @Override
+    public void send(byte[] data) {
+        if(mPermits != null) {
+            mPermits.acquireUninterruptibly();
+        }
+        mSent.add(data);
+    }
+
+    /**
+     * Lets the given number of sends through.
+     */
+    void allow(int count) {
+        mPermits.release(count);
+    }
+
+    /**
+     * Waits until a send is blocked waiting to be allowed through.
+     */
+    void awaitBlockedSend() throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while(!mPermits.hasQueuedThreads()) {
+            if(System.nanoTime() > deadline) {
+                throw new AssertionError("Nothing was sent");
+            }
+            Thread.sleep(1);
+        }
+    }
+
+    /**
+     * Takes the next thing sent, waiting a while for it.
+     * @return The data sent, or null if nothing was.
+     */
+    byte[] next() throws InterruptedException {
+        return mSent.poll(5, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Takes the next thing sent if it has been sent already.
+     * @return The data sent, or null if nothing has been.
+     */
+    byte[] poll() {
+        return mSent.poll();
+    }
+}
@@ -0,0 +1,160 @@
+package com.nicholastmosher.easycom.connection;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Checks how a ResumableSession reads its frames: each message delivered
+ * once and in order however the frames are split, acknowledgements
+ * releasing the replay buffer, and a new session on the other end
+ * starting the numbering over.  The connection is never opened, so the
+ * session's own frames just wait in its queue.
+ */
+public class ResumableSessionTest {
+
+    private static final int DATA = 1;
+    private static final int ACK = 2;
+    private static final int HELLO = 4;
+    private static final int RESUME = 5;
+
+    private final List<String> mMessages = new ArrayList<>();
+    private ResumableSession mSession;
+
+    @Before
+    public void setUp() {
+        mSession = newSession(ResumableSession.DEFAULT_MAX_UNACKED_BYTES);
+    }
+
+    @After
+    public void tearDown() {
+        mSession.close();
+    }
+
+    @Test
+    public void deliversFramesSplitAcrossReads() {
+        byte[] stream = concat(frame(DATA, 1, "a"), frame(DATA, 2, "bc"));
+        for(byte b : stream) {
+            mSession.onDataReceived(null, new byte[] {b});
+        }
+        assertMessages("a", "bc");
+    }
+
+    @Test
+    public void deliversFramesMergedIntoOneRead() {
+        mSession.onDataReceived(null, concat(frame(DATA, 1, "a"), concat(frame(DATA, 2, ""), frame(DATA, 3, "c"))));
+        assertMessages("a", "", "c");
+    }
+
+    @Test
+    public void skipsDuplicatesAndMessagesOutOfTurn() {
+        mSession.onDataReceived(null, frame(DATA, 1, "a"));
+        mSession.onDataReceived(null, frame(DATA, 1, "a"));
+        mSession.onDataReceived(null, frame(DATA, 3, "c"));
+        assertMessages("a");
+
+        mSession.onDataReceived(null, frame(DATA, 2, "b"));
+        mSession.onDataReceived(null, frame(DATA, 3, "c"));
+        assertMessages("a", "b", "c");
+    }
+
+    @Test
+    public void resumesPastMessagesThatCannotBeReplayed() {
+        mSession.onDataReceived(null, frame(DATA, 1, "a"));
+        mSession.onDataReceived(null, concat(frame(RESUME, 4, ""), frame(DATA, 5, "e")));
+        assertMessages("a", "e");
+    }
+
+    @Test
+    public void newPeerSessionStartsNumberingOver() {
+        mSession.onDataReceived(null, frame(HELLO, 0, sessionId(1)));
+        mSession.onDataReceived(null, frame(DATA, 1, "a"));
+        //The same session again, on a new link: numbering carries on.
+        mSession.onDataReceived(null, frame(HELLO, 0, sessionId(1)));
+        mSession.onDataReceived(null, frame(DATA, 1, "a"));
+        mSession.onDataReceived(null, frame(DATA, 2, "b"));
+        //A new session: numbering starts over.
+        mSession.onDataReceived(null, frame(HELLO, 0, sessionId(2)));
+        mSession.onDataReceived(null, frame(DATA, 1, "x"));
+        assertMessages("a", "b", "x");
+    }
+
+    @Test
+    public void acknowledgementReleasesReplayBuffer() {
+        mSession.send(new byte[] {1});
+        mSession.send(new byte[] {2});
+        mSession.send(new byte[] {3});
+        assertEquals(3, mSession.getUnackedCount());
+
+        mSession.onDataReceived(null, frame(ACK, 2, ""));
+        assertEquals(1, mSession.getUnackedCount());
+        //An old acknowledgement arriving late changes nothing.
+        mSession.onDataReceived(null, frame(ACK, 1, ""));
+        assertEquals(1, mSession.getUnackedCount());
+    }
+
+    @Test
+    public void helloAcknowledgesWhatThePeerReceived() {
+        mSession.send(new byte[] {1});
+        mSession.send(new byte[] {2});
+        mSession.onDataReceived(null, frame(HELLO, 1, sessionId(1)));
+        assertEquals(1, mSession.getUnackedCount());
+    }
+
+    @Test
+    public void boundsReplayBuffer() {
+        mSession.close();
+        mSession = newSession(10);
+        mSession.send(new byte[4]);
+        mSession.send(new byte[4]);
+        mSession.send(new byte[4]);
+        assertEquals(2, mSession.getUnackedCount());
+        assertEquals(1, mSession.getReplayLostCount());
+    }
+
+    private ResumableSession newSession(long maxUnackedBytes) {
+        NioTcpIpConnection connection = new NioTcpIpConnection("Peer", "127.0.0.1", 9,
+                NioEngine.getDefault(), NioTcpIpConnection.DEFAULT_HIGH_WATER);
+        return new ResumableSession(new ReconnectSupervisor(connection), new ResumableSession.OnMessageListener() {
+            @Override
+            public void onMessage(ResumableSession session, byte[] message) {
+                mMessages.add(new String(message));
+            }
+        }, ResumableSession.DEFAULT_HEARTBEAT_MILLIS, maxUnackedBytes);
+    }
+
+    private void assertMessages(String... messages) {
+        assertEquals(Arrays.asList(messages), mMessages);
+    }
+
+    private static byte[] frame(int type, int sequence, String payload) {
+        return frame(type, sequence, payload.getBytes());
+    }
+
+    private static byte[] frame(int type, int sequence, byte[] payload) {
+        return ByteBuffer.allocate(1 + 4 + 4 + payload.length)
+                .put((byte) type)
+                .putInt(sequence)
+                .putInt(payload.length)
+                .put(payload)
+                .array();
+    }
+
+    private static byte[] sessionId(long id) {
+        return ByteBuffer.allocate(8).putLong(id).array();
+    }
+
+    private static byte[] concat(byte[] a, byte[] b) {
+        byte[] result = new byte[a.length + b.length];
+        System.arraycopy(a, 0, result, 0, a.length);
+        System.arraycopy(b, 0, result, a.length, b.length);
+        return result;
+    }
+}
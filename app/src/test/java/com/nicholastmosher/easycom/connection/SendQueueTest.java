@@ -0,0 +1,165 @@
+package com.nicholastmosher.easycom.connection;
+
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks what each SendQueue policy does once the link stops keeping up.
+ * Every test holds its first message in the connection, so the rest wait
+ * in the queue.
+ */
+public class SendQueueTest {
+
+    private final RecordingConnection mConnection = new RecordingConnection(true);
+
+    @Test
+    public void sendsInOrder() throws Exception {
+        SendQueue queue = new SendQueue(mConnection, SendQueue.Policy.BLOCK);
+        for(int i = 0; i < 10; i++) {
+            queue.send(new byte[] {(byte) i});
+        }
+        mConnection.allow(10);
+        for(int i = 0; i < 10; i++) {
+            assertArrayEquals(new byte[] {(byte) i}, mConnection.next());
+        }
+        assertEquals(10, queue.getSentCount());
+    }
+
+    @Test
+    public void blockRefusesOfferWhenFull() throws Exception {
+        SendQueue queue = new SendQueue(mConnection, SendQueue.Policy.BLOCK, 2, 1024);
+        queue.send(bytes("in flight"));
+        mConnection.awaitBlockedSend();
+        assertTrue(queue.offer(bytes("a")));
+        assertTrue(queue.offer(bytes("b")));
+        assertFalse(queue.offer(bytes("c")));
+        assertEquals(1, queue.getDroppedCount());
+        assertEquals(2, queue.getDepth());
+    }
+
+    @Test
+    public void blockWaitsForRoom() throws Exception {
+        final SendQueue queue = new SendQueue(mConnection, SendQueue.Policy.BLOCK, 1, 1024);
+        queue.send(bytes("in flight"));
+        mConnection.awaitBlockedSend();
+        queue.send(bytes("a"));
+
+        final CountDownLatch sent = new CountDownLatch(1);
+        new Thread() {
+            @Override
+            public void run() {
+                queue.send(bytes("b"));
+                sent.countDown();
+            }
+        }.start();
+        assertFalse(sent.await(100, TimeUnit.MILLISECONDS));
+
+        mConnection.allow(3);
+        assertTrue(sent.await(5, TimeUnit.SECONDS));
+        assertEquals("in flight", string(mConnection.next()));
+        assertEquals("a", string(mConnection.next()));
+        assertEquals("b", string(mConnection.next()));
+        assertEquals(0, queue.getDroppedCount());
+    }
+
+    @Test
+    public void dropOldestKeepsNewest() throws Exception {
+        SendQueue queue = new SendQueue(mConnection, SendQueue.Policy.DROP_OLDEST, 2, 1024);
+        queue.send(bytes("in flight"));
+        mConnection.awaitBlockedSend();
+        queue.send(bytes("a"));
+        queue.send(bytes("b"));
+        queue.send(bytes("c"));
+        assertEquals(1, queue.getDroppedCount());
+
+        mConnection.allow(3);
+        assertEquals("in flight", string(mConnection.next()));
+        assertEquals("b", string(mConnection.next()));
+        assertEquals("c", string(mConnection.next()));
+    }
+
+    @Test
+    public void coalesceReplacesWaitingMessageInPlace() throws Exception {
+        SendQueue queue = new SendQueue(mConnection, SendQueue.Policy.COALESCE, 8, 1024);
+        queue.send("x", bytes("x0"));
+        mConnection.awaitBlockedSend();
+        queue.send("x", bytes("x1"));
+        queue.send("y", bytes("y1"));
+        queue.send("x", bytes("x2"));
+        assertEquals(1, queue.getCoalescedCount());
+        assertEquals(2, queue.getDepth());
+
+        mConnection.allow(3);
+        assertEquals("x0", string(mConnection.next()));
+        assertEquals("x2", string(mConnection.next()));
+        assertEquals("y1", string(mConnection.next()));
+    }
+
+    /**
+     * A replacement larger than the message it replaced used to be allowed
+     * to push the queue past its byte limit.
+     */
+    @Test
+    public void coalesceKeepsByteLimitWhenReplacementGrows() throws Exception {
+        SendQueue queue = new SendQueue(mConnection, SendQueue.Policy.COALESCE, 8, 10);
+        queue.send(bytes("in flight"));
+        mConnection.awaitBlockedSend();
+        queue.send("a", new byte[4]);
+        queue.send("b", new byte[4]);
+        queue.send("b", new byte[8]);
+
+        assertEquals(1, queue.getDroppedCount());
+        assertEquals(1, queue.getDepth());
+        assertEquals(8, queue.getQueuedBytes());
+    }
+
+    @Test
+    public void acceptsOversizedMessageIntoEmptyQueue() {
+        SendQueue queue = new SendQueue(mConnection, SendQueue.Policy.BLOCK, 8, 4);
+        assertTrue(queue.offer(new byte[16]));
+    }
+
+    @Test
+    public void closeDropsQueuedAndReleasesSenders() throws Exception {
+        final SendQueue queue = new SendQueue(mConnection, SendQueue.Policy.BLOCK, 1, 1024);
+        queue.send(bytes("in flight"));
+        mConnection.awaitBlockedSend();
+        queue.send(bytes("a"));
+
+        final boolean[] result = {true};
+        Thread sender = new Thread() {
+            @Override
+            public void run() {
+                result[0] = queue.send(bytes("b"));
+            }
+        };
+        sender.start();
+        Thread.sleep(50);
+        queue.close();
+        sender.join(5000);
+
+        assertFalse(result[0]);
+        assertEquals(0, queue.getDepth());
+        assertEquals(1, queue.getDroppedCount());
+        mConnection.allow(2);
+        assertEquals("in flight", string(mConnection.next()));
+        Thread.sleep(50);
+        assertNull(mConnection.poll());
+    }
+
+    private static byte[] bytes(String string) {
+        return string.getBytes();
+    }
+
+    private static String string(byte[] bytes) {
+        return new String(bytes);
+    }
+}
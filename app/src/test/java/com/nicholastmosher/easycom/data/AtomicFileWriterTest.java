@@ -0,0 +1,102 @@
+package com.nicholastmosher.easycom.data;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertFalse;
+
+/**
+ * Checks that an AtomicFileWriter replaces a file's contents only on commit.
+ */
+public class AtomicFileWriterTest {
+
+    private File mDirectory;
+    private File mTarget;
+
+    @Before
+    public void setUp() throws IOException {
+        mDirectory = File.createTempFile("atomic", "");
+        mDirectory.delete();
+        mDirectory.mkdir();
+        mTarget = new File(mDirectory, "target");
+        FileOutputStream out = new FileOutputStream(mTarget);
+        try {
+            out.write("old".getBytes("UTF-8"));
+        } finally {
+            out.close();
+        }
+    }
+
+    @After
+    public void tearDown() {
+        for(File file : mDirectory.listFiles()) {
+            file.delete();
+        }
+        mDirectory.delete();
+    }
+
+    @Test
+    public void replacesContentsOnCommit() throws IOException {
+        AtomicFileWriter writer = new AtomicFileWriter(mTarget);
+        //More than the writer's buffer, so it has to write through it.
+        byte[] contents = new byte[20000];
+        for(int i = 0; i < contents.length; i++) {
+            contents[i] = (byte) i;
+        }
+        OutputStream out = writer.begin();
+        out.write(contents, 0, 5);
+        out.write(contents[5]);
+        out.write(contents, 6, contents.length - 6);
+        writer.commit();
+
+        assertArrayEquals(contents, read(mTarget));
+        assertFalse(new File(mDirectory, "target.tmp").exists());
+    }
+
+    @Test
+    public void keepsOldContentsOnAbort() throws IOException {
+        AtomicFileWriter writer = new AtomicFileWriter(mTarget);
+        writer.begin().write("new".getBytes("UTF-8"));
+        writer.abort();
+
+        assertArrayEquals("old".getBytes("UTF-8"), read(mTarget));
+        assertFalse(new File(mDirectory, "target.tmp").exists());
+    }
+
+    @Test
+    public void startsOverOnSecondBegin() throws IOException {
+        AtomicFileWriter writer = new AtomicFileWriter(mTarget);
+        writer.begin().write("abandoned".getBytes("UTF-8"));
+        writer.begin().write("new".getBytes("UTF-8"));
+        writer.commit();
+
+        assertArrayEquals("new".getBytes("UTF-8"), read(mTarget));
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void rejectsCommitWithoutBegin() throws IOException {
+        new AtomicFileWriter(mTarget).commit();
+    }
+
+    private static byte[] read(File file) throws IOException {
+        byte[] bytes = new byte[(int) file.length()];
+        FileInputStream in = new FileInputStream(file);
+        try {
+            int read = 0;
+            while(read < bytes.length) {
+                read += in.read(bytes, read, bytes.length - read);
+            }
+        } finally {
+            in.close();
+        }
+        return bytes;
+    }
+}
@@ -0,0 +1,114 @@
+package com.nicholastmosher.easycom.data;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonParser;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.PushbackInputStream;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Checks that the stored data codecs read back what they write, are told
+ * apart by their headers, and reject damaged data without trusting it.
+ */
+public class BinaryCodecTest {
+
+    private static final String DOCUMENT = "{\"devices\":[" +
+            "{\"name\":\"Robot\",\"port\":1111,\"gain\":0.5,\"on\":true,\"note\":null}," +
+            "{\"name\":\"Arm\",\"port\":-2,\"gain\":1e300,\"on\":false,\"note\":\"é\"}]," +
+            "\"big\":123456789012345678901234567890}";
+
+    private final JsonParser mParser = new JsonParser();
+
+    @Test
+    public void roundTripsDocument() throws IOException {
+        JsonElement document = mParser.parse(DOCUMENT);
+        for(DataCodec codec : new DataCodec[] {DataCodec.JSON, DataCodec.BINARY, DataCodec.DEFLATE}) {
+            assertEquals(document, read(write(codec, document)));
+        }
+    }
+
+    @Test
+    public void detectsCodecFromHeader() throws IOException {
+        JsonElement document = mParser.parse(DOCUMENT);
+        for(DataCodec codec : new DataCodec[] {DataCodec.JSON, DataCodec.BINARY, DataCodec.DEFLATE}) {
+            PushbackInputStream in = new PushbackInputStream(new ByteArrayInputStream(write(codec, document)));
+            assertSame(codec, DataCodec.detect(in));
+        }
+    }
+
+    @Test
+    public void writesRepeatedKeysOnce() throws IOException {
+        JsonElement document = mParser.parse(DOCUMENT);
+        byte[] binary = write(DataCodec.BINARY, document);
+        assertTrue(binary.length < write(DataCodec.JSON, document).length);
+        assertEquals(1, count(binary, "name".getBytes("UTF-8")));
+    }
+
+    @Test
+    public void rejectsTruncatedData() throws IOException {
+        byte[] binary = write(DataCodec.BINARY, mParser.parse(DOCUMENT));
+        try {
+            read(Arrays.copyOf(binary, binary.length - 3));
+            fail("Truncated data was read");
+        } catch(IOException e) {
+            //Expected.
+        }
+    }
+
+    /**
+     * A damaged length used to be allocated up front, so a few bad bytes
+     * could ask for gigabytes.
+     */
+    @Test
+    public void rejectsDamagedLengthWithoutAllocatingIt() throws IOException {
+        byte[] header = write(DataCodec.BINARY, mParser.parse("\"\""));
+        //A STRING claiming 2^31 - 1 bytes, followed by only a few.
+        byte[] damaged = Arrays.copyOf(header, header.length + 8);
+        int i = header.length - 2;
+        damaged[i++] = 6;
+        damaged[i++] = (byte) 0xFF;
+        damaged[i++] = (byte) 0xFF;
+        damaged[i++] = (byte) 0xFF;
+        damaged[i++] = (byte) 0xFF;
+        damaged[i++] = 0x07;
+        try {
+            read(damaged);
+            fail("Damaged data was read");
+        } catch(IOException e) {
+            //Expected, and without an OutOfMemoryError first.
+        }
+    }
+
+    private static byte[] write(DataCodec codec, JsonElement document) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        codec.write(document, out);
+        return out.toByteArray();
+    }
+
+    private static JsonElement read(byte[] bytes) throws IOException {
+        PushbackInputStream in = new PushbackInputStream(new ByteArrayInputStream(bytes));
+        return DataCodec.detect(in).readBody(in);
+    }
+
+    private static int count(byte[] bytes, byte[] pattern) {
+        int count = 0;
+        outer:
+        for(int i = 0; i + pattern.length <= bytes.length; i++) {
+            for(int j = 0; j < pattern.length; j++) {
+                if(bytes[i + j] != pattern[j]) continue outer;
+            }
+            count++;
+        }
+        return count;
+    }
+}
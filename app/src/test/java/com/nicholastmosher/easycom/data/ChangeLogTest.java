@@ -0,0 +1,167 @@
+package com.nicholastmosher.easycom.data;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonParser;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks that a ChangeLog reads back what was written through any mix of
+ * snapshots and log lines, and survives a log cut short by a crash.
+ */
+public class ChangeLogTest {
+
+    private final JsonParser mParser = new JsonParser();
+    private File mDirectory;
+    private File mSnapshot;
+    private File mLog;
+
+    @Before
+    public void setUp() throws IOException {
+        mDirectory = File.createTempFile("changelog", "");
+        mDirectory.delete();
+        mDirectory.mkdir();
+        mSnapshot = new File(mDirectory, "doc");
+        mLog = new File(mDirectory, "doc.log");
+    }
+
+    @After
+    public void tearDown() {
+        for(File file : mDirectory.listFiles()) {
+            file.delete();
+        }
+        mDirectory.delete();
+    }
+
+    @Test
+    public void readsNothingBeforeFirstWrite() throws IOException {
+        assertNull(new ChangeLog(mSnapshot).read());
+    }
+
+    @Test
+    public void readsBackEachVersion() throws IOException {
+        String[] versions = {
+                "{\"macros\":[{\"name\":\"Go\"},{\"name\":\"Stop\"}],\"theme\":\"dark\"}",
+                "{\"macros\":[{\"name\":\"Forward\"},{\"name\":\"Stop\"}],\"theme\":\"dark\"}",
+                "{\"macros\":[{\"name\":\"Forward\"},{\"name\":\"Stop\"},{\"name\":\"Back\"}]}",
+                "{\"macros\":[{\"name\":\"Forward\"}],\"theme\":null}",
+                "[1,2,3]",
+                "{\"macros\":[]}"
+        };
+        ChangeLog log = new ChangeLog(mSnapshot);
+        for(String version : versions) {
+            JsonElement document = mParser.parse(version);
+            log.write(document);
+            assertEquals(document, new ChangeLog(mSnapshot).read());
+        }
+    }
+
+    @Test
+    public void logsOnlyTheChange() throws IOException {
+        ChangeLog log = new ChangeLog(mSnapshot);
+        log.write(mParser.parse("{\"a\":\"" + repeat('x', 1000) + "\",\"b\":1}"));
+        long before = log.getLogLength();
+        log.write(mParser.parse("{\"a\":\"" + repeat('x', 1000) + "\",\"b\":2}"));
+        assertTrue(log.getLogLength() - before < 100);
+    }
+
+    @Test
+    public void doesNotLogUnchangedDocument() throws IOException {
+        ChangeLog log = new ChangeLog(mSnapshot);
+        log.write(mParser.parse("{\"a\":1}"));
+        long length = log.getLogLength();
+        log.write(mParser.parse("{\"a\":1}"));
+        assertEquals(length, log.getLogLength());
+    }
+
+    @Test
+    public void compactsIntoSnapshot() throws IOException {
+        ChangeLog log = new ChangeLog(mSnapshot, DataCodec.BINARY);
+        JsonElement document = mParser.parse("{\"a\":[1,2],\"b\":\"c\"}");
+        log.write(document);
+        log.compact();
+        assertEquals(0, mLog.length());
+        assertTrue(mSnapshot.length() > 0);
+        assertEquals(document, new ChangeLog(mSnapshot, DataCodec.BINARY).read());
+    }
+
+    @Test
+    public void dropsLineCutShortByCrash() throws IOException {
+        ChangeLog log = new ChangeLog(mSnapshot);
+        log.write(mParser.parse("{\"a\":1}"));
+        log.write(mParser.parse("{\"a\":2}"));
+        long complete = mLog.length();
+
+        //Half of a third line, as if the app died while appending it.
+        FileOutputStream out = new FileOutputStream(mLog, true);
+        try {
+            out.write("[{\"op\":\"set\",\"pa".getBytes("UTF-8"));
+        } finally {
+            out.close();
+        }
+
+        assertEquals(mParser.parse("{\"a\":2}"), new ChangeLog(mSnapshot).read());
+        assertEquals(complete, mLog.length());
+    }
+
+    @Test
+    public void stopsAtDamagedLine() throws IOException {
+        ChangeLog log = new ChangeLog(mSnapshot);
+        log.write(mParser.parse("{\"a\":1}"));
+        long first = mLog.length();
+        log.write(mParser.parse("{\"a\":2}"));
+        log.write(mParser.parse("{\"a\":3}"));
+
+        RandomAccessFile file = new RandomAccessFile(mLog, "rw");
+        try {
+            file.seek(first);
+            file.write('#');
+        } finally {
+            file.close();
+        }
+
+        assertEquals(mParser.parse("{\"a\":1}"), new ChangeLog(mSnapshot).read());
+        assertEquals(first, mLog.length());
+    }
+
+    @Test
+    public void migratesSnapshotToItsCodec() throws IOException {
+        JsonElement document = mParser.parse("{\"a\":[true,false]}");
+        ChangeLog json = new ChangeLog(mSnapshot);
+        json.write(document);
+        json.compact();
+
+        assertEquals(document, new ChangeLog(mSnapshot, DataCodec.BINARY).read());
+        assertEquals(document, new ChangeLog(mSnapshot, DataCodec.BINARY).read());
+        assertEquals(document, new ChangeLog(mSnapshot).read());
+    }
+
+    @Test
+    public void clearErasesDocument() throws IOException {
+        ChangeLog log = new ChangeLog(mSnapshot);
+        log.write(mParser.parse("{\"a\":1}"));
+        log.compact();
+        log.write(mParser.parse("{\"a\":2}"));
+        log.clear();
+        assertNull(new ChangeLog(mSnapshot).read());
+    }
+
+    private static String repeat(char c, int count) {
+        StringBuilder builder = new StringBuilder(count);
+        for(int i = 0; i < count; i++) {
+            builder.append(c);
+        }
+        return builder.toString();
+    }
+}
@@ -0,0 +1,118 @@
+package com.nicholastmosher.easycom.data;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks which offered values a DeltaEncoder sends, and what its
+ * keyframes resend.
+ */
+public class DeltaEncoderTest {
+
+    private final List<Packet> mSent = new ArrayList<>();
+    private final DeltaEncoder.OnSendListener mCollector = new DeltaEncoder.OnSendListener() {
+        @Override
+        public void onSend(Packet packet) {
+            mSent.add(packet);
+        }
+    };
+
+    @Test
+    public void suppressesChangesWithinThreshold() {
+        DeltaEncoder encoder = new DeltaEncoder(mCollector, 0.1, 0);
+        assertTrue(encoder.offer(Packet.asDouble("d", 1.0)));
+        assertFalse(encoder.offer(Packet.asDouble("d", 1.05)));
+        assertTrue(encoder.offer(Packet.asDouble("d", 1.2)));
+        assertEquals(2, encoder.getSentCount());
+        assertEquals(1, encoder.getSuppressedCount());
+    }
+
+    @Test
+    public void comparesWithLastSentValueNotLastOffered() {
+        DeltaEncoder encoder = new DeltaEncoder(mCollector, 0.1, 0);
+        encoder.offer(Packet.asDouble("d", 0.0));
+        //Creeping up in small steps still gets sent once it's drifted past the threshold.
+        assertFalse(encoder.offer(Packet.asDouble("d", 0.06)));
+        assertTrue(encoder.offer(Packet.asDouble("d", 0.12)));
+    }
+
+    @Test
+    public void usesThresholdSetForName() {
+        DeltaEncoder encoder = new DeltaEncoder(mCollector, 0.1, 0);
+        encoder.setThreshold("fine", 0);
+        encoder.offer(Packet.asDouble("fine", 1.0));
+        assertTrue(encoder.offer(Packet.asDouble("fine", 1.01)));
+    }
+
+    @Test
+    public void sendsNaNChanges() {
+        DeltaEncoder encoder = new DeltaEncoder(mCollector, 0.1, 0);
+        encoder.offer(Packet.asDouble("d", 1.0));
+        assertTrue(encoder.offer(Packet.asDouble("d", Double.NaN)));
+        assertFalse(encoder.offer(Packet.asDouble("d", Double.NaN)));
+        assertTrue(encoder.offer(Packet.asDouble("d", 1.0)));
+    }
+
+    @Test
+    public void sendsChangedTypeForSameName() {
+        DeltaEncoder encoder = new DeltaEncoder(mCollector, 0.1, 0);
+        encoder.offer(Packet.asInt("v", 1));
+        assertTrue(encoder.offer(Packet.asDouble("v", 1.0)));
+    }
+
+    @Test
+    public void comparesStringArraysHoldingNull() {
+        DeltaEncoder encoder = new DeltaEncoder(mCollector, 0, 0);
+        encoder.offer(Packet.asStringArray("ss", new String[] {"a", null}));
+        assertFalse(encoder.offer(Packet.asStringArray("ss", new String[] {"a", null})));
+        assertTrue(encoder.offer(Packet.asStringArray("ss", new String[] {"a", "b"})));
+        assertTrue(encoder.offer(Packet.asStringArray("ss", new String[] {null, "b"})));
+    }
+
+    @Test
+    public void keepsItsOwnCopyOfOfferedPackets() {
+        DeltaEncoder encoder = new DeltaEncoder(mCollector, 0, 0);
+        PacketPool pool = new PacketPool(4);
+        IntPacket packet = pool.acquireInt("i", 1);
+        encoder.offer(packet);
+        pool.release(packet);
+        pool.acquireInt("i", 2);
+        assertFalse(encoder.offer(Packet.asInt("i", 1)));
+    }
+
+    /**
+     * Keyframes used to resend the last value sent, so a value that had
+     * drifted within the threshold was never delivered.
+     */
+    @Test
+    public void keyframeSendsLatestOfferedValue() {
+        DeltaEncoder encoder = new DeltaEncoder(mCollector, 0.1, 0);
+        encoder.offer(Packet.asDouble("d", 0.0));
+        encoder.offer(Packet.asDouble("d", 0.04));
+        mSent.clear();
+
+        encoder.sendKeyframe();
+        assertEquals(1, mSent.size());
+        assertEquals(0.04, mSent.get(0).getDouble(), 0);
+        //The keyframe's value is now what later values are compared with.
+        assertFalse(encoder.offer(Packet.asDouble("d", 0.13)));
+    }
+
+    @Test
+    public void sendsEverythingAgainAfterReset() {
+        DeltaEncoder encoder = new DeltaEncoder(mCollector, 0.1, 0);
+        encoder.offer(Packet.asDouble("d", 1.0));
+        encoder.reset();
+        assertTrue(encoder.offer(Packet.asDouble("d", 1.0)));
+        mSent.clear();
+        encoder.reset();
+        encoder.sendKeyframe();
+        assertEquals(0, mSent.size());
+    }
+}
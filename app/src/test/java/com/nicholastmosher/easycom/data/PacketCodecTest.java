@@ -0,0 +1,121 @@
+package com.nicholastmosher.easycom.data;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+
+/**
+ * Checks that every Packet type survives the binary codec, and that
+ * decoding into a PacketPool reuses released Packets.
+ */
+public class PacketCodecTest {
+
+    private final PacketCodec mCodec = new PacketCodec();
+
+    @Test
+    public void roundTripsEveryType() {
+        assertEquals(true, roundTrip(Packet.asBoolean("b", true)).getBoolean());
+        assertArrayEquals(new boolean[] {true, false, true, true, false, false, true, false, true},
+                roundTrip(Packet.asBooleanArray("bs",
+                        new boolean[] {true, false, true, true, false, false, true, false, true})).getBooleanArray());
+        assertEquals(-7, roundTrip(Packet.asInt("i", -7)).getInt());
+        assertArrayEquals(new int[] {1, Integer.MIN_VALUE, Integer.MAX_VALUE},
+                roundTrip(Packet.asIntArray("is", new int[] {1, Integer.MIN_VALUE, Integer.MAX_VALUE})).getIntArray());
+        assertEquals(Long.MIN_VALUE, roundTrip(Packet.asLong("l", Long.MIN_VALUE)).getLong());
+        assertArrayEquals(new long[] {3L, -4L}, roundTrip(Packet.asLongArray("ls", new long[] {3L, -4L})).getLongArray());
+        assertEquals(0.25, roundTrip(Packet.asDouble("d", 0.25)).getDouble(), 0);
+        assertArrayEquals(new double[] {1.5, Double.NaN}, roundTrip(Packet.asDoubleArray("ds",
+                new double[] {1.5, Double.NaN})).getDoubleArray(), 0);
+        assertEquals("héllo", roundTrip(Packet.asString("s", "héllo")).getString());
+        assertArrayEquals(new String[] {"a", "", "c"},
+                roundTrip(Packet.asStringArray("ss", new String[] {"a", "", "c"})).getStringArray());
+    }
+
+    @Test
+    public void keepsNameAndType() {
+        Packet decoded = roundTrip(Packet.asInt("motor/left", 3));
+        assertEquals("motor/left", decoded.getName());
+        assertEquals(Packet.Type.INT, decoded.getType());
+    }
+
+    @Test
+    public void decodesConsecutivePacketsFromOneBuffer() {
+        ByteBuffer buffer = ByteBuffer.allocate(64);
+        mCodec.encode(Packet.asInt("a", 1), buffer);
+        mCodec.encode(Packet.asString("b", "two"), buffer);
+        buffer.flip();
+
+        assertEquals(1, mCodec.decode(buffer).getInt());
+        assertEquals("two", mCodec.decode(buffer).getString());
+        assertEquals(0, buffer.remaining());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsTruncatedPacket() {
+        byte[] bytes = mCodec.toBytes(Packet.asLong("l", 1));
+        mCodec.decode(Arrays.copyOf(bytes, bytes.length - 1));
+    }
+
+    @Test
+    public void rejectsLongNameWithoutWriting() {
+        char[] name = new char[PacketCodec.MAX_NAME_LENGTH + 1];
+        Arrays.fill(name, 'n');
+        ByteBuffer buffer = ByteBuffer.allocate(1024);
+        try {
+            mCodec.encode(Packet.asInt(new String(name), 1), buffer);
+            fail("A name longer than MAX_NAME_LENGTH was encoded");
+        } catch(IllegalArgumentException e) {
+            assertEquals(0, buffer.position());
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsStringArrayHoldingNull() {
+        mCodec.toBytes(Packet.asStringArray("ss", new String[] {"a", null}));
+    }
+
+    @Test
+    public void decodesIntoReleasedPackets() {
+        PacketPool pool = new PacketPool(4);
+        PacketCodec codec = new PacketCodec(pool);
+        byte[] bytes = mCodec.toBytes(Packet.asDouble("d", 1));
+
+        Packet first = codec.decode(bytes);
+        assertEquals(1, pool.getMisses());
+        pool.release(first);
+        Packet second = codec.decode(bytes);
+        assertSame(first, second);
+        assertEquals(1, pool.getHits());
+        assertEquals(1, second.getDouble(), 0);
+    }
+
+    @Test
+    public void discardsPacketsPastCapacity() {
+        PacketPool pool = new PacketPool(1);
+        IntPacket first = pool.acquireInt("a", 1);
+        IntPacket second = pool.acquireInt("b", 2);
+        assertNotSame(first, second);
+        pool.release(first);
+        pool.release(second);
+        assertEquals(1, pool.getDiscards());
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void rejectsDoubleRelease() {
+        PacketPool pool = new PacketPool(4);
+        IntPacket packet = pool.acquireInt("a", 1);
+        pool.release(packet);
+        pool.release(packet);
+    }
+
+    private Packet roundTrip(Packet packet) {
+        return mCodec.decode(mCodec.toBytes(packet));
+    }
+}
@@ -0,0 +1,196 @@
+package com.nicholastmosher.easycom.data;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+/**
+ * Checks how a PacketFrameBuilder divides Packets into frames, and that a
+ * PacketFrameReader gets the same Packets back however the frames arrive.
+ */
+public class PacketFrameTest {
+
+    /** The encoded size of an IntPacket named "n": tag, name length, name, value. */
+    private static final int INT_SIZE = 1 + 1 + 1 + 4;
+
+    private final BlockingQueue<byte[]> mFrames = new LinkedBlockingQueue<>();
+    private final PacketFrameBuilder.OnFrameReadyListener mCollector = new PacketFrameBuilder.OnFrameReadyListener() {
+        @Override
+        public void onFrameReady(byte[] frame) {
+            mFrames.add(frame);
+        }
+    };
+
+    @Test
+    public void flushesFrameAtBudget() {
+        PacketFrameBuilder builder = new PacketFrameBuilder(mCollector,
+                PacketFrameBuilder.HEADER_LENGTH + 3 * INT_SIZE, 0);
+        builder.add(Packet.asInt("n", 1));
+        builder.add(Packet.asInt("n", 2));
+        assertNull(mFrames.peek());
+        builder.add(Packet.asInt("n", 3));
+
+        byte[] frame = mFrames.poll();
+        assertNotNull(frame);
+        assertEquals(PacketFrameBuilder.HEADER_LENGTH + 3 * INT_SIZE, frame.length);
+        assertEquals(3 * INT_SIZE, ByteBuffer.wrap(frame).getInt());
+        assertEquals(1, builder.getFrameCount());
+    }
+
+    @Test
+    public void sendsPacketThatDoesNotFitInNextFrame() {
+        PacketFrameBuilder builder = new PacketFrameBuilder(mCollector,
+                PacketFrameBuilder.HEADER_LENGTH + 2 * INT_SIZE + 1, 0);
+        builder.add(Packet.asInt("n", 1));
+        builder.add(Packet.asInt("n", 2));
+        builder.add(Packet.asInt("n", 3));
+        assertEquals(2, readAll(mFrames.poll()).size());
+
+        builder.flush();
+        assertEquals(3, readAll(mFrames.poll()).get(0).getInt());
+    }
+
+    @Test
+    public void sendsOversizedPacketInFrameOfItsOwn() {
+        PacketFrameBuilder builder = new PacketFrameBuilder(mCollector, 16, 0);
+        builder.add(Packet.asString("s", "longer than the whole budget"));
+        builder.flush();
+
+        List<Packet> packets = readAll(mFrames.poll());
+        assertEquals(1, packets.size());
+        assertEquals("longer than the whole budget", packets.get(0).getString());
+        assertNull(mFrames.poll());
+    }
+
+    @Test
+    public void leavesFrameAsItWasWhenPacketCannotBeEncoded() {
+        PacketFrameBuilder builder = new PacketFrameBuilder(mCollector, 256, 0);
+        builder.add(Packet.asInt("n", 1));
+        try {
+            builder.add(Packet.asStringArray("ss", new String[] {"a", null}));
+        } catch(IllegalArgumentException e) {
+            //Expected.
+        }
+        builder.flush();
+        assertEquals(1, readAll(mFrames.poll()).size());
+    }
+
+    @Test
+    public void flushesUnfilledFrameAfterWindow() throws Exception {
+        PacketFrameBuilder builder = new PacketFrameBuilder(mCollector, 256, 50);
+        builder.add(Packet.asInt("n", 1));
+        assertNotNull(mFrames.poll(2, TimeUnit.SECONDS));
+    }
+
+    /**
+     * A frame sent by its budget used to leave its window timer running,
+     * which then flushed the next frame before that frame's own window.
+     */
+    @Test
+    public void windowOfSentFrameDoesNotFlushNextFrame() throws Exception {
+        PacketFrameBuilder builder = new PacketFrameBuilder(mCollector,
+                PacketFrameBuilder.HEADER_LENGTH + 3 * INT_SIZE, 400);
+        long start = System.nanoTime();
+        builder.add(Packet.asInt("n", 1));
+        builder.add(Packet.asInt("n", 2));
+        builder.add(Packet.asInt("n", 3));
+        assertNotNull(mFrames.poll());
+
+        Thread.sleep(200);
+        builder.add(Packet.asInt("n", 4));
+        //The first frame's window would have ended 400ms after start; the second's ends at 600ms.
+        Thread.sleep(Math.max(0, 500 - TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start)));
+        assertNull(mFrames.poll());
+        assertNotNull(mFrames.poll(2, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void readsFramesSplitAcrossReads() {
+        PacketFrameBuilder builder = new PacketFrameBuilder(mCollector, 256, 0);
+        builder.add(Packet.asInt("n", 1));
+        builder.add(Packet.asString("s", "two"));
+        builder.flush();
+        builder.add(Packet.asLong("l", 3));
+        builder.flush();
+        ByteBuffer stream = ByteBuffer.allocate(256);
+        stream.put(mFrames.poll());
+        stream.put(mFrames.poll());
+        byte[] bytes = new byte[stream.position()];
+        stream.flip();
+        stream.get(bytes);
+
+        final List<Packet> received = new ArrayList<>();
+        PacketFrameReader reader = new PacketFrameReader(new PacketFrameReader.OnPacketReceivedListener() {
+            @Override
+            public void onPacketReceived(Packet packet) {
+                received.add(packet);
+            }
+        });
+        //One byte at a time, so every boundary falls inside a read.
+        for(int i = 0; i < bytes.length; i++) {
+            reader.feed(bytes, i, 1);
+        }
+
+        assertEquals(3, received.size());
+        assertEquals(1, received.get(0).getInt());
+        assertEquals("two", received.get(1).getString());
+        assertEquals(3, received.get(2).getLong());
+        assertEquals(0, reader.getCorruptFrames());
+    }
+
+    @Test
+    public void skipsDamagedFrameAndReadsNext() {
+        final List<Packet> received = new ArrayList<>();
+        PacketFrameReader reader = new PacketFrameReader(new PacketFrameReader.OnPacketReceivedListener() {
+            @Override
+            public void onPacketReceived(Packet packet) {
+                received.add(packet);
+            }
+        });
+        //A frame whose only Packet has an unknown type tag, then a good frame.
+        byte[] damaged = {0, 0, 0, 2, (byte) 0x7F, 0};
+        reader.feed(damaged, 0, damaged.length);
+        PacketFrameBuilder builder = new PacketFrameBuilder(mCollector, 256, 0);
+        builder.add(Packet.asInt("n", 5));
+        builder.flush();
+        byte[] good = mFrames.poll();
+        reader.feed(good, 0, good.length);
+
+        assertEquals(1, reader.getCorruptFrames());
+        assertEquals(1, received.size());
+        assertEquals(5, received.get(0).getInt());
+    }
+
+    @Test
+    public void discardsStreamWithImpossibleLength() {
+        PacketFrameReader reader = new PacketFrameReader(new PacketFrameReader.OnPacketReceivedListener() {
+            @Override
+            public void onPacketReceived(Packet packet) {
+            }
+        }, null, 64);
+        byte[] header = {0, 0, 1, 0};
+        reader.feed(header, 0, header.length);
+        assertEquals(1, reader.getCorruptFrames());
+    }
+
+    private static List<Packet> readAll(byte[] frame) {
+        final List<Packet> packets = new ArrayList<>();
+        PacketFrameReader reader = new PacketFrameReader(new PacketFrameReader.OnPacketReceivedListener() {
+            @Override
+            public void onPacketReceived(Packet packet) {
+                packets.add(packet);
+            }
+        });
+        reader.feed(frame, 0, frame.length);
+        return packets;
+    }
+}
@@ -0,0 +1,126 @@
+package com.nicholastmosher.easycom.data;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks that a WriteScheduler coalesces bursts into one write of the
+ * latest state, and tells every caller what was written.
+ */
+public class WriteSchedulerTest {
+
+    private final List<String> mWrites = Collections.synchronizedList(new ArrayList<String>());
+    private final Executor mExecutor = IoExecutor.newSerialExecutor();
+
+    private final WriteScheduler.Writer<String> mWriter = new WriteScheduler.Writer<String>() {
+        @Override
+        public void write(String data) throws IOException {
+            if(data.equals("fail")) {
+                throw new IOException("Could not write " + data);
+            }
+            mWrites.add(data);
+        }
+    };
+
+    @Test
+    public void writesBurstOnce() throws Exception {
+        WriteScheduler<String> scheduler = new WriteScheduler<>(mWriter, 50, mExecutor);
+        final List<String> written = Collections.synchronizedList(new ArrayList<String>());
+        final CountDownLatch done = new CountDownLatch(3);
+        WriteScheduler.OnWrittenListener<String> listener = new WriteScheduler.OnWrittenListener<String>() {
+            @Override
+            public void onWritten(String data) {
+                written.add(data);
+                done.countDown();
+            }
+        };
+        scheduler.submit("one", listener);
+        scheduler.submit("two", listener);
+        scheduler.submit("three", listener);
+
+        assertTrue(done.await(2, TimeUnit.SECONDS));
+        assertEquals(Collections.singletonList("three"), mWrites);
+        assertEquals(3, written.size());
+        for(String data : written) {
+            assertEquals("three", data);
+        }
+    }
+
+    @Test
+    public void flushWritesWithoutWaitingForDebounce() throws Exception {
+        WriteScheduler<String> scheduler = new WriteScheduler<>(mWriter, 60000, mExecutor);
+        scheduler.submit("now", null);
+        scheduler.flush();
+        assertEquals(Collections.singletonList("now"), mWrites);
+    }
+
+    @Test
+    public void tellsListenersOfFailure() throws Exception {
+        WriteScheduler<String> scheduler = new WriteScheduler<>(mWriter, 60000, mExecutor);
+        final String[] written = {"unset"};
+        scheduler.submit("fail", new WriteScheduler.OnWrittenListener<String>() {
+            @Override
+            public void onWritten(String data) {
+                written[0] = data;
+            }
+        });
+        scheduler.flush();
+        assertNull(written[0]);
+    }
+
+    @Test
+    public void cancelDropsWaitingWrite() throws Exception {
+        WriteScheduler<String> scheduler = new WriteScheduler<>(mWriter, 60000, mExecutor);
+        final String[] written = {"unset"};
+        scheduler.submit("dropped", new WriteScheduler.OnWrittenListener<String>() {
+            @Override
+            public void onWritten(String data) {
+                written[0] = data;
+            }
+        });
+        scheduler.cancel();
+        scheduler.flush();
+        assertNull(written[0]);
+        assertTrue(mWrites.isEmpty());
+    }
+
+    @Test
+    public void neverWritesOlderStateAfterNewer() throws Exception {
+        final CountDownLatch firstStarted = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        WriteScheduler<String> scheduler = new WriteScheduler<>(new WriteScheduler.Writer<String>() {
+            @Override
+            public void write(String data) throws IOException {
+                if(data.equals("first")) {
+                    firstStarted.countDown();
+                    try {
+                        release.await();
+                    } catch(InterruptedException e) {
+                        throw new IOException(e);
+                    }
+                }
+                mWrites.add(data);
+            }
+        }, 0, mExecutor);
+
+        scheduler.submit("first", null);
+        assertTrue(firstStarted.await(2, TimeUnit.SECONDS));
+        scheduler.submit("second", null);
+        scheduler.submit("third", null);
+        release.countDown();
+        scheduler.flush();
+        assertEquals(2, mWrites.size());
+        assertEquals("third", mWrites.get(mWrites.size() - 1));
+    }
+}
@@ -0,0 +1,134 @@
+package com.nicholastmosher.easycom.terminal;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks that a SessionCapture reads back what it recorded, across
+ * segments and across reopening the capture.
+ */
+public class SessionCaptureTest {
+
+    /** Room for the segment header and a few small records. */
+    private static final int SEGMENT_SIZE = 16 + 4 * (13 + 8);
+
+    private File mDirectory;
+
+    @Before
+    public void setUp() throws IOException {
+        mDirectory = File.createTempFile("capture", "");
+        mDirectory.delete();
+    }
+
+    @After
+    public void tearDown() {
+        File[] files = mDirectory.listFiles();
+        if(files != null) {
+            for(File file : files) {
+                file.delete();
+            }
+        }
+        mDirectory.delete();
+    }
+
+    @Test
+    public void readsBackRecordsInOrder() throws IOException {
+        SessionCapture capture = new SessionCapture(mDirectory, SEGMENT_SIZE);
+        for(int i = 0; i < 10; i++) {
+            capture.record(i % 2 == 0 ? SessionCapture.Direction.SENT : SessionCapture.Direction.RECEIVED,
+                    1000 + i, payload(i), 0, payload(i).length);
+        }
+        capture.close();
+
+        SessionCapture.Cursor cursor = SessionCapture.openCursor(mDirectory);
+        for(int i = 0; i < 10; i++) {
+            assertTrue(cursor.next());
+            assertEquals(1000 + i, cursor.getTimestamp());
+            assertEquals(i % 2 == 0 ? SessionCapture.Direction.SENT : SessionCapture.Direction.RECEIVED,
+                    cursor.getDirection());
+            byte[] payload = new byte[cursor.getLength()];
+            cursor.getPayload(payload, 0);
+            assertArrayEquals(payload(i), payload);
+        }
+        assertFalse(cursor.next());
+        assertTrue(mDirectory.listFiles().length > 1);
+    }
+
+    @Test
+    public void splitsChunkLargerThanSegment() throws IOException {
+        SessionCapture capture = new SessionCapture(mDirectory, SEGMENT_SIZE);
+        byte[] large = new byte[SEGMENT_SIZE * 2];
+        for(int i = 0; i < large.length; i++) {
+            large[i] = (byte) i;
+        }
+        capture.record(SessionCapture.Direction.RECEIVED, 5, large, 0, large.length);
+        capture.close();
+
+        SessionCapture.Cursor cursor = SessionCapture.openCursor(mDirectory);
+        byte[] joined = new byte[large.length];
+        int length = 0;
+        while(cursor.next()) {
+            cursor.getPayload(joined, length);
+            length += cursor.getLength();
+        }
+        assertEquals(large.length, length);
+        assertArrayEquals(large, joined);
+    }
+
+    @Test
+    public void seeksToFirstRecordAtOrAfterTime() throws IOException {
+        SessionCapture capture = new SessionCapture(mDirectory, SEGMENT_SIZE);
+        for(int i = 0; i < 10; i++) {
+            capture.record(SessionCapture.Direction.SENT, i * 10, payload(i), 0, payload(i).length);
+        }
+        capture.close();
+
+        SessionCapture.Cursor cursor = SessionCapture.openCursor(mDirectory);
+        assertTrue(cursor.seek(45));
+        assertEquals(50, cursor.getTimestamp());
+        assertTrue(cursor.seek(0));
+        assertEquals(0, cursor.getTimestamp());
+        assertFalse(cursor.seek(1000));
+    }
+
+    @Test
+    public void continuesAfterLastRecordWhenReopened() throws IOException {
+        SessionCapture capture = new SessionCapture(mDirectory, SEGMENT_SIZE);
+        capture.record(SessionCapture.Direction.SENT, 1, payload(1), 0, payload(1).length);
+        capture.close();
+        capture = new SessionCapture(mDirectory, SEGMENT_SIZE);
+        capture.record(SessionCapture.Direction.SENT, 2, payload(2), 0, payload(2).length);
+        capture.close();
+
+        SessionCapture.Cursor cursor = SessionCapture.openCursor(mDirectory);
+        assertTrue(cursor.next());
+        assertEquals(1, cursor.getTimestamp());
+        assertTrue(cursor.next());
+        assertEquals(2, cursor.getTimestamp());
+        assertFalse(cursor.next());
+    }
+
+    @Test(expected = IOException.class)
+    public void refusesRecordsAfterClose() throws IOException {
+        SessionCapture capture = new SessionCapture(mDirectory, SEGMENT_SIZE);
+        capture.close();
+        capture.record(SessionCapture.Direction.SENT, payload(0), 0, 1);
+    }
+
+    private static byte[] payload(int i) {
+        byte[] payload = new byte[1 + i % 8];
+        for(int j = 0; j < payload.length; j++) {
+            payload[j] = (byte) (i * 8 + j);
+        }
+        return payload;
+    }
+}
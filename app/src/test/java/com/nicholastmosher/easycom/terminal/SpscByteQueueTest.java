@@ -0,0 +1,78 @@
+package com.nicholastmosher.easycom.terminal;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks that an SpscByteQueue hands bytes over in order across the end of
+ * its ring, and drops and counts what doesn't fit.
+ */
+public class SpscByteQueueTest {
+
+    @Test
+    public void keepsOrderAcrossEndOfRing() {
+        SpscByteQueue queue = new SpscByteQueue(8);
+        byte[] out = new byte[8];
+        queue.offer(new byte[] {1, 2, 3, 4, 5, 6}, 0, 6);
+        assertEquals(6, queue.poll(out, 0, 6));
+
+        assertEquals(5, queue.offer(new byte[] {7, 8, 9, 10, 11}, 0, 5));
+        assertEquals(5, queue.poll(out, 0, 8));
+        assertArrayEquals(new byte[] {7, 8, 9, 10, 11}, Arrays.copyOf(out, 5));
+        assertTrue(queue.isEmpty());
+    }
+
+    @Test
+    public void dropsAndCountsWhatDoesNotFit() {
+        SpscByteQueue queue = new SpscByteQueue(6);
+        //Rounded up to 8.
+        assertEquals(8, queue.offer(new byte[10], 0, 10));
+        assertEquals(2, queue.getDropped());
+        assertEquals(0, queue.offer(new byte[1], 0, 1));
+        assertEquals(3, queue.getDropped());
+    }
+
+    @Test
+    public void handsOverEveryByteBetweenThreads() throws Exception {
+        final SpscByteQueue queue = new SpscByteQueue(1024);
+        final int total = 1 << 16;
+        Thread producer = new Thread() {
+            @Override
+            public void run() {
+                byte[] chunk = new byte[13];
+                int next = 0;
+                while(next < total) {
+                    int count = Math.min(chunk.length, total - next);
+                    for(int i = 0; i < count; i++) {
+                        chunk[i] = (byte) (next + i);
+                    }
+                    //Whatever is dropped gets offered again, so the
+                    //consumer still sees every byte in order.
+                    int offered = queue.offer(chunk, 0, count);
+                    next += offered;
+                    if(offered == 0) {
+                        Thread.yield();
+                    }
+                }
+            }
+        };
+        producer.start();
+
+        byte[] out = new byte[29];
+        int received = 0;
+        while(received < total) {
+            int count = queue.poll(out, 0, out.length);
+            for(int i = 0; i < count; i++) {
+                assertEquals((byte) (received + i), out[i]);
+            }
+            received += count;
+        }
+        producer.join();
+        assertTrue(queue.isEmpty());
+    }
+}
@@ -0,0 +1,56 @@
+package com.nicholastmosher.easycom.terminal;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Checks that a StreamDecoder puts characters split across chunks back
+ * together, and that the ScrollbackBuffer it writes to splits lines.
+ */
+public class StreamDecoderTest {
+
+    private final ScrollbackBuffer mScrollback = new ScrollbackBuffer(4, 8);
+
+    @Test
+    public void joinsCharacterSplitAcrossChunks() throws Exception {
+        StreamDecoder decoder = new StreamDecoder();
+        byte[] bytes = "a€b".getBytes("UTF-8");
+        for(int i = 0; i < bytes.length; i++) {
+            decoder.decode(bytes, i, 1, mScrollback);
+        }
+        assertEquals("a€b", mScrollback.getLine(0).toString());
+    }
+
+    @Test
+    public void decodesChunksLargerThanItsBuffer() throws Exception {
+        StreamDecoder decoder = new StreamDecoder(StreamDecoder.UTF_8, 4);
+        byte[] bytes = "één\ntwee".getBytes("UTF-8");
+        decoder.decode(bytes, 0, bytes.length, mScrollback);
+        assertEquals("één", mScrollback.getLine(0).toString());
+        assertEquals("twee", mScrollback.getLine(1).toString());
+    }
+
+    @Test
+    public void resetDropsPartialCharacter() throws Exception {
+        StreamDecoder decoder = new StreamDecoder();
+        byte[] euro = "€".getBytes("UTF-8");
+        decoder.decode(euro, 0, 2, mScrollback);
+        decoder.reset();
+        decoder.decode(new byte[] {'x'}, 0, 1, mScrollback);
+        assertEquals("x", mScrollback.getLine(0).toString());
+    }
+
+    @Test
+    public void scrollbackEvictsOldestAndWrapsLongLines() {
+        mScrollback.append("1\n2\n3\n4\n5");
+        assertEquals(4, mScrollback.getLineCount());
+        assertEquals(1, mScrollback.getFirstLineNumber());
+        assertEquals("2", mScrollback.getLine(0).toString());
+
+        mScrollback.clear();
+        mScrollback.append("0123456789\r");
+        assertEquals("01234567", mScrollback.getLine(0).toString());
+        assertEquals("89", mScrollback.getLine(1).toString());
+    }
+}
@@ -0,0 +1,136 @@
+package com.nicholastmosher.easycom.data;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonElement;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.PushbackInputStream;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the stored data formats on a macro library of increasing size:
+ * the time to encode and decode it in memory, and the time to load it from
+ * disk through a ChangeLog, as a DataAdapter does at startup.  The encoded
+ * size of each format is printed during setup.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class DataCodecBenchmark {
+
+    static class Macro {
+        String name;
+        String command;
+        int repeat;
+        double delay;
+        boolean enabled;
+
+        Macro(String name, String command, int repeat, double delay, boolean enabled) {
+            this.name = name;
+            this.command = command;
+            this.repeat = repeat;
+            this.delay = delay;
+            this.enabled = enabled;
+        }
+    }
+
+    static class MacroLibrary {
+        Map<String, Macro> macros = new LinkedHashMap<>();
+    }
+
+    @Param({"json", "binary", "deflate"})
+    public String mFormat;
+
+    @Param({"100", "1000", "10000"})
+    public int mMacroCount;
+
+    private final ByteArrayOutputStream mOutput = new ByteArrayOutputStream();
+    private DataCodec mCodec;
+    private JsonElement mDocument;
+    private byte[] mEncoded;
+    private File mDirectory;
+    private File mSnapshot;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        if("binary".equals(mFormat)) {
+            mCodec = DataCodec.BINARY;
+        } else if("deflate".equals(mFormat)) {
+            mCodec = DataCodec.DEFLATE;
+        } else {
+            mCodec = DataCodec.JSON;
+        }
+
+        MacroLibrary library = new MacroLibrary();
+        for(int i = 0; i < mMacroCount; i++) {
+            library.macros.put("macro" + i, new Macro("Macro " + i, "drive " + i, i % 5, i * 0.25, i % 2 == 0));
+        }
+        mDocument = new Gson().toJsonTree(library);
+
+        mCodec.write(mDocument, mOutput);
+        mEncoded = mOutput.toByteArray();
+        System.out.println(mFormat + ", " + mMacroCount + " macros: " + mEncoded.length + " bytes");
+
+        mDirectory = File.createTempFile("codec", "bench");
+        mDirectory.delete();
+        mDirectory.mkdirs();
+        mSnapshot = new File(mDirectory, "library");
+        ChangeLog log = new ChangeLog(mSnapshot, mCodec);
+        log.write(mDocument);
+        log.compact();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        File[] files = mDirectory.listFiles();
+        if(files != null) {
+            for(File file : files) file.delete();
+        }
+        mDirectory.delete();
+    }
+
+    /**
+     * Encodes the library into a reused in-memory buffer.
+     */
+    @Benchmark
+    public int encode() throws IOException {
+        mOutput.reset();
+        mCodec.write(mDocument, mOutput);
+        return mOutput.size();
+    }
+
+    /**
+     * Decodes the library from memory, detecting its format as a read from
+     * disk would.
+     */
+    @Benchmark
+    public JsonElement decode() throws IOException {
+        PushbackInputStream in = new PushbackInputStream(new ByteArrayInputStream(mEncoded));
+        return DataCodec.detect(in).readBody(in);
+    }
+
+    /**
+     * Loads the library from its snapshot file with a new ChangeLog, as a
+     * DataAdapter's first read does.
+     */
+    @Benchmark
+    public JsonElement load() throws IOException {
+        return new ChangeLog(mSnapshot, mCodec).read();
+    }
+}
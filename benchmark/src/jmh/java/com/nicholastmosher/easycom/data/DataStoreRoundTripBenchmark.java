@@ -0,0 +1,99 @@
+package com.nicholastmosher.easycom.data;
+
+import com.google.gson.Gson;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures a DataAdapter's persistence without Android: writing a list of
+ * saved connections through the DataStore behind it and reading it back
+ * from disk, across dataset sizes.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class DataStoreRoundTripBenchmark {
+
+    static class SavedConnection {
+        String name;
+        String address;
+        int port;
+        boolean autoConnect;
+
+        SavedConnection(String name, String address, int port, boolean autoConnect) {
+            this.name = name;
+            this.address = address;
+            this.port = port;
+            this.autoConnect = autoConnect;
+        }
+    }
+
+    static class ConnectionList {
+        List<SavedConnection> connections = new ArrayList<>();
+    }
+
+    @Param({"10", "100", "1000", "10000"})
+    public int mConnectionCount;
+
+    private File mDirectory;
+    private ConnectionList mList;
+    private DataStore<ConnectionList> mStore;
+    private int mUpdate;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        mDirectory = File.createTempFile("roundtrip", "bench");
+        mDirectory.delete();
+        mDirectory.mkdirs();
+
+        mList = new ConnectionList();
+        for(int i = 0; i < mConnectionCount; i++) {
+            mList.connections.add(new SavedConnection("Robot " + i, "10.0." + (i / 256) + "." + (i % 256), 1111, false));
+        }
+        mStore = new DataStore<>(new File(mDirectory, "connections"), ConnectionList.class, new Gson());
+        mStore.write(mList);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        File[] files = mDirectory.listFiles();
+        if(files != null) {
+            for(File file : files) file.delete();
+        }
+        mDirectory.delete();
+    }
+
+    /**
+     * Saves the list with one connection changed, then reads it back.
+     */
+    @Benchmark
+    public ConnectionList writeThenRead() throws IOException {
+        SavedConnection connection = mList.connections.get(mUpdate++ % mConnectionCount);
+        connection.autoConnect = !connection.autoConnect;
+        mStore.write(mList);
+        return mStore.read();
+    }
+
+    /**
+     * Reads the list from disk, as the first read after startup does.
+     */
+    @Benchmark
+    public ConnectionList read() throws IOException {
+        return mStore.read();
+    }
+}
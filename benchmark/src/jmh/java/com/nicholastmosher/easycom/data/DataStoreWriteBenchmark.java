@@ -0,0 +1,127 @@
+package com.nicholastmosher.easycom.data;
+
+import com.google.gson.Gson;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the latency of saving repeated small updates to a stored
+ * collection, comparing the durable write paths against the old
+ * truncate-and-rewrite path, which forced nothing to storage.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class DataStoreWriteBenchmark {
+
+    static class Macro {
+        String name;
+        String command;
+        int repeat;
+
+        Macro(String name, String command, int repeat) {
+            this.name = name;
+            this.command = command;
+            this.repeat = repeat;
+        }
+    }
+
+    static class MacroLibrary {
+        Map<String, Macro> macros = new LinkedHashMap<>();
+    }
+
+    @Param({"10", "100", "1000"})
+    public int mMacroCount;
+
+    private final Gson mGson = new Gson();
+    private File mDirectory;
+    private MacroLibrary mLibrary;
+    private DataStore<MacroLibrary> mStore;
+    private ChangeLog mSnapshotLog;
+    private File mLegacyFile;
+    private int mUpdate;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        mDirectory = File.createTempFile("datastore", "bench");
+        mDirectory.delete();
+        mDirectory.mkdirs();
+
+        mLibrary = new MacroLibrary();
+        for(int i = 0; i < mMacroCount; i++) {
+            mLibrary.macros.put("macro" + i, new Macro("Macro " + i, "drive " + i, 1));
+        }
+
+        mStore = new DataStore<>(new File(mDirectory, "store"), MacroLibrary.class, mGson);
+        mStore.write(mLibrary);
+        mSnapshotLog = new ChangeLog(new File(mDirectory, "snapshot"));
+        mSnapshotLog.write(mGson.toJsonTree(mLibrary));
+        mLegacyFile = new File(mDirectory, "legacy");
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        File[] files = mDirectory.listFiles();
+        if(files != null) {
+            for(File file : files) file.delete();
+        }
+        mDirectory.delete();
+    }
+
+    /**
+     * Changes one macro, as an edit in the UI would.
+     */
+    private void update() {
+        Macro macro = mLibrary.macros.get("macro" + (mUpdate++ % mMacroCount));
+        macro.repeat++;
+    }
+
+    /**
+     * A DataStore write: the change is appended to the log and forced.
+     */
+    @Benchmark
+    public void appendChange() throws IOException {
+        update();
+        mStore.write(mLibrary);
+    }
+
+    /**
+     * A compaction: the whole document is written to a temporary file,
+     * forced, and renamed over the snapshot.
+     */
+    @Benchmark
+    public void replaceSnapshot() throws IOException {
+        mSnapshotLog.compact();
+    }
+
+    /**
+     * The old WriteTask: truncate the file and write the whole document,
+     * without forcing it to storage.
+     */
+    @Benchmark
+    public void legacyRewrite() throws IOException {
+        update();
+        FileOutputStream out = new FileOutputStream(mLegacyFile);
+        try {
+            out.write(mGson.toJson(mLibrary).getBytes());
+        } finally {
+            out.close();
+        }
+    }
+}
@@ -0,0 +1,61 @@
+package com.nicholastmosher.easycom.data;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the binary wire form of each Type of Packet, the same Packets
+ * as {@link PacketJsonBenchmark}, so the two can be compared directly.
+ * Packets are encoded into a reused buffer and decoded into a pool, as
+ * the sending and receiving paths do; with the GC profiler, both should
+ * allocate nothing per Packet.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class PacketCodecBenchmark {
+
+    @Param({"BOOLEAN", "BOOLEAN_ARRAY", "INT", "INT_ARRAY", "LONG", "LONG_ARRAY",
+            "DOUBLE", "DOUBLE_ARRAY", "STRING", "STRING_ARRAY"})
+    public Packet.Type mType;
+
+    private Packet mPacket;
+    private PacketPool mPool;
+    private PacketCodec mCodec;
+    private ByteBuffer mOut;
+    private ByteBuffer mEncoded;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        mPacket = PacketJsonBenchmark.create(mType, "axis");
+        mPool = new PacketPool(PacketPool.DEFAULT_CAPACITY);
+        mCodec = new PacketCodec(mPool);
+        mOut = ByteBuffer.allocate(4096);
+        mEncoded = ByteBuffer.wrap(mCodec.toBytes(mPacket));
+    }
+
+    @Benchmark
+    public ByteBuffer encode() {
+        mOut.clear();
+        mCodec.encode(mPacket, mOut);
+        return mOut;
+    }
+
+    @Benchmark
+    public Packet decode() {
+        mEncoded.rewind();
+        Packet packet = mCodec.decode(mEncoded);
+        mPool.release(packet);
+        return packet;
+    }
+}
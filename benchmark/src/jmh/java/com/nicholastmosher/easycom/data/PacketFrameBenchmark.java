@@ -0,0 +1,76 @@
+package com.nicholastmosher.easycom.data;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures framing a burst of joystick axes into one frame with a
+ * PacketFrameBuilder, and reading the frame back into pooled Packets with
+ * a PacketFrameReader.  The window is disabled, so each frame is flushed
+ * by hand and no timer thread is involved.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class PacketFrameBenchmark {
+
+    @Param({"1", "8", "32"})
+    public int mPacketsPerFrame;
+
+    private Packet[] mPackets;
+    private PacketFrameBuilder mBuilder;
+    private byte[] mBuilt;
+
+    private PacketPool mPool;
+    private PacketFrameReader mReader;
+    private byte[] mFrame;
+    private long mReceived;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        mPackets = new Packet[mPacketsPerFrame];
+        for(int i = 0; i < mPackets.length; i++) {
+            mPackets[i] = Packet.asDouble("axis" + i, i / (double) mPackets.length - 0.5);
+        }
+        mBuilder = new PacketFrameBuilder(new PacketFrameBuilder.OnFrameReadyListener() {
+            @Override
+            public void onFrameReady(byte[] frame) {
+                mBuilt = frame;
+            }
+        }, 64 * 1024, 0);
+        mFrame = build();
+
+        mPool = new PacketPool(PacketPool.DEFAULT_CAPACITY);
+        mReader = new PacketFrameReader(new PacketFrameReader.OnPacketReceivedListener() {
+            @Override
+            public void onPacketReceived(Packet packet) {
+                mReceived++;
+                mPool.release(packet);
+            }
+        }, mPool, PacketFrameReader.DEFAULT_MAX_FRAME_LENGTH);
+    }
+
+    @Benchmark
+    public byte[] build() {
+        for(Packet packet : mPackets) {
+            mBuilder.add(packet);
+        }
+        mBuilder.flush();
+        return mBuilt;
+    }
+
+    @Benchmark
+    public long read() {
+        mReader.feed(mFrame, 0, mFrame.length);
+        return mReceived;
+    }
+}
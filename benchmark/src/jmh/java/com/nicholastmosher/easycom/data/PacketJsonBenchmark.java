@@ -0,0 +1,90 @@
+package com.nicholastmosher.easycom.data;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures converting each Type of Packet to and from json.  Run with the
+ * GC profiler, as the benchmark build does by default, to see the bytes
+ * allocated per message next to the time taken.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class PacketJsonBenchmark {
+
+    /** The number of elements in array Packets, about one joystick frame. */
+    private static final int ARRAY_LENGTH = 16;
+
+    @Param({"BOOLEAN", "BOOLEAN_ARRAY", "INT", "INT_ARRAY", "LONG", "LONG_ARRAY",
+            "DOUBLE", "DOUBLE_ARRAY", "STRING", "STRING_ARRAY"})
+    public Packet.Type mType;
+
+    private Packet mPacket;
+    private String mJson;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        mPacket = create(mType, "axis");
+        mJson = mPacket.toJson();
+    }
+
+    @Benchmark
+    public String toJson() {
+        return mPacket.toJson();
+    }
+
+    @Benchmark
+    public Packet fromJson() {
+        return Packet.fromJson(mJson);
+    }
+
+    static Packet create(Packet.Type type, String name) {
+        switch(type) {
+            case BOOLEAN:
+                return Packet.asBoolean(name, true);
+            case BOOLEAN_ARRAY: {
+                boolean[] values = new boolean[ARRAY_LENGTH];
+                for(int i = 0; i < values.length; i++) values[i] = i % 3 == 0;
+                return Packet.asBooleanArray(name, values);
+            }
+            case INT:
+                return Packet.asInt(name, 1023);
+            case INT_ARRAY: {
+                int[] values = new int[ARRAY_LENGTH];
+                for(int i = 0; i < values.length; i++) values[i] = i * 64 - 512;
+                return Packet.asIntArray(name, values);
+            }
+            case LONG:
+                return Packet.asLong(name, System.currentTimeMillis());
+            case LONG_ARRAY: {
+                long[] values = new long[ARRAY_LENGTH];
+                for(int i = 0; i < values.length; i++) values[i] = (long) i << 33;
+                return Packet.asLongArray(name, values);
+            }
+            case DOUBLE:
+                return Packet.asDouble(name, 0.7071);
+            case DOUBLE_ARRAY: {
+                double[] values = new double[ARRAY_LENGTH];
+                for(int i = 0; i < values.length; i++) values[i] = i / 15.0 - 0.5;
+                return Packet.asDoubleArray(name, values);
+            }
+            case STRING:
+                return Packet.asString(name, "forward 100");
+            default: {
+                String[] values = new String[ARRAY_LENGTH];
+                for(int i = 0; i < values.length; i++) values[i] = "motor" + i;
+                return Packet.asStringArray(name, values);
+            }
+        }
+    }
+}
@@ -0,0 +1,16 @@
+package com.nicholastmosher.easycom.core.connection;
+
+/**
+ * Stands in for easycom-core's Connection, which is built as an Android
+ * library, so that the packet codec and frame classes compile for the
+ * benchmarks.  Only what those classes use is declared; the benchmarks
+ * never send over a Connection.
+ */
+public abstract class Connection {
+
+    public interface OnDataReceivedListener {
+        void onDataReceived(Connection connection, byte[] data);
+    }
+
+    public abstract void send(byte[] data);
+}